@@ -0,0 +1,221 @@
+package grocery;
+
+import java.util.Arrays;
+
+/*
+ * The items of one basket: each product once, with the quantity asked for
+ *
+ * Items are added as they are read, already looked up in the catalogue, and a
+ * product that is added again has its quantity added to the earlier line rather
+ * than getting a line of its own.  Products are kept in the order they were first
+ * added, and handed to rating as they are, so each distinct item is looked up in
+ * the catalogue once however many lines name it.
+ *
+ * Products are keyed by the SymbolTable id of their name, found by an open
+ * addressing hash table of int slots next to plain arrays of products and
+ * quantities; adding an item boxes nothing.  A basket is meant to be cleared and
+ * reused: clearing empties only the slots that were used.
+ *
+ */
+public class Basket
+{
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private int[] productNameIds;
+	private Product[] products;
+	private double[] quantities;
+	private int size = 0;
+	
+	/*
+	 * Index + 1 of the item in each slot (0 is an empty slot).  Never more than
+	 * half full
+	 */
+	private int[] slots;
+	
+	Basket()
+	{
+		this( INITIAL_CAPACITY );
+	}
+	
+	Basket( int inCapacity )
+	{
+		int capacity = INITIAL_CAPACITY;
+		while( capacity < inCapacity )
+		{
+			capacity <<= 1;
+		}
+		
+		this.productNameIds	= new int[ capacity ];
+		this.products		= new Product[ capacity ];
+		this.quantities		= new double[ capacity ];
+		this.slots			= new int[ 2 * capacity ];
+	}
+	
+	/*
+	 * Add a quantity of a product, adding it to the quantity already in the basket
+	 * if the product is there.  Returns the index of the product
+	 */
+	public int add( Product inProduct, double inQuantity )
+	{
+		int i = this.indexOrAdd( inProduct );
+		this.quantities[ i ] += inQuantity;
+		return i;
+	}
+	
+	/*
+	 * Set the quantity of a product, adding the product if it is not in the basket.
+	 * Returns the index of the product
+	 */
+	public int set( Product inProduct, double inQuantity )
+	{
+		int i = this.indexOrAdd( inProduct );
+		this.quantities[ i ] = inQuantity;
+		return i;
+	}
+	
+	/*
+	 * The index of a product, adding it with no quantity if it is new
+	 */
+	private int indexOrAdd( Product inProduct )
+	{
+		int productNameId	= inProduct.getProductNameId();
+		int mask			= this.slots.length - 1;
+		int slot			= spread( productNameId ) & mask;
+		int entry;
+		
+		while( 0 != ( entry = this.slots[ slot ] ) )
+		{
+			if( this.productNameIds[ entry - 1 ] == productNameId )
+			{
+				return entry - 1;
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+		
+		if( this.size == this.products.length )
+		{
+			this.grow();
+			slot = this.freeSlot( productNameId );
+		}
+		
+		this.productNameIds[ this.size ]	= productNameId;
+		this.products[ this.size ]			= inProduct;
+		this.quantities[ this.size ]		= 0;
+		this.slots[ slot ]					= ++this.size;
+		
+		return this.size - 1;
+	}
+	
+	/*
+	 * The number of distinct products
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+	
+	/*
+	 * The i'th product, in the order they were first added
+	 */
+	public Product getProduct( int i )
+	{
+		return this.products[ i ];
+	}
+	
+	/*
+	 * The total quantity of the i'th product
+	 */
+	public double getQuantity( int i )
+	{
+		return this.quantities[ i ];
+	}
+	
+	/*
+	 * The total quantity of a product, or 0 if it is not in the basket
+	 */
+	public double getQuantity( Product inProduct )
+	{
+		int i = this.indexOf( inProduct );
+		return ( i < 0 ) ? 0 : this.quantities[ i ];
+	}
+	
+	/*
+	 * The index of a product, or -1 if it is not in the basket
+	 */
+	public int indexOf( Product inProduct )
+	{
+		return this.slots[ this.slotOf( inProduct.getProductNameId() ) ] - 1;
+	}
+	
+	/*
+	 * Empty the basket, keeping its capacity.  Items are taken out last first, so
+	 * the probe from each item to its slot only crosses slots still in use
+	 */
+	public void clear()
+	{
+		for( int i = this.size - 1; i >= 0; --i )
+		{
+			this.slots[ this.slotOf( this.productNameIds[ i ] ) ] = 0;
+			this.products[ i ] = null;
+		}
+		this.size = 0;
+	}
+	
+	/*
+	 * The slot holding a product, or the empty slot where it would go
+	 */
+	private int slotOf( int productNameId )
+	{
+		int mask	= this.slots.length - 1;
+		int slot	= spread( productNameId ) & mask;
+		int entry;
+		
+		while( 0 != ( entry = this.slots[ slot ] ) && this.productNameIds[ entry - 1 ] != productNameId )
+		{
+			slot = ( slot + 1 ) & mask;
+		}
+		
+		return slot;
+	}
+	
+	private int freeSlot( int productNameId )
+	{
+		int mask	= this.slots.length - 1;
+		int slot	= spread( productNameId ) & mask;
+		
+		while( 0 != this.slots[ slot ] )
+		{
+			slot = ( slot + 1 ) & mask;
+		}
+		
+		return slot;
+	}
+	
+	/*
+	 * Double the capacity and rebuild the slots
+	 */
+	private void grow()
+	{
+		int capacity = 2 * this.products.length;
+		
+		this.productNameIds	= Arrays.copyOf( this.productNameIds, capacity );
+		this.products		= Arrays.copyOf( this.products, capacity );
+		this.quantities		= Arrays.copyOf( this.quantities, capacity );
+		this.slots			= new int[ 2 * capacity ];
+		
+		for( int i = 0; i < this.size; ++i )
+		{
+			this.slots[ this.freeSlot( this.productNameIds[ i ] ) ] = i + 1;
+		}
+	}
+	
+	/*
+	 * Symbol ids are sequential, so they are mixed before masking
+	 */
+	private static int spread( int productNameId )
+	{
+		return productNameId * 0x9E3779B9 >>> 7;
+	}
+
+}
@@ -0,0 +1,523 @@
+package grocery;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * Reads the items of a basket, '2 apple 3 orange' (or 'B0001|2 apple 3 orange'
+ * in a batch), straight from the bytes of the line
+ *
+ * Items are 'quantity name' pairs separated by white space.  Quantities are read
+ * digit by digit as fixed-point thousandths: '2', '2.5' and '0.125' are fine; a
+ * sign, an exponent or a fourth significant decimal is not a quantity.
+ *
+ * Names are looked up in a table of the names this scanner has already found in
+ * the catalogue, keyed by their bytes, so a name seen before costs neither a
+ * String nor a catalogue lookup (nor a getProduct metric).  Only a name seen for
+ * the first time is decoded and looked up in the catalogue.  Names that are not in
+ * the catalogue are not remembered, and nor is anything for a catalogue that does
+ * not hold its products (see OffHeapCatalogue), which would otherwise be rebuilt
+ * on the heap one by one.
+ *
+ * Nothing is thrown for bad input.  Each problem is recorded with an ErrorCode and
+ * the bytes it is about, and can be read until the next scan:
+ *
+ * NO_BASKET_ID		a batch line without 'ID|'; the line is skipped
+ * BAD_QUANTITY		a token where a quantity should be; the rest of the line is skipped
+ * NO_ITEM_NAME		a quantity at the end of the line
+ * UNKNOWN_ITEM		a name that is not in the catalogue; the item is skipped
+ * TOO_MANY_UNITS	an item whose units, with those of the same product earlier in the
+ * 					line, come to more than MAX_ITEM_UNITS; the rest of the line is skipped
+ * TOO_MANY_ITEMS	an item past the MAX_BASKET_ITEMS'th; the rest of the line is skipped
+ * BASKET_TOO_LARGE	an item that takes the basket past MAX_BASKET_UNITS units in all;
+ * 					the rest of the line is skipped
+ *
+ * The last three are limits, so that one basket can not take the memory or the time
+ * of everyone else's (a quantity alone could ask for a hundred billion units).  A
+ * basket over a limit is refused as a whole: a batch line gets no bill, and the
+ * server answers 400 (see isOverLimit).
+ *
+ * A scanner belongs to one catalogue and is used by one thread at a time.
+ *
+ */
+public class BasketLineScanner
+{
+	
+	public enum ErrorCode
+	{
+		NO_BASKET_ID, BAD_QUANTITY, NO_ITEM_NAME, UNKNOWN_ITEM, TOO_MANY_UNITS, TOO_MANY_ITEMS, BASKET_TOO_LARGE
+	}
+	
+	/*
+	 * The most units of one product, the most items, and the most units in all,
+	 * in a basket
+	 */
+	static final int MAX_ITEM_UNITS		= 10000;
+	static final int MAX_BASKET_ITEMS	= 1000;
+	static final int MAX_BASKET_UNITS	= 100000;
+	
+	/*
+	 * Quantities are read in thousandths
+	 */
+	static final int QUANTITY_SCALE			= 1000;
+	private static final int QUANTITY_DECIMALS	= 3;
+	private static final long MAX_DIGITS_VALUE	= 100000000000000L;
+	
+	/*
+	 * Past this many names, new names are decoded and looked up every time
+	 */
+	private static final int MAX_CACHED_NAMES		= 1 << 20;
+	private static final int INITIAL_CACHED_NAMES	= 64;
+	
+	private final Catalogue catalogue;
+	private final Charset charset;
+	private final int maxCachedNames;
+	
+	/*
+	 * The names found so far: their bytes end to end in nameBytes, and index + 1 of
+	 * each name in nameSlots (0 is an empty slot), never more than half full
+	 */
+	private byte[] nameBytes;
+	private int nameBytesUsed = 0;
+	private int[] nameStarts;
+	private int[] nameLengths;
+	private int[] nameHashes;
+	private Product[] nameProducts;
+	private int numNames = 0;
+	private int[] nameSlots;
+	
+	/*
+	 * The problems of the last scan, as spans of errorBuf
+	 */
+	private byte[] errorBuf;
+	private ErrorCode[] errorCodes	= new ErrorCode[ 4 ];
+	private int[] errorStarts		= new int[ 4 ];
+	private int[] errorEnds			= new int[ 4 ];
+	private int numErrors = 0;
+	private boolean overLimit = false;
+	
+	BasketLineScanner( Catalogue inCatalogue )
+	{
+		this( inCatalogue, Charset.defaultCharset() );
+	}
+	
+	BasketLineScanner( Catalogue inCatalogue, Charset inCharset )
+	{
+		this.catalogue		= inCatalogue;
+		this.charset		= inCharset;
+		this.maxCachedNames	= ( true == inCatalogue.holdsProducts() ) ? MAX_CACHED_NAMES : 0;
+		this.nameBytes		= new byte[ 16 * INITIAL_CACHED_NAMES ];
+		this.nameStarts		= new int[ INITIAL_CACHED_NAMES ];
+		this.nameLengths	= new int[ INITIAL_CACHED_NAMES ];
+		this.nameHashes		= new int[ INITIAL_CACHED_NAMES ];
+		this.nameProducts	= new Product[ INITIAL_CACHED_NAMES ];
+		this.nameSlots		= new int[ 2 * INITIAL_CACHED_NAMES ];
+	}
+	
+	/*
+	 * Scan a batch line, 'ID|2 apple 3 orange', adding its items to outItems.
+	 * Returns the basket id, or null if the line has none or is over a limit
+	 */
+	public String scanBasket( byte[] buf, int from, int to, Basket outItems )
+	{
+		this.clearErrors( buf );
+		
+		for( int i = from; i < to; ++i )
+		{
+			if( '|' == buf[ i ] )
+			{
+				this.scan( buf, i + 1, to, outItems );
+				return ( true == this.overLimit ) ? null : new String( buf, from, i - from, this.charset );
+			}
+		}
+		
+		this.addError( ErrorCode.NO_BASKET_ID, from, to );
+		return null;
+	}
+	
+	/*
+	 * Scan the items of a line, '2 apple 3 orange', adding them to outItems.
+	 * Returns false if there were problems
+	 */
+	public boolean scanItems( byte[] buf, int from, int to, Basket outItems )
+	{
+		this.clearErrors( buf );
+		this.scan( buf, from, to, outItems );
+		
+		return 0 == this.numErrors;
+	}
+	
+	public int getErrorCount()
+	{
+		return this.numErrors;
+	}
+	
+	/*
+	 * True if the last scan went over MAX_ITEM_UNITS, MAX_BASKET_ITEMS or
+	 * MAX_BASKET_UNITS, so the basket is to be refused
+	 */
+	public boolean isOverLimit()
+	{
+		return this.overLimit;
+	}
+	
+	public ErrorCode getErrorCode( int i )
+	{
+		return this.errorCodes[ i ];
+	}
+	
+	/*
+	 * The text the i'th problem is about: the line, the bad quantity or the name
+	 */
+	public String getErrorToken( int i )
+	{
+		return new String( this.errorBuf, this.errorStarts[ i ], this.errorEnds[ i ] - this.errorStarts[ i ], this.charset );
+	}
+	
+	/*
+	 * The i'th problem as the batch reports it
+	 */
+	public String getErrorMessage( int i )
+	{
+		switch( this.errorCodes[ i ] )
+		{
+			case NO_BASKET_ID:
+				return "no basket id; expected 'ID|2 apple 3 orange'";
+			case BAD_QUANTITY:
+				return "[" + this.getErrorToken( i ) + "] is not a quantity";
+			case NO_ITEM_NAME:
+				return "quantity [" + this.getErrorToken( i ) + "] has no item name";
+			case TOO_MANY_UNITS:
+				return "item [" + this.getErrorToken( i ) + "] comes to more than " + MAX_ITEM_UNITS + " units";
+			case TOO_MANY_ITEMS:
+				return "the basket has more than " + MAX_BASKET_ITEMS + " items";
+			case BASKET_TOO_LARGE:
+				return "the basket has more than " + MAX_BASKET_UNITS + " units";
+			default:
+				return "item [" + this.getErrorToken( i ) + "] does not exist in the catalogue";
+		}
+	}
+	
+	private void scan( byte[] buf, int from, int to, Basket outItems )
+	{
+		int pos				= skipSpace( buf, from, to );
+		int numItems		= 0;
+		long basketUnits	= 0;
+		
+		while( pos < to )
+		{
+			int quantityEnd	= skipToken( buf, pos, to );
+			long quantity	= parseQuantity( buf, pos, quantityEnd );
+			
+			if( quantity < 0 )
+			{
+				this.addError( ErrorCode.BAD_QUANTITY, pos, quantityEnd );
+				return;
+			}
+			if( MAX_BASKET_ITEMS == numItems++ )
+			{
+				this.addError( ErrorCode.TOO_MANY_ITEMS, pos, to );
+				this.overLimit = true;
+				return;
+			}
+			
+			int nameStart = skipSpace( buf, quantityEnd, to );
+			if( nameStart == to )
+			{
+				this.addError( ErrorCode.NO_ITEM_NAME, pos, quantityEnd );
+				return;
+			}
+			
+			int nameEnd			= skipToken( buf, nameStart, to );
+			Product aProduct	= this.findProduct( buf, nameStart, nameEnd );
+			
+			if( null == aProduct )
+			{
+				this.addError( ErrorCode.UNKNOWN_ITEM, nameStart, nameEnd );
+			}
+			else
+			{
+				/*
+				 * A product named again is added to its earlier line, so the limit
+				 * is on the line's quantity after the add
+				 */
+				int i		= outItems.add( aProduct, (double)quantity / QUANTITY_SCALE );
+				basketUnits	+= quantity;
+				
+				if( outItems.getQuantity( i ) > MAX_ITEM_UNITS )
+				{
+					this.addError( ErrorCode.TOO_MANY_UNITS, nameStart, nameEnd );
+					this.overLimit = true;
+					return;
+				}
+				if( basketUnits > (long)MAX_BASKET_UNITS * QUANTITY_SCALE )
+				{
+					this.addError( ErrorCode.BASKET_TOO_LARGE, pos, to );
+					this.overLimit = true;
+					return;
+				}
+			}
+			
+			pos = skipSpace( buf, nameEnd, to );
+		}
+	}
+	
+	/*
+	 * A quantity in thousandths, or -1 if the bytes are not a quantity
+	 */
+	static long parseQuantity( byte[] buf, int from, int to )
+	{
+		long units		= 0;
+		int digits		= 0;
+		int decimals	= -1;
+		
+		for( int i = from; i < to; ++i )
+		{
+			int b = buf[ i ];
+			
+			if( b >= '0' && b <= '9' )
+			{
+				++digits;
+				
+				if( decimals >= QUANTITY_DECIMALS )
+				{
+					/*
+					 * Trailing zeros past the last decimal kept are fine
+					 */
+					if( '0' != b )
+					{
+						return -1;
+					}
+					continue;
+				}
+				
+				if( units >= MAX_DIGITS_VALUE )
+				{
+					return -1;
+				}
+				
+				units = 10 * units + ( b - '0' );
+				if( decimals >= 0 )
+				{
+					++decimals;
+				}
+			}
+			else if( '.' == b && decimals < 0 )
+			{
+				decimals = 0;
+			}
+			else
+			{
+				return -1;
+			}
+		}
+		
+		if( 0 == digits )
+		{
+			return -1;
+		}
+		
+		for( int d = Math.max( 0, decimals ); d < QUANTITY_DECIMALS; ++d )
+		{
+			units *= 10;
+		}
+		
+		return units;
+	}
+	
+	/*
+	 * True if the bytes are only white space
+	 */
+	static boolean isBlank( byte[] buf, int from, int to )
+	{
+		return skipSpace( buf, from, to ) == to;
+	}
+	
+	/*
+	 * True if the bytes are exactly the (ASCII) text
+	 */
+	static boolean matches( byte[] buf, int from, int to, String text )
+	{
+		if( to - from != text.length() )
+		{
+			return false;
+		}
+		
+		for( int i = 0; i < text.length(); ++i )
+		{
+			if( buf[ from + i ] != text.charAt( i ) )
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * White space as StringTokenizer sees it
+	 */
+	private static boolean isSpace( byte b )
+	{
+		return ' ' == b || '\t' == b || '\n' == b || '\r' == b || '\f' == b;
+	}
+	
+	private static int skipSpace( byte[] buf, int from, int to )
+	{
+		while( from < to && true == isSpace( buf[ from ] ) )
+		{
+			++from;
+		}
+		return from;
+	}
+	
+	private static int skipToken( byte[] buf, int from, int to )
+	{
+		while( from < to && false == isSpace( buf[ from ] ) )
+		{
+			++from;
+		}
+		return from;
+	}
+	
+	/*
+	 * The product of a name, from the names already found or else the catalogue
+	 */
+	private Product findProduct( byte[] buf, int from, int to )
+	{
+		int hash	= hash( buf, from, to );
+		int mask	= this.nameSlots.length - 1;
+		int slot	= spread( hash ) & mask;
+		int entry;
+		
+		while( 0 != ( entry = this.nameSlots[ slot ] ) )
+		{
+			if( this.nameHashes[ entry - 1 ] == hash && true == this.sameName( entry - 1, buf, from, to ) )
+			{
+				return this.nameProducts[ entry - 1 ];
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+		
+		Product aProduct = this.catalogue.getProduct( new String( buf, from, to - from, this.charset ) );
+		
+		if( null != aProduct && this.numNames < this.maxCachedNames )
+		{
+			this.addName( buf, from, to, hash, aProduct );
+		}
+		
+		return aProduct;
+	}
+	
+	private boolean sameName( int n, byte[] buf, int from, int to )
+	{
+		int length = this.nameLengths[ n ];
+		if( to - from != length )
+		{
+			return false;
+		}
+		
+		int start = this.nameStarts[ n ];
+		for( int i = 0; i < length; ++i )
+		{
+			if( this.nameBytes[ start + i ] != buf[ from + i ] )
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private void addName( byte[] buf, int from, int to, int hash, Product inProduct )
+	{
+		int length = to - from;
+		
+		if( this.numNames == this.nameProducts.length )
+		{
+			this.growNames();
+		}
+		if( this.nameBytesUsed + length > this.nameBytes.length )
+		{
+			this.nameBytes = Arrays.copyOf( this.nameBytes, Math.max( 2 * this.nameBytes.length, this.nameBytesUsed + length ) );
+		}
+		
+		System.arraycopy( buf, from, this.nameBytes, this.nameBytesUsed, length );
+		
+		int n = this.numNames++;
+		this.nameStarts[ n ]	= this.nameBytesUsed;
+		this.nameLengths[ n ]	= length;
+		this.nameHashes[ n ]	= hash;
+		this.nameProducts[ n ]	= inProduct;
+		this.nameBytesUsed		+= length;
+		
+		this.nameSlots[ this.freeSlot( hash ) ] = n + 1;
+	}
+	
+	private void growNames()
+	{
+		int capacity = 2 * this.nameProducts.length;
+		
+		this.nameStarts		= Arrays.copyOf( this.nameStarts, capacity );
+		this.nameLengths	= Arrays.copyOf( this.nameLengths, capacity );
+		this.nameHashes		= Arrays.copyOf( this.nameHashes, capacity );
+		this.nameProducts	= Arrays.copyOf( this.nameProducts, capacity );
+		this.nameSlots		= new int[ 2 * capacity ];
+		
+		for( int n = 0; n < this.numNames; ++n )
+		{
+			this.nameSlots[ this.freeSlot( this.nameHashes[ n ] ) ] = n + 1;
+		}
+	}
+	
+	private int freeSlot( int hash )
+	{
+		int mask = this.nameSlots.length - 1;
+		int slot = spread( hash ) & mask;
+		
+		while( 0 != this.nameSlots[ slot ] )
+		{
+			slot = ( slot + 1 ) & mask;
+		}
+		
+		return slot;
+	}
+	
+	private static int hash( byte[] buf, int from, int to )
+	{
+		int hash = 0;
+		for( int i = from; i < to; ++i )
+		{
+			hash = 31 * hash + buf[ i ];
+		}
+		return hash;
+	}
+	
+	private static int spread( int hash )
+	{
+		return hash ^ ( hash >>> 16 );
+	}
+	
+	private void clearErrors( byte[] buf )
+	{
+		this.errorBuf	= buf;
+		this.numErrors	= 0;
+		this.overLimit	= false;
+	}
+	
+	private void addError( ErrorCode inCode, int from, int to )
+	{
+		if( this.numErrors == this.errorCodes.length )
+		{
+			this.errorCodes		= Arrays.copyOf( this.errorCodes, 2 * this.numErrors );
+			this.errorStarts	= Arrays.copyOf( this.errorStarts, 2 * this.numErrors );
+			this.errorEnds		= Arrays.copyOf( this.errorEnds, 2 * this.numErrors );
+		}
+		
+		this.errorCodes[ this.numErrors ]	= inCode;
+		this.errorStarts[ this.numErrors ]	= from;
+		this.errorEnds[ this.numErrors ]	= to;
+		++this.numErrors;
+	}
+
+}
@@ -0,0 +1,162 @@
+package grocery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/*
+ * Prices a stream of baskets without any prompting
+ * 
+ * Each input line is one basket: an id, a '|' and the items in the same format as
+ * the console, e.g.
+ * 
+ * B0001|2 apple 3 orange
+ * B0002|6 avoCado 1 apple 1 apple
+ * 
+ * Each basket is written as one line per purchased product followed by its total,
+ * all '|' delimited, e.g.
+ * 
+ * B0001|apple|Buy 1 get 1 50% off|0.75
+ * B0001|orange|Buy 2 get 1 50% off|2.38
+ * B0001|TOTAL DUE||3.13
+ * 
+ * The bills can also be written as text, CSV or JSON (see BillRenderer).  With
+ * promotions, each basket is priced with its cheapest set of bundles (see
+ * BundleOptimizer).
+ * 
+ * Lines are read and scanned as bytes (see BasketLineScanner).  Baskets and items
+ * that cannot be read are reported on stderr with their line number and skipped.
+ * Output is written in large blocks.
+ * 
+ */
+public class BatchPricer
+{
+	
+	private static final int IO_BUFFER_SIZE		= 64 * 1024;
+	
+	private Catalogue catalogue;
+	private PricingEngine pricingEngine;
+	private BillRenderer.Format billFormat;
+	private PromotionCatalogue promotions;
+	
+	private long basketCount;
+	private long lineCount;
+	private long errorCount;
+	private long elapsedNanos;
+	
+	/*
+	 * inPromotions may be null for no promotions
+	 */
+	BatchPricer( Catalogue inCatalogue, PricingEngine inPricingEngine, BillRenderer.Format inBillFormat,
+			PromotionCatalogue inPromotions )
+	{
+		this.catalogue		= inCatalogue;
+		this.pricingEngine	= inPricingEngine;
+		this.billFormat		= inBillFormat;
+		this.promotions		= inPromotions;
+	}
+	
+	public long getBasketCount()
+	{
+		return this.basketCount;
+	}
+	
+	public long getErrorCount()
+	{
+		return this.errorCount;
+	}
+	
+	/*
+	 * Baskets priced per second by the last run
+	 */
+	public double getBasketsPerSecond()
+	{
+		return ( 0 == this.elapsedNanos ) ? 0 : this.basketCount * 1e9 / this.elapsedNanos;
+	}
+	
+	public long getElapsedMillis()
+	{
+		return this.elapsedNanos / 1000000;
+	}
+	
+	/*
+	 * Price every basket read from in and write the bills to out
+	 */
+	public void run( InputStream in, OutputStream out ) throws IOException
+	{
+		long startNanos = System.nanoTime();
+		
+		ByteLineReader reader		= new ByteLineReader( in, IO_BUFFER_SIZE );
+		BasketLineScanner scanner	= new BasketLineScanner( this.catalogue );
+		BillRenderer renderer		= new BillRenderer( this.billFormat, out );
+		BundleOptimizer optimizer	= ( null == this.promotions ) ? null : new BundleOptimizer( this.promotions, this.pricingEngine );
+		
+		Basket basketItems							= new Basket();
+		ArrayList<PurchasedProduct> purchasedItems	= new ArrayList<PurchasedProduct>();
+		
+		while( true == reader.next() )
+		{
+			++this.lineCount;
+			
+			byte[] line	= reader.getBuffer();
+			int from	= reader.getLineStart();
+			int to		= reader.getLineEnd();
+			
+			if( true == BasketLineScanner.isBlank( line, from, to ) )
+			{
+				continue;
+			}
+			
+			basketItems.clear();
+			String basketId = scanner.scanBasket( line, from, to, basketItems );
+			for( int i = 0; i < scanner.getErrorCount(); ++i )
+			{
+				this.reportError( scanner.getErrorMessage( i ) );
+			}
+			
+			if( null == basketId )
+			{
+				continue;
+			}
+			
+			priceBasket( this.pricingEngine, optimizer, basketId, basketItems, purchasedItems, renderer );
+			
+			++this.basketCount;
+		}
+		
+		renderer.flush();
+		this.elapsedNanos = System.nanoTime() - startNanos;
+	}
+	
+	/*
+	 * Rate the items of a basket, with the promotions of the optimizer if there is
+	 * one, and render its bill.  purchasedItems is scratch space
+	 */
+	static void priceBasket( PricingEngine inPricingEngine, BundleOptimizer optimizer, String basketId, Basket basketItems,
+			ArrayList<PurchasedProduct> purchasedItems, BillRenderer renderer ) throws IOException
+	{
+		purchasedItems.clear();
+		
+		if( null != optimizer )
+		{
+			optimizer.rate( basketItems, purchasedItems );
+		}
+		else
+		{
+			for( int i = 0; i < basketItems.size(); ++i )
+			{
+				inPricingEngine.rate( basketItems.getProduct( i ), basketItems.getQuantity( i ), purchasedItems );
+			}
+		}
+		
+		renderer.render( basketId, purchasedItems );
+	}
+	
+	private void reportError( String reason )
+	{
+		++this.errorCount;
+		System.err.println( "Basket line [" + this.lineCount + "]: " + reason );
+	}
+	
+}
@@ -0,0 +1,473 @@
+package grocery;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Micro benchmarks of the catalogue and pricing code on synthetic catalogues
+ *
+ * >> java grocery/Benchmark [-products 1000,100000,1000000] [-rates 3] [-tiers 4]
+ *                           [-seconds 2] [-only NAME]
+ *
+ * For every combination of catalogue size, number of bulk rates per product and
+ * tier depth a catalogue is written to a temporary file, then each benchmark is
+ * warmed up and run for the given time.  The results are printed one per line:
+ *
+ * benchmark                  products  rates  tiers        ns/op       bytes/op
+ * getBestRate                  100000      3      4         41.2           0.0
+ *
+ * bytes/op is the heap allocated by the benchmark thread per operation, so an
+ * allocation regression shows up as a number as well as a time.  All inputs come
+ * from a fixed seed, so runs are comparable.
+ *
+ * The largest catalogues need a large heap, e.g. -Xmx4g for 1000000 products.
+ *
+ */
+public class Benchmark
+{
+	
+	private static final long SEED				= 20240901L;
+	private static final int NUM_INPUTS			= 4096;
+	private static final double MAX_QUANTITY	= 20;
+	
+	/*
+	 * One operation of a benchmark.  The argument counts the operations so that
+	 * successive calls use different inputs; the result is consumed so that the
+	 * work can not be optimised away
+	 */
+	private static abstract class Workload
+	{
+		abstract long run( int op ) throws IOException;
+	}
+	
+	private static volatile long sink;
+	
+	private static int numRates;
+	private static int tierDepth;
+	private static long measureNanos		= 2000000000L;
+	private static String only				= null;
+	
+	private static com.sun.management.ThreadMXBean threadBean;
+	
+	public static void main( String[] args ) throws IOException
+	{
+		int[] sizes = { 1000, 100000, 1000000 };
+		int[] rateCounts = { 3 };
+		int[] tierDepths = { 4 };
+		
+		for( int i = 0; i < args.length; ++i )
+		{
+			if( true == args[i].equals( "-products" ) && i + 1 < args.length )
+			{
+				sizes = parseList( args[++i] );
+			}
+			else if( true == args[i].equals( "-rates" ) && i + 1 < args.length )
+			{
+				rateCounts = parseList( args[++i] );
+			}
+			else if( true == args[i].equals( "-tiers" ) && i + 1 < args.length )
+			{
+				tierDepths = parseList( args[++i] );
+			}
+			else if( true == args[i].equals( "-seconds" ) && i + 1 < args.length )
+			{
+				measureNanos = (long)( Double.parseDouble( args[++i] ) * 1e9 );
+			}
+			else if( true == args[i].equals( "-only" ) && i + 1 < args.length )
+			{
+				only = args[++i];
+			}
+			else
+			{
+				System.err.println( "Usage: java grocery/Benchmark [-products N,...] [-rates N,...] [-tiers N,...] [-seconds S] [-only NAME]" );
+				System.exit( 1 );
+			}
+		}
+		
+		if( ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean )
+		{
+			threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		}
+		
+		System.out.format( "%-25s%11s%7s%7s%13s%15s\n", "benchmark", "products", "rates", "tiers", "ns/op", "bytes/op" );
+		
+		for( int size : sizes )
+		{
+			for( int rates : rateCounts )
+			{
+				for( int tiers : tierDepths )
+				{
+					numRates	= rates;
+					tierDepth	= tiers;
+					runAll( size );
+				}
+			}
+		}
+	}
+	
+	private static int[] parseList( String inList )
+	{
+		String[] values = inList.split( "," );
+		int[] list = new int[ values.length ];
+		
+		for( int i = 0; i < values.length; ++i )
+		{
+			list[ i ] = Integer.parseInt( values[ i ].trim() );
+		}
+		return list;
+	}
+	
+	private static void runAll( final int numProducts ) throws IOException
+	{
+		final File catalogueFile = File.createTempFile( "grocery-bench-", ".dat" );
+		catalogueFile.deleteOnExit();
+		writeCatalogue( catalogueFile, numProducts );
+		
+		final Catalogue catalogue = CatalogueReloader.load( catalogueFile.getPath(), false, false );
+		final Catalogue offHeapCatalogue = CatalogueReloader.load( catalogueFile.getPath(), false, true );
+		
+		/*
+		 * Inputs, drawn uniformly from the catalogue
+		 */
+		final Random random						= new Random( SEED );
+		ArrayList<Product> allProducts			= new ArrayList<Product>( numProducts );
+		ArrayList<Rate> tieredRates				= new ArrayList<Rate>( numProducts );
+		
+		Iterator<Product> ite = catalogue.productIterator();
+		while( ite.hasNext() )
+		{
+			Product aProduct = ite.next();
+			allProducts.add( aProduct );
+			
+			Iterator<Rate> rates = aProduct.rateIterator();
+			while( rates.hasNext() )
+			{
+				Rate aRate = rates.next();
+				if( true == aRate.isTiered() )
+				{
+					tieredRates.add( aRate );
+				}
+			}
+		}
+		
+		final String[] names			= new String[ NUM_INPUTS ];
+		final String[] foldedNames		= new String[ NUM_INPUTS ];
+		final Product[] products		= new Product[ NUM_INPUTS ];
+		final Rate[] tiers				= new Rate[ NUM_INPUTS ];
+		final double[] quantities		= new double[ NUM_INPUTS ];
+		final double[] tierQuantities	= new double[ NUM_INPUTS ];
+		
+		for( int i = 0; i < NUM_INPUTS; ++i )
+		{
+			products[ i ]		= allProducts.get( random.nextInt( allProducts.size() ) );
+			names[ i ]			= ( 0 == i % 8 ) ? "missing" + i : products[ i ].getProductName();
+			foldedNames[ i ]	= names[ i ].toUpperCase();
+			quantities[ i ]		= 1 + random.nextInt( (int)MAX_QUANTITY );
+			tiers[ i ]			= tieredRates.isEmpty() ? null : tieredRates.get( random.nextInt( tieredRates.size() ) );
+			tierQuantities[ i ]	= random.nextDouble() * tierDepth * 3;
+		}
+		allProducts = null;
+		tieredRates = null;
+		
+		/*
+		 * Baskets of 1 to 8 items, with repeated quantities the way shoppers buy
+		 */
+		final ArrayList<Basket> baskets = new ArrayList<Basket>();
+		for( int b = 0; b < NUM_INPUTS / 4; ++b )
+		{
+			Basket basket = new Basket();
+			int numItems = 1 + random.nextInt( 8 );
+			for( int i = 0; i < numItems; ++i )
+			{
+				basket.add( products[ random.nextInt( NUM_INPUTS ) ], (double)( 1 + random.nextInt( 6 ) ) );
+			}
+			baskets.add( basket );
+		}
+		
+		final PricingEngine engine = new OptimalPricingEngine();
+		final ArrayList<ArrayList<PurchasedProduct>> bills = new ArrayList<ArrayList<PurchasedProduct>>();
+		final BillRenderer renderer = new BillRenderer( BillRenderer.Format.PIPE );
+		for( Basket basket : baskets )
+		{
+			ArrayList<PurchasedProduct> purchased = new ArrayList<PurchasedProduct>();
+			BatchPricer.priceBasket( engine, null, "B", basket, purchased, renderer );
+			bills.add( purchased );
+		}
+		
+		final ArrayList<PurchasedProduct> scratch = new ArrayList<PurchasedProduct>();
+		
+		/*
+		 * The rates and quantities of the bill lines, retail, bulk and tiered as the
+		 * engine chose them
+		 */
+		int allLines = 0;
+		for( ArrayList<PurchasedProduct> bill : bills )
+		{
+			allLines += bill.size();
+		}
+		
+		final int numLines				= Integer.highestOneBit( allLines );
+		final Rate[] rateOfLine			= new Rate[ numLines ];
+		final double[] quantityOfLine	= new double[ numLines ];
+		int line = 0;
+		for( ArrayList<PurchasedProduct> bill : bills )
+		{
+			for( int i = 0; i < bill.size() && line < numLines; ++i, ++line )
+			{
+				rateOfLine[ line ]		= bill.get( i ).getPurchasedRate();
+				quantityOfLine[ line ]	= bill.get( i ).getPurchasedQuantity();
+			}
+		}
+		
+		measure( "load", numProducts, new Workload()
+		{
+			long run( int op ) throws IOException
+			{
+				return CatalogueReloader.load( catalogueFile.getPath(), false, false ).getNumProducts();
+			}
+		} );
+		
+		measure( "load-parallel", numProducts, new Workload()
+		{
+			long run( int op ) throws IOException
+			{
+				return CatalogueReloader.load( catalogueFile.getPath(), true, false ).getNumProducts();
+			}
+		} );
+		
+		measure( "load-offheap", numProducts, new Workload()
+		{
+			long run( int op ) throws IOException
+			{
+				return CatalogueReloader.load( catalogueFile.getPath(), false, true ).getNumProducts();
+			}
+		} );
+		
+		measure( "productIsInCatalogue", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				return ( true == catalogue.productIsInCatalogue( names[ op & ( NUM_INPUTS - 1 ) ], false ) ) ? 1 : 0;
+			}
+		} );
+		
+		measure( "productIsInCatalogue-ic", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				return ( true == catalogue.productIsInCatalogue( foldedNames[ op & ( NUM_INPUTS - 1 ) ], true ) ) ? 1 : 0;
+			}
+		} );
+		
+		measure( "getProduct", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				return ( null == catalogue.getProduct( names[ op & ( NUM_INPUTS - 1 ) ] ) ) ? 0 : 1;
+			}
+		} );
+		
+		measure( "getProduct-offheap", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				return ( null == offHeapCatalogue.getProduct( names[ op & ( NUM_INPUTS - 1 ) ] ) ) ? 0 : 1;
+			}
+		} );
+		
+		measure( "getBestRate", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				int i = op & ( NUM_INPUTS - 1 );
+				Rate best = products[ i ].getBestRate( quantities[ i ] );
+				return ( null == best ) ? 0 : (long)best.getEffectiveQuantity();
+			}
+		} );
+		
+		if( null != tiers[ 0 ] )
+		{
+			measure( "getTierPrice", numProducts, new Workload()
+			{
+				long run( int op )
+				{
+					int i = op & ( NUM_INPUTS - 1 );
+					return tiers[ i ].getTierPrice( tierQuantities[ i ] );
+				}
+			} );
+			
+			measure( "getTierPrice-interpreted", numProducts, new Workload()
+			{
+				long run( int op )
+				{
+					int i = op & ( NUM_INPUTS - 1 );
+					return tiers[ i ].interpretTierPrice( tierQuantities[ i ] );
+				}
+			} );
+		}
+		
+		/*
+		 * The cost of a bill line as PurchasedProduct works it out, with the tiers
+		 * compiled and as it was done before they were
+		 */
+		measure( "lineCost", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				int i		= op & ( numLines - 1 );
+				Rate aRate	= rateOfLine[ i ];
+				return Money.toCents( ( false == aRate.isTiered() ) ? aRate.getEffectivePrice() : aRate.getTierPrice( quantityOfLine[ i ] ) );
+			}
+		} );
+		
+		measure( "lineCost-interpreted", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				int i		= op & ( numLines - 1 );
+				Rate aRate	= rateOfLine[ i ];
+				return Money.toCents( ( false == aRate.isTiered() ) ? aRate.getEffectivePrice() : aRate.interpretTierPrice( quantityOfLine[ i ] ) );
+			}
+		} );
+		
+		measure( "rateItem", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				Basket basket = baskets.get( op % baskets.size() );
+				scratch.clear();
+				for( int i = 0; i < basket.size(); ++i )
+				{
+					engine.rate( basket.getProduct( i ), basket.getQuantity( i ), scratch );
+				}
+				return scratch.size();
+			}
+		} );
+		
+		/*
+		 * One scan at a till: a single unit of the next product, starting a new
+		 * customer every 32 scans
+		 */
+		final CheckoutSession checkout = new CheckoutSession( engine );
+		measure( "checkoutScan", numProducts, new Workload()
+		{
+			long run( int op )
+			{
+				if( 0 == op % 32 )
+				{
+					checkout.clear();
+				}
+				return checkout.add( products[ op & ( NUM_INPUTS - 1 ) ], 1 );
+			}
+		} );
+		
+		measure( "bill", numProducts, new Workload()
+		{
+			long run( int op ) throws IOException
+			{
+				renderer.reset();
+				renderer.render( "B", bills.get( op % bills.size() ) );
+				return renderer.size();
+			}
+		} );
+		
+		measure( "priceBasket", numProducts, new Workload()
+		{
+			long run( int op ) throws IOException
+			{
+				renderer.reset();
+				BatchPricer.priceBasket( engine, null, "B", baskets.get( op % baskets.size() ), scratch, renderer );
+				return renderer.size();
+			}
+		} );
+		
+		catalogueFile.delete();
+	}
+	
+	/*
+	 * Warm up, then run the workload for measureNanos and print its cost per operation
+	 */
+	private static void measure( String name, int numProducts, Workload workload ) throws IOException
+	{
+		if( null != only && false == name.equals( only ) )
+		{
+			return;
+		}
+		
+		runFor( workload, measureNanos / 2 );
+		
+		long allocatedBefore	= allocatedBytes();
+		long started			= System.nanoTime();
+		long ops				= runFor( workload, measureNanos );
+		long elapsed			= System.nanoTime() - started;
+		long allocated			= allocatedBytes() - allocatedBefore;
+		
+		System.out.format( Locale.ROOT, "%-25s%11d%7d%7d%13.1f%15s\n", name, numProducts, numRates, tierDepth, (double)elapsed / ops,
+				( allocatedBefore < 0 ) ? "n/a" : String.format( Locale.ROOT, "%.1f", (double)allocated / ops ) );
+	}
+	
+	/*
+	 * Run the workload in growing batches until the time is up; returns the
+	 * number of operations
+	 */
+	private static long runFor( Workload workload, long nanos ) throws IOException
+	{
+		long started	= System.nanoTime();
+		long ops		= 0;
+		long result		= 0;
+		int batch		= 1;
+		
+		while( System.nanoTime() - started < nanos )
+		{
+			for( int i = 0; i < batch; ++i )
+			{
+				result += workload.run( (int)ops + i );
+			}
+			ops += batch;
+			
+			if( batch < 65536 )
+			{
+				batch *= 2;
+			}
+		}
+		
+		sink += result;
+		return ops;
+	}
+	
+	private static long allocatedBytes()
+	{
+		if( null == threadBean )
+		{
+			return -1;
+		}
+		return threadBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+	
+	/*
+	 * Every product has a retail rate and numRates bulk rates, and half of them a
+	 * tiered rate of tierDepth tiers (see WorkloadGenerator)
+	 */
+	private static void writeCatalogue( File file, int numProducts ) throws IOException
+	{
+		WorkloadGenerator generator = new WorkloadGenerator( SEED, numProducts );
+		generator.setNumBulkRates( numRates );
+		generator.setNumTiers( tierDepth );
+		
+		try( Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ), 64 * 1024 ) )
+		{
+			generator.writeCatalogue( out );
+		}
+	}
+	
+}
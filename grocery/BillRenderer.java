@@ -0,0 +1,532 @@
+package grocery;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Writes bills as bytes into a reusable buffer, in one of four formats:
+ *
+ * TEXT		the invoice printed at the console
+ * 				    orange Buy 2 get 1 50% off      2.38
+ * 				 TOTAL DUE                    $     2.38
+ * PIPE		'|' delimited lines, as written by BatchPricer (the default for batches)
+ * 				B0001|orange|Buy 2 get 1 50% off|2.38
+ * 				B0001|TOTAL DUE||2.38
+ * CSV		the same as comma separated values, quoted where needed
+ * 				B0001,orange,Buy 2 get 1 50% off,2.38
+ * JSON		one object per bill and line
+ * 				{"basket":"B0001","items":[{"product":"orange","description":"Buy 2 get 1 50% off",
+ * 				 "cost":2.38}],"total":2.38}
+ *
+ * Nothing is allocated per line: amounts are formatted digit by digit, and the
+ * bytes of each product name and rate description are encoded (and escaped for
+ * the format) once and kept in a cache of SYMBOL_SLOTS entries, by SymbolTable id.
+ * Only basket ids that need escaping or are not ASCII are encoded on each bill.
+ * The bytes are always UTF-8.
+ *
+ * With an OutputStream or channel the buffer is written out in blocks of about
+ * BLOCK_SIZE bytes, and by flush.  Without one the bills accumulate until they are
+ * taken with toByteArray.  A renderer is used by one thread at a time.
+ *
+ */
+public class BillRenderer
+{
+	
+	enum Format
+	{
+		TEXT, PIPE, CSV, JSON
+	}
+	
+	private static final int BLOCK_SIZE		= 64 * 1024;
+	private static final int SYMBOL_BITS	= 12;
+	private static final int SYMBOL_SLOTS	= 1 << SYMBOL_BITS;
+	private static final String TOTAL_LABEL	= "TOTAL DUE";
+	private static final byte[] HEX_DIGITS	= { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	
+	private final Format format;
+	private final Charset charset;
+	private final OutputStream out;
+	private final WritableByteChannel channel;
+	
+	private byte[] buf;
+	private int pos;
+	private ByteBuffer channelBuffer;
+	
+	/*
+	 * The encoded bytes of recently used symbols, and their width in characters
+	 * for TEXT.  A symbol has one slot, picked by its id; another symbol for the
+	 * same slot replaces it, so the cache stays the same size however many
+	 * symbols the table holds
+	 */
+	private final int[] symbolIds;
+	private final byte[][] symbolBytes;
+	private final int[] symbolWidths;
+	private final byte[] totalLabel;
+	
+	/*
+	 * Scratch space for the digits of an amount, written backwards
+	 */
+	private final byte[] digits = new byte[ 24 ];
+	
+	/*
+	 * Render into memory, see toByteArray
+	 */
+	BillRenderer( Format inFormat )
+	{
+		this( inFormat, null, null );
+	}
+	
+	BillRenderer( Format inFormat, OutputStream inOut )
+	{
+		this( inFormat, inOut, null );
+	}
+	
+	BillRenderer( Format inFormat, WritableByteChannel inChannel )
+	{
+		this( inFormat, null, inChannel );
+	}
+	
+	private BillRenderer( Format inFormat, OutputStream inOut, WritableByteChannel inChannel )
+	{
+		this.format			= inFormat;
+		this.charset		= StandardCharsets.UTF_8;
+		this.out			= inOut;
+		this.channel		= inChannel;
+		this.buf			= new byte[ 2 * BLOCK_SIZE ];
+		this.pos			= 0;
+		this.symbolIds		= new int[ SYMBOL_SLOTS ];
+		this.symbolBytes	= new byte[ SYMBOL_SLOTS ][];
+		this.symbolWidths	= new int[ SYMBOL_SLOTS ];
+		this.totalLabel		= this.escape( TOTAL_LABEL );
+	}
+	
+	public Format getFormat()
+	{
+		return this.format;
+	}
+	
+	/*
+	 * Render the bill of a basket.  basketId may be null for TEXT, e.g. at the console
+	 */
+	public void render( String basketId, List<PurchasedProduct> purchasedItems ) throws IOException
+	{
+		long started = ( true == Metrics.ENABLED ) ? System.nanoTime() : 0;
+		
+		switch( this.format )
+		{
+			case TEXT:
+				this.renderText( basketId, purchasedItems );
+				break;
+			
+			case JSON:
+				this.renderJson( basketId, purchasedItems );
+				break;
+			
+			default:
+				this.renderDelimited( basketId, purchasedItems, ( Format.CSV == this.format ) ? (byte)',' : (byte)'|' );
+				break;
+		}
+		
+		if( true == Metrics.ENABLED )
+		{
+			Metrics.BILL.record( System.nanoTime() - started );
+			Metrics.BILL_LINES.add( purchasedItems.size() );
+		}
+		
+		if( this.pos >= BLOCK_SIZE && true == this.hasSink() )
+		{
+			this.writeBlock();
+		}
+	}
+	
+	/*
+	 * Write out whatever is buffered
+	 */
+	public void flush() throws IOException
+	{
+		if( false == this.hasSink() )
+		{
+			return;
+		}
+		
+		this.writeBlock();
+		if( null != this.out )
+		{
+			this.out.flush();
+		}
+	}
+	
+	/*
+	 * The bytes rendered since the last reset, when rendering into memory
+	 */
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOf( this.buf, this.pos );
+	}
+	
+	public int size()
+	{
+		return this.pos;
+	}
+	
+	public void reset()
+	{
+		this.pos = 0;
+	}
+	
+	/*
+	 * The '|' or ',' delimited lines of a bill
+	 */
+	private void renderDelimited( String basketId, List<PurchasedProduct> purchasedItems, byte separator )
+	{
+		long totalDue = 0;
+		
+		for( int i = 0; i < purchasedItems.size(); ++i )
+		{
+			PurchasedProduct pp = purchasedItems.get( i );
+			
+			this.putText( basketId );
+			this.put( separator );
+			this.putSymbol( pp.getPurchasedProductNameId() );
+			this.put( separator );
+			this.putSymbol( pp.getPurchasedRateDescrId() );
+			this.put( separator );
+			this.putCents( pp.getPurchasedCost() );
+			this.put( (byte)'\n' );
+			
+			totalDue += pp.getPurchasedCost();
+		}
+		
+		this.putText( basketId );
+		this.put( separator );
+		this.put( this.totalLabel );
+		this.put( separator );
+		this.put( separator );
+		this.putCents( totalDue );
+		this.put( (byte)'\n' );
+	}
+	
+	/*
+	 * The console invoice: fixed width columns of 10, 20 and 10 characters
+	 */
+	private void renderText( String basketId, List<PurchasedProduct> purchasedItems )
+	{
+		long totalDue = 0;
+		
+		this.putAscii( "\nHere is your invoice" );
+		if( null != basketId )
+		{
+			this.putAscii( " for [" );
+			this.putText( basketId );
+			this.put( (byte)']' );
+		}
+		this.putAscii( ":\n" );
+		
+		for( int i = 0; i < purchasedItems.size(); ++i )
+		{
+			PurchasedProduct pp	= purchasedItems.get( i );
+			int productId		= pp.getPurchasedProductNameId();
+			int descrId			= pp.getPurchasedRateDescrId();
+			
+			this.putSymbol( productId, 10 );
+			this.putSymbol( descrId, 20 );
+			this.putSpaces( 10 - centsWidth( pp.getPurchasedCost() ) );
+			this.putCents( pp.getPurchasedCost() );
+			this.put( (byte)'\n' );
+			
+			totalDue += pp.getPurchasedCost();
+		}
+		
+		this.put( (byte)'\n' );
+		this.putSpaces( 10 - TOTAL_LABEL.length() );
+		this.put( this.totalLabel );
+		this.putSpaces( 20 );
+		this.put( (byte)'$' );
+		this.putSpaces( 9 - centsWidth( totalDue ) );
+		this.putCents( totalDue );
+		this.put( (byte)'\n' );
+	}
+	
+	private void renderJson( String basketId, List<PurchasedProduct> purchasedItems )
+	{
+		long totalDue = 0;
+		
+		this.putAscii( "{\"basket\":\"" );
+		this.putText( basketId );
+		this.putAscii( "\",\"items\":[" );
+		
+		for( int i = 0; i < purchasedItems.size(); ++i )
+		{
+			PurchasedProduct pp = purchasedItems.get( i );
+			
+			this.putAscii( ( 0 == i ) ? "{\"product\":\"" : ",{\"product\":\"" );
+			this.putSymbol( pp.getPurchasedProductNameId() );
+			this.putAscii( "\",\"description\":\"" );
+			this.putSymbol( pp.getPurchasedRateDescrId() );
+			this.putAscii( "\",\"cost\":" );
+			this.putCents( pp.getPurchasedCost() );
+			this.put( (byte)'}' );
+			
+			totalDue += pp.getPurchasedCost();
+		}
+		
+		this.putAscii( "],\"total\":" );
+		this.putCents( totalDue );
+		this.putAscii( "}\n" );
+	}
+	
+	private boolean hasSink()
+	{
+		return null != this.out || null != this.channel;
+	}
+	
+	private void writeBlock() throws IOException
+	{
+		if( 0 == this.pos )
+		{
+			return;
+		}
+		
+		if( null != this.out )
+		{
+			this.out.write( this.buf, 0, this.pos );
+		}
+		else
+		{
+			if( null == this.channelBuffer || this.channelBuffer.array() != this.buf )
+			{
+				this.channelBuffer = ByteBuffer.wrap( this.buf );
+			}
+			
+			this.channelBuffer.clear().limit( this.pos );
+			while( this.channelBuffer.hasRemaining() )
+			{
+				this.channel.write( this.channelBuffer );
+			}
+		}
+		
+		this.pos = 0;
+	}
+	
+	/*
+	 * Make room for n more bytes.  The buffer only grows when rendering into
+	 * memory or for a bill larger than the buffer
+	 */
+	private void ensure( int n )
+	{
+		if( this.pos + n > this.buf.length )
+		{
+			this.buf = Arrays.copyOf( this.buf, Math.max( 2 * this.buf.length, this.pos + n ) );
+		}
+	}
+	
+	private void put( byte b )
+	{
+		this.ensure( 1 );
+		this.buf[ this.pos++ ] = b;
+	}
+	
+	private void put( byte[] bytes )
+	{
+		this.ensure( bytes.length );
+		System.arraycopy( bytes, 0, this.buf, this.pos, bytes.length );
+		this.pos += bytes.length;
+	}
+	
+	/*
+	 * Markup of the format, which is plain ASCII
+	 */
+	private void putAscii( String text )
+	{
+		this.ensure( text.length() );
+		for( int i = 0; i < text.length(); ++i )
+		{
+			this.buf[ this.pos++ ] = (byte)text.charAt( i );
+		}
+	}
+	
+	private void putSpaces( int count )
+	{
+		if( count <= 0 )
+		{
+			return;
+		}
+		
+		this.ensure( count );
+		Arrays.fill( this.buf, this.pos, this.pos + count, (byte)' ' );
+		this.pos += count;
+	}
+	
+	/*
+	 * Text that is not a symbol, e.g. a basket id.  Plain ASCII is copied as is;
+	 * anything else is escaped and encoded
+	 */
+	private void putText( String text )
+	{
+		for( int i = 0; i < text.length(); ++i )
+		{
+			char c = text.charAt( i );
+			if( c >= 0x80 || true == this.needsEscape( c ) )
+			{
+				this.put( this.escape( text ) );
+				return;
+			}
+		}
+		
+		this.putAscii( text );
+	}
+	
+	private void putSymbol( int id )
+	{
+		this.put( this.symbolBytes[ this.symbol( id ) ] );
+	}
+	
+	/*
+	 * A symbol right aligned in width characters, as %10s would
+	 */
+	private void putSymbol( int id, int width )
+	{
+		int slot = this.symbol( id );
+		
+		this.putSpaces( width - this.symbolWidths[ slot ] );
+		this.put( this.symbolBytes[ slot ] );
+	}
+	
+	/*
+	 * The cache slot holding the bytes of a symbol, encoding them if the slot
+	 * holds another symbol or none
+	 */
+	private int symbol( int id )
+	{
+		int slot = ( id * 0x9E3779B9 ) >>> ( 32 - SYMBOL_BITS );
+		
+		if( null == this.symbolBytes[ slot ] || id != this.symbolIds[ slot ] )
+		{
+			String text					= SymbolTable.symbol( id );
+			this.symbolIds[ slot ]		= id;
+			this.symbolBytes[ slot ]	= this.escape( text );
+			this.symbolWidths[ slot ]	= text.length();
+		}
+		
+		return slot;
+	}
+	
+	/*
+	 * Amounts in cents as e.g. 15.59 or -0.05, see Money.appendCents
+	 */
+	private void putCents( long inCents )
+	{
+		long magnitude	= Math.abs( inCents );
+		int n			= 0;
+		
+		this.digits[ n++ ] = (byte)( '0' + magnitude % 10 );
+		magnitude /= 10;
+		this.digits[ n++ ] = (byte)( '0' + magnitude % 10 );
+		magnitude /= 10;
+		this.digits[ n++ ] = (byte)'.';
+		
+		do
+		{
+			this.digits[ n++ ] = (byte)( '0' + magnitude % 10 );
+			magnitude /= 10;
+		}
+		while( magnitude > 0 );
+		
+		if( inCents < 0 )
+		{
+			this.digits[ n++ ] = (byte)'-';
+		}
+		
+		this.ensure( n );
+		while( n > 0 )
+		{
+			this.buf[ this.pos++ ] = this.digits[ --n ];
+		}
+	}
+	
+	/*
+	 * The number of characters putCents writes
+	 */
+	private static int centsWidth( long inCents )
+	{
+		long whole	= Math.abs( inCents ) / 100;
+		int width	= ( inCents < 0 ) ? 4 : 3;
+		
+		do
+		{
+			++width;
+			whole /= 10;
+		}
+		while( whole > 0 );
+		
+		return width;
+	}
+	
+	private boolean needsEscape( char c )
+	{
+		switch( this.format )
+		{
+			case JSON:
+				return '"' == c || '\\' == c || c < 0x20;
+			
+			case CSV:
+				return ',' == c || '"' == c || '\n' == c || '\r' == c;
+			
+			default:
+				return false;
+		}
+	}
+	
+	/*
+	 * The bytes of text as the format needs them: JSON string escapes, or a quoted
+	 * CSV field with doubled quotes
+	 */
+	private byte[] escape( String text )
+	{
+		boolean escaped = false;
+		for( int i = 0; i < text.length() && false == escaped; ++i )
+		{
+			escaped = this.needsEscape( text.charAt( i ) );
+		}
+		
+		if( false == escaped )
+		{
+			return text.getBytes( this.charset );
+		}
+		
+		StringBuilder sb = new StringBuilder( text.length() + 8 );
+		
+		if( Format.CSV == this.format )
+		{
+			sb.append( '"' ).append( text.replace( "\"", "\"\"" ) ).append( '"' );
+			return sb.toString().getBytes( this.charset );
+		}
+		
+		for( int i = 0; i < text.length(); ++i )
+		{
+			char c = text.charAt( i );
+			
+			if( '"' == c || '\\' == c )
+			{
+				sb.append( '\\' ).append( c );
+			}
+			else if( c < 0x20 )
+			{
+				sb.append( "\\u00" ).append( (char)HEX_DIGITS[ c >> 4 ] ).append( (char)HEX_DIGITS[ c & 0xf ] );
+			}
+			else
+			{
+				sb.append( c );
+			}
+		}
+		
+		return sb.toString().getBytes( this.charset );
+	}
+
+}
@@ -0,0 +1,1167 @@
+package grocery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Prices a basket with the cheapest set of promotions that span products (see
+ * PromotionCatalogue), each unit of the basket going into at most one of them
+ *
+ * The basket's products are looked up in the promotion index, so only the rules of
+ * its own products are considered, and a rule is kept as a candidate if the basket
+ * holds enough units for it.  A unit that goes into a bundle is taken off what the
+ * PricingEngine rates for its product, so the saving of a bundle is what the engine
+ * would have charged for the units it takes less the price of the bundle.  What the
+ * engine charges for each quantity of a product is worked out once per basket, as
+ * the search first needs it.
+ *
+ * A MIX bundle takes, one at a time, the unit whose product would cost the most to
+ * leave with the engine.  A PAIR takes one unit of its first product, which is
+ * still charged as usual, and one unit of the second at the percentage off the
+ * engine's price of one unit.
+ *
+ * Candidates that share no products are searched apart.  Within each group the
+ * bundle that saves the most, applied as many times as pays, is taken first; then
+ * every choice of units for every candidate is tried depth first, and a branch is
+ * dropped as soon as a lower bound on what the rest of the basket can cost shows
+ * it can not beat the best set so far.  The search stops after a fixed number of
+ * steps with the best set it has found, so a very large basket is priced at least
+ * as well as the greedy pass prices it.  Baskets with no candidates are rated by
+ * the engine as they are.
+ *
+ * The work on a basket is bounded by its units as well as by the steps of the
+ * search.  The search only looks at the first BUNDLE_UNITS whole units of an item,
+ * and BASKET_UNITS in all, and prices that part of the item with the engine as if
+ * it were all there is.  The units past it are then put into bundles a block at a
+ * time: each candidate, in turn, takes as many bundles as it can from the units
+ * left of one item at once, and keeps them if they save anything, which takes two
+ * calls to the engine however many bundles there are.  Units no block takes stay
+ * with the engine, and the bill rates all the units left of an item in one go.  A
+ * basket of many thousands of units of a product is then priced in the time of a
+ * few hundred.
+ *
+ * The bill has the products that are left for the engine, in basket order, then a
+ * line for each bundle.  A MIX bundle goes on the bill under the id of its rule,
+ * a PAIR under its discounted product with the description of its rule.
+ *
+ * An optimizer is used by one thread at a time.  It is cheap to make, and keeps
+ * its working space from one basket to the next.
+ *
+ */
+public class BundleOptimizer
+{
+	
+	/*
+	 * Sets of bundles the depth first search of one basket may look at
+	 */
+	private static final int SEARCH_STEPS	= 1024;
+	
+	/*
+	 * Items with more units than this are left out of the bound of the search
+	 */
+	private static final int BOUNDED_UNITS	= 64;
+	
+	/*
+	 * Whole units of one item, and of the whole basket, that may go into bundles
+	 */
+	private static final int BUNDLE_UNITS	= 256;
+	private static final int BASKET_UNITS	= 2048;
+	
+	private static final long NOT_APPLIED	= Long.MIN_VALUE;
+	
+	private final PromotionCatalogue promotions;
+	private final PricingEngine pricingEngine;
+	private final ArrayList<PurchasedProduct> scratch;
+	
+	/*
+	 * The basket items: whole units that may go into bundles, the quantity the
+	 * search prices them in (those units and any fraction), units in bundles, and of
+	 * those the units charged by the bundle rather than the engine
+	 */
+	private Basket basket;
+	private int[] units;
+	private double[] pooled;
+	private int[] unitsPast;
+	private int[] used;
+	private int[] consumed;
+	
+	/*
+	 * What the engine charges, in cents, for one unit of each item (-1 until it is
+	 * needed) and for the item's quantity less k units, known for k < numCosts
+	 */
+	private long[] unitCost;
+	private long[][] remainderCost;
+	private int[] numCosts;
+	
+	/*
+	 * The bound of the search.  A unit of item i never goes into a bundle for less
+	 * than unitFloor[ i ] cents (Long.MAX_VALUE if no candidate takes it), so with
+	 * k or more units in bundles the item costs at least the engine's charge for
+	 * the rest plus unitFloor a unit; leastCost[ i ][ k ] is the least of that, plus
+	 * k units at unitFloor.  slack is how much less than now all the items could
+	 * cost that way, so no set of bundles grown from the current one costs less
+	 * than total - slack
+	 */
+	private long[] unitFloor;
+	private long[][] leastCost;
+	private long slack;
+	
+	/*
+	 * The candidate rules, found by an open addressing hash table of their rule
+	 * ids (index + 1, 0 is an empty slot) that is never more than half full.  The
+	 * basket items that a MIX candidate can take from are a linked list of members
+	 */
+	private int[] slots;
+	private int numCandidates;
+	private int[] candidateRule;
+	private int[] candidateSlot;
+	private int[] candidateUnits;
+	private int[] candidateMembers;
+	private int[] candidateFirst;
+	private int[] candidateSecond;
+	private int[] candidateComponent;
+	
+	private int numMembers;
+	private int[] memberItem;
+	private int[] memberNext;
+	
+	/*
+	 * The candidates the basket has units for, by component, the most saving first.
+	 * Items that no candidate links are in different components, which are searched
+	 * one after the other: what is best for one does not change what is best for
+	 * another.  componentOf holds the union-find tree of the items
+	 */
+	private int numOrdered;
+	private int[] ordered;
+	private int[] orderedScratch;
+	private long[] orderKeys;
+	private int orderedEnd;
+	private int[] componentOf;
+	
+	/*
+	 * The bundles applied so far, and the units each took (the index of the item, or
+	 * -1 - index for a unit that stays with the engine).  total is the change in the
+	 * basket's cost, in cents, that they make; the best set starts as no bundles
+	 */
+	private int numApplied;
+	private int[] appliedCandidate;
+	private int[] appliedUnitsEnd;
+	private long[] appliedSaving;
+	private int numTaken;
+	private int[] takenUnits;
+	private long total;
+	
+	/*
+	 * The cheapest set seen so far for the component being searched, along with the
+	 * bundles of the components before it
+	 */
+	private int numBest;
+	private int[] bestCandidate;
+	private int[] bestUnitsEnd;
+	private long[] bestSaving;
+	private int numBestTaken;
+	private int[] bestTakenUnits;
+	private long bestTotal;
+	
+	/*
+	 * The slack of the items outside the component being searched, and the steps
+	 * left to search it
+	 */
+	private long slackOutside;
+	private int stepsLeft;
+	
+	BundleOptimizer( PromotionCatalogue inPromotions, PricingEngine inPricingEngine )
+	{
+		this.promotions		= inPromotions;
+		this.pricingEngine	= inPricingEngine;
+		this.scratch		= new ArrayList<PurchasedProduct>( 8 );
+		
+		this.units			= new int[ 16 ];
+		this.pooled			= new double[ 16 ];
+		this.unitsPast		= new int[ 16 ];
+		this.used			= new int[ 16 ];
+		this.consumed		= new int[ 16 ];
+		this.unitCost		= new long[ 16 ];
+		this.remainderCost	= new long[ 16 ][];
+		this.numCosts		= new int[ 16 ];
+		this.unitFloor		= new long[ 16 ];
+		this.leastCost		= new long[ 16 ][];
+		
+		this.slots				= new int[ 32 ];
+		this.candidateRule		= new int[ 16 ];
+		this.candidateSlot		= new int[ 16 ];
+		this.candidateUnits		= new int[ 16 ];
+		this.candidateMembers	= new int[ 16 ];
+		this.candidateFirst		= new int[ 16 ];
+		this.candidateSecond	= new int[ 16 ];
+		this.candidateComponent	= new int[ 16 ];
+		this.memberItem			= new int[ 16 ];
+		this.memberNext			= new int[ 16 ];
+		this.ordered			= new int[ 16 ];
+		this.orderedScratch		= new int[ 16 ];
+		this.orderKeys			= new long[ 16 ];
+		this.componentOf		= new int[ 16 ];
+		
+		this.appliedCandidate	= new int[ 16 ];
+		this.appliedUnitsEnd	= new int[ 16 ];
+		this.appliedSaving		= new long[ 16 ];
+		this.takenUnits			= new int[ 16 ];
+		this.bestCandidate		= new int[ 16 ];
+		this.bestUnitsEnd		= new int[ 16 ];
+		this.bestSaving			= new long[ 16 ];
+		this.bestTakenUnits		= new int[ 16 ];
+	}
+	
+	/*
+	 * Add the purchased products and bundles of a basket to outItems
+	 */
+	public void rate( Basket inBasket, List<PurchasedProduct> outItems )
+	{
+		this.startBasket( inBasket );
+		this.collectCandidates();
+		
+		if( this.numOrdered > 0 )
+		{
+			this.prepareBound();
+			this.orderCandidates();
+			
+			int to;
+			for( int from = 0; from < this.numOrdered; from = to )
+			{
+				int component = this.candidateComponent[ this.ordered[ from ] ];
+				for( to = from + 1; to < this.numOrdered && component == this.candidateComponent[ this.ordered[ to ] ]; ++to )
+				{
+				}
+				
+				this.searchComponent( from, to );
+			}
+			
+			this.bundlePast();
+		}
+		
+		this.writeBill( outItems );
+		this.clear();
+	}
+	
+	private void startBasket( Basket inBasket )
+	{
+		int numItems = inBasket.size();
+		
+		if( numItems > this.units.length )
+		{
+			int capacity		= Math.max( numItems, 2 * this.units.length );
+			this.units			= new int[ capacity ];
+			this.pooled			= new double[ capacity ];
+			this.unitsPast		= new int[ capacity ];
+			this.used			= new int[ capacity ];
+			this.consumed		= new int[ capacity ];
+			this.unitCost		= new long[ capacity ];
+			this.remainderCost	= Arrays.copyOf( this.remainderCost, capacity );
+			this.numCosts		= new int[ capacity ];
+			this.unitFloor		= new long[ capacity ];
+			this.leastCost		= Arrays.copyOf( this.leastCost, capacity );
+			this.componentOf	= new int[ capacity ];
+		}
+		
+		this.basket = inBasket;
+		
+		int unitsLeft = BASKET_UNITS;
+		for( int i = 0; i < numItems; ++i )
+		{
+			double quantity		= inBasket.getQuantity( i );
+			double wholeUnits	= ( quantity >= 1 ) ? Math.floor( quantity ) : 0;
+			
+			this.units[ i ]		= (int)Math.min( wholeUnits, Math.min( BUNDLE_UNITS, unitsLeft ) );
+			this.pooled[ i ]	= ( wholeUnits == this.units[ i ] ) ? quantity : quantity - ( wholeUnits - this.units[ i ] );
+			this.unitsPast[ i ]	= (int)Math.min( wholeUnits - this.units[ i ], Integer.MAX_VALUE - this.units[ i ] );
+			unitsLeft			-= this.units[ i ];
+			this.used[ i ]		= 0;
+			this.consumed[ i ]	= 0;
+			this.unitCost[ i ]	= -1;
+			this.numCosts[ i ]	= 0;
+			this.unitFloor[ i ]	= Long.MAX_VALUE;
+			this.componentOf[ i ]	= i;
+		}
+	}
+	
+	/*
+	 * Walk the rules of each item and keep those the basket has the units for
+	 */
+	private void collectCandidates()
+	{
+		for( int i = 0; i < this.basket.size(); ++i )
+		{
+			if( 0 == this.units[ i ] )
+			{
+				continue;
+			}
+			
+			int productNameId	= this.basket.getProduct( i ).getProductNameId();
+			int last			= this.promotions.lastRuleOf( productNameId );
+			
+			for( int k = this.promotions.firstRuleOf( productNameId ); k < last; ++k )
+			{
+				int c = this.candidateOf( this.promotions.ruleIdAt( k ) );
+				PromotionCatalogue.Rule rule = this.promotions.getRule( this.candidateRule[ c ] );
+				
+				if( PromotionCatalogue.Kind.MIX == rule.kind )
+				{
+					this.candidateUnits[ c ] = (int)Math.min( (long)this.candidateUnits[ c ] + this.units[ i ], Integer.MAX_VALUE );
+					this.addMember( c, i );
+					continue;
+				}
+				
+				if( productNameId == rule.productNameIds[ 0 ] )
+				{
+					this.candidateFirst[ c ] = i;
+				}
+				if( productNameId == rule.productNameIds[ 1 ] )
+				{
+					this.candidateSecond[ c ] = i;
+				}
+			}
+		}
+		
+		for( int c = 0; c < this.numCandidates; ++c )
+		{
+			PromotionCatalogue.Rule rule = this.promotions.getRule( this.candidateRule[ c ] );
+			boolean enoughUnits;
+			
+			if( PromotionCatalogue.Kind.MIX == rule.kind )
+			{
+				enoughUnits = ( this.candidateUnits[ c ] >= rule.units );
+			}
+			else
+			{
+				int first	= this.candidateFirst[ c ];
+				int second	= this.candidateSecond[ c ];
+				enoughUnits	= ( first >= 0 && second >= 0 && ( first != second || this.units[ first ] >= 2 ) );
+			}
+			
+			if( true == enoughUnits )
+			{
+				if( this.numOrdered == this.ordered.length )
+				{
+					this.ordered		= Arrays.copyOf( this.ordered, 2 * this.numOrdered );
+					this.orderedScratch	= new int[ 2 * this.numOrdered ];
+					this.orderKeys		= Arrays.copyOf( this.orderKeys, 2 * this.numOrdered );
+				}
+				this.ordered[ this.numOrdered++ ] = c;
+			}
+		}
+	}
+	
+	/*
+	 * Work out the least a unit of each item goes into a bundle for, the least each
+	 * item can cost, and the slack of the basket before any bundle
+	 */
+	private void prepareBound()
+	{
+		for( int o = 0; o < this.numOrdered; ++o )
+		{
+			int c							= this.ordered[ o ];
+			PromotionCatalogue.Rule rule	= this.promotions.getRule( this.candidateRule[ c ] );
+			
+			if( PromotionCatalogue.Kind.MIX == rule.kind )
+			{
+				long perUnit = Money.toCents( rule.rate.getEffectivePrice() ) / rule.units;
+				for( int m = this.candidateMembers[ c ]; m >= 0; m = this.memberNext[ m ] )
+				{
+					int i				= this.memberItem[ m ];
+					this.unitFloor[ i ]	= Math.min( this.unitFloor[ i ], perUnit );
+				}
+			}
+			else
+			{
+				int i				= this.candidateSecond[ c ];
+				this.unitFloor[ i ]	= Math.min( this.unitFloor[ i ], Money.toCents( this.pairedPrice( i, rule ) ) );
+			}
+		}
+		
+		this.slack = 0;
+		
+		for( int i = 0; i < this.basket.size(); ++i )
+		{
+			int numUnits = this.units[ i ];
+			if( Long.MAX_VALUE == this.unitFloor[ i ] || numUnits > BOUNDED_UNITS )
+			{
+				this.slack += this.slackOf( i );
+				continue;
+			}
+			
+			long[] least = this.leastCost[ i ];
+			if( null == least )
+			{
+				least = new long[ BOUNDED_UNITS + 1 ];
+				this.leastCost[ i ] = least;
+			}
+			
+			least[ numUnits ] = this.remainderCost( i, numUnits ) + numUnits * this.unitFloor[ i ];
+			for( int k = numUnits - 1; k >= 0; --k )
+			{
+				least[ k ] = Math.min( this.remainderCost( i, k ) + k * this.unitFloor[ i ], least[ k + 1 ] );
+			}
+			
+			this.slack += this.slackOf( i );
+		}
+	}
+	
+	/*
+	 * How much less than now item i could cost with more of its units in bundles
+	 */
+	private long slackOf( int i )
+	{
+		if( Long.MAX_VALUE == this.unitFloor[ i ] )
+		{
+			return 0;
+		}
+		
+		int k = this.consumed[ i ];
+		return ( this.units[ i ] <= BOUNDED_UNITS )
+				? this.remainderCost( i, k ) + k * this.unitFloor[ i ] - this.leastCost[ i ][ k ]
+				: this.remainderCost( i, k );
+	}
+	
+	/*
+	 * Sort the candidates by what they save on their own, the most first, so the
+	 * search meets the good sets early, then group them by component
+	 */
+	private void orderCandidates()
+	{
+		for( int o = 0; o < this.numOrdered; ++o )
+		{
+			int c			= this.ordered[ o ];
+			long saving		= this.apply( c );
+			
+			if( NOT_APPLIED != saving )
+			{
+				this.undo();
+			}
+			else
+			{
+				saving = Integer.MIN_VALUE + 1;
+			}
+			
+			long rank			= -Math.max( Integer.MIN_VALUE + 1, Math.min( Integer.MAX_VALUE, saving ) );
+			this.orderKeys[ o ]	= ( rank << 32 ) | c;
+		}
+		
+		Arrays.sort( this.orderKeys, 0, this.numOrdered );
+		
+		for( int o = 0; o < this.numOrdered; ++o )
+		{
+			this.orderedScratch[ o ] = (int)this.orderKeys[ o ];
+			this.linkItems( this.orderedScratch[ o ] );
+		}
+		
+		/*
+		 * The components are numbered by their root item; the second sort keeps the
+		 * order within a component
+		 */
+		for( int o = 0; o < this.numOrdered; ++o )
+		{
+			int c						= this.orderedScratch[ o ];
+			this.candidateComponent[ c ]	= this.rootOf( this.memberOrFirst( c ) );
+			this.orderKeys[ o ]			= ( (long)this.candidateComponent[ c ] << 32 ) | o;
+		}
+		
+		Arrays.sort( this.orderKeys, 0, this.numOrdered );
+		
+		for( int o = 0; o < this.numOrdered; ++o )
+		{
+			this.ordered[ o ] = this.orderedScratch[ (int)this.orderKeys[ o ] ];
+		}
+	}
+	
+	/*
+	 * Put the items a candidate takes from in one component
+	 */
+	private void linkItems( int c )
+	{
+		int root = this.rootOf( this.memberOrFirst( c ) );
+		
+		if( this.candidateMembers[ c ] >= 0 )
+		{
+			for( int m = this.candidateMembers[ c ]; m >= 0; m = this.memberNext[ m ] )
+			{
+				this.componentOf[ this.rootOf( this.memberItem[ m ] ) ] = root;
+			}
+		}
+		else
+		{
+			this.componentOf[ this.rootOf( this.candidateSecond[ c ] ) ] = root;
+		}
+	}
+	
+	/*
+	 * An item the candidate takes from
+	 */
+	private int memberOrFirst( int c )
+	{
+		return ( this.candidateMembers[ c ] >= 0 ) ? this.memberItem[ this.candidateMembers[ c ] ] : this.candidateFirst[ c ];
+	}
+	
+	private int rootOf( int i )
+	{
+		while( this.componentOf[ i ] != i )
+		{
+			this.componentOf[ i ] = this.componentOf[ this.componentOf[ i ] ];
+			i = this.componentOf[ i ];
+		}
+		return i;
+	}
+	
+	/*
+	 * Find the cheapest set of the ordered candidates from to to, which are one
+	 * component, over the bundles of the components before it, and apply it
+	 */
+	private void searchComponent( int from, int to )
+	{
+		int numBefore	= this.numApplied;
+		int component	= this.candidateComponent[ this.ordered[ from ] ];
+		
+		this.orderedEnd		= to;
+		this.stepsLeft		= SEARCH_STEPS;
+		this.slackOutside	= this.slack;
+		
+		for( int i = 0; i < this.basket.size(); ++i )
+		{
+			if( component == this.rootOf( i ) )
+			{
+				this.slackOutside -= this.slackOf( i );
+			}
+		}
+		
+		this.bestTotal = Long.MAX_VALUE;
+		this.keepIfBest();
+		
+		this.applyMostSaving( from, to );
+		this.keepIfBest();
+		this.undoTo( numBefore );
+		
+		this.searchFrom( from );
+		this.undoTo( numBefore );
+		
+		/*
+		 * Apply the best set again, from where it differs from the bundles before
+		 */
+		for( int a = numBefore; a < this.numBest; ++a )
+		{
+			for( int u = ( 0 == a ) ? 0 : this.bestUnitsEnd[ a - 1 ]; u < this.bestUnitsEnd[ a ]; ++u )
+			{
+				int i = this.bestTakenUnits[ u ];
+				this.take( ( i >= 0 ) ? i : -1 - i, i >= 0 );
+			}
+			this.push( this.bestCandidate[ a ], this.bestSaving[ a ] );
+		}
+	}
+	
+	/*
+	 * Apply the candidate that saves the most, as many times as saves the most,
+	 * until none saves anything.  A candidate is tried more than once at a time
+	 * because units taken out of a bulk rate may only save once enough are taken
+	 */
+	private void applyMostSaving( int from, int to )
+	{
+		while( true )
+		{
+			int bestCandidate	= -1;
+			int bestTimes		= 0;
+			long mostSaving		= 0;
+			
+			for( int o = from; o < to; ++o )
+			{
+				int c			= this.ordered[ o ];
+				int times		= 0;
+				long saving		= 0;
+				long applied;
+				
+				while( NOT_APPLIED != ( applied = this.apply( c ) ) )
+				{
+					saving += applied;
+					++times;
+					
+					if( saving > mostSaving )
+					{
+						bestCandidate	= c;
+						bestTimes		= times;
+						mostSaving		= saving;
+					}
+				}
+				
+				for( ; times > 0; --times )
+				{
+					this.undo();
+				}
+			}
+			
+			if( bestCandidate < 0 )
+			{
+				return;
+			}
+			
+			for( ; bestTimes > 0; --bestTimes )
+			{
+				this.apply( bestCandidate );
+			}
+		}
+	}
+	
+	/*
+	 * Apply each candidate from the o'th on, and again after itself, with every
+	 * choice of units, keeping the cheapest set seen.  Bundles that cost more on
+	 * their own are tried too, since taking units out of a bulk rate can cost more
+	 * until enough of them are taken
+	 */
+	private void searchFrom( int o )
+	{
+		--this.stepsLeft;
+		this.keepIfBest();
+		
+		if( this.total - ( this.slack - this.slackOutside ) >= this.bestTotal )
+		{
+			return;
+		}
+		
+		for( ; o < this.orderedEnd && this.stepsLeft > 0; ++o )
+		{
+			int c							= this.ordered[ o ];
+			PromotionCatalogue.Rule rule	= this.promotions.getRule( this.candidateRule[ c ] );
+			
+			if( PromotionCatalogue.Kind.MIX == rule.kind )
+			{
+				long price		= Money.toCents( rule.rate.getEffectivePrice() );
+				int lastUnits	= ( this.numApplied > 0 && c == this.appliedCandidate[ this.numApplied - 1 ] )
+						? this.appliedUnitsEnd[ this.numApplied - 1 ] - rule.units
+						: -1;
+				
+				this.searchUnits( o, c, this.candidateMembers[ c ], rule.units, -price, price / rule.units, lastUnits );
+			}
+			else if( NOT_APPLIED != this.apply( c ) )
+			{
+				this.searchFrom( o );
+				this.undo();
+			}
+		}
+	}
+	
+	/*
+	 * Take the units still needed by the o'th candidate, a MIX, from its members
+	 * from m on, then go on searching with the bundle applied.
+	 * 
+	 * The units still needed are paid for by the price of the bundle, not by the
+	 * slack, which counts no more than perUnit for each of them.  A candidate
+	 * applied again takes its units in the same order as before or later
+	 * (sameFrom, while they are the same as those taken by the bundle before it,
+	 * is where that bundle's units are), so each set of bundles is seen once
+	 */
+	private void searchUnits( int o, int c, int m, int unitsNeeded, long saving, long perUnit, int sameFrom )
+	{
+		if( this.total - saving - ( this.slack - this.slackOutside ) - unitsNeeded * perUnit >= this.bestTotal )
+		{
+			return;
+		}
+		
+		if( 0 == unitsNeeded )
+		{
+			this.push( c, saving );
+			this.searchFrom( o );
+			this.pop();
+			return;
+		}
+		
+		for( ; m >= 0 && this.stepsLeft > 0; m = this.memberNext[ m ] )
+		{
+			int i = this.memberItem[ m ];
+			
+			/*
+			 * Members are listed from the last item in the basket to the first
+			 */
+			if( sameFrom >= 0 && i > this.takenUnits[ sameFrom ] )
+			{
+				continue;
+			}
+			
+			if( this.used[ i ] < this.units[ i ] )
+			{
+				int nextSameFrom	= ( sameFrom >= 0 && i == this.takenUnits[ sameFrom ] ) ? sameFrom + 1 : -1;
+				long saved			= this.unitSaving( i );
+				
+				--this.stepsLeft;
+				this.take( i, true );
+				this.searchUnits( o, c, m, unitsNeeded - 1, saving + saved, perUnit, nextSameFrom );
+				this.release( this.numTaken - 1 );
+			}
+		}
+	}
+	
+	/*
+	 * Put the units past what the search looked at into bundles, a block of bundles
+	 * of one candidate at a time, the most saving candidates first.  A MIX block
+	 * takes its units from one item
+	 */
+	private void bundlePast()
+	{
+		for( int o = 0; o < this.numOrdered; ++o )
+		{
+			int c							= this.ordered[ o ];
+			PromotionCatalogue.Rule rule	= this.promotions.getRule( this.candidateRule[ c ] );
+			
+			if( PromotionCatalogue.Kind.MIX == rule.kind )
+			{
+				long price = Money.toCents( rule.rate.getEffectivePrice() );
+				
+				for( int m = this.candidateMembers[ c ]; m >= 0; m = this.memberNext[ m ] )
+				{
+					int i		= this.memberItem[ m ];
+					int times	= this.unitsPast[ i ] / rule.units;
+					
+					if( times > 0 && this.blockSaving( i, times * rule.units ) > times * price )
+					{
+						this.unitsPast[ i ]	-= times * rule.units;
+						this.consumed[ i ]	+= times * rule.units;
+						this.pushBlock( c, times );
+					}
+				}
+			}
+			else
+			{
+				int first	= this.candidateFirst[ c ];
+				int second	= this.candidateSecond[ c ];
+				int times	= ( first == second ) ? this.unitsPast[ first ] / 2 : Math.min( this.unitsPast[ first ], this.unitsPast[ second ] );
+				
+				if( times > 0 && this.blockSaving( second, times ) > times * Money.toCents( this.pairedPrice( second, rule ) ) )
+				{
+					this.unitsPast[ first ]		-= times;
+					this.unitsPast[ second ]	-= times;
+					this.consumed[ second ]		+= times;
+					this.pushBlock( c, times );
+				}
+			}
+		}
+	}
+	
+	/*
+	 * What the engine would no longer charge if n more units of item i went into
+	 * bundles, in cents
+	 */
+	private long blockSaving( int i, int n )
+	{
+		double quantity = this.basket.getQuantity( i ) - this.consumed[ i ];
+		return this.engineCost( i, quantity ) - this.engineCost( i, quantity - n );
+	}
+	
+	/*
+	 * Record times bundles of a candidate, whose units are already counted
+	 */
+	private void pushBlock( int c, int times )
+	{
+		for( int t = 0; t < times; ++t )
+		{
+			this.push( c, 0 );
+		}
+	}
+	
+	/*
+	 * Put units of the basket into a candidate's bundle.  Returns what the bundle
+	 * saves, or NOT_APPLIED if the units left are not enough
+	 */
+	private long apply( int c )
+	{
+		PromotionCatalogue.Rule rule	= this.promotions.getRule( this.candidateRule[ c ] );
+		int unitsStart					= this.numTaken;
+		long saving;
+		
+		if( PromotionCatalogue.Kind.MIX == rule.kind )
+		{
+			saving = -Money.toCents( rule.rate.getEffectivePrice() );
+			
+			for( int n = 0; n < rule.units; ++n )
+			{
+				int bestItem	= -1;
+				long mostSaved	= 0;
+				
+				for( int m = this.candidateMembers[ c ]; m >= 0; m = this.memberNext[ m ] )
+				{
+					int i = this.memberItem[ m ];
+					if( this.used[ i ] == this.units[ i ] )
+					{
+						continue;
+					}
+					
+					long saved = this.unitSaving( i );
+					if( bestItem < 0 || saved > mostSaved || ( saved == mostSaved && i < bestItem ) )
+					{
+						bestItem	= i;
+						mostSaved	= saved;
+					}
+				}
+				
+				if( bestItem < 0 )
+				{
+					this.release( unitsStart );
+					return NOT_APPLIED;
+				}
+				
+				saving += mostSaved;
+				this.take( bestItem, true );
+			}
+		}
+		else
+		{
+			int first	= this.candidateFirst[ c ];
+			int second	= this.candidateSecond[ c ];
+			
+			if( this.used[ first ] == this.units[ first ] )
+			{
+				return NOT_APPLIED;
+			}
+			this.take( first, false );
+			
+			if( this.used[ second ] == this.units[ second ] )
+			{
+				this.release( unitsStart );
+				return NOT_APPLIED;
+			}
+			
+			saving = this.unitSaving( second ) - Money.toCents( this.pairedPrice( second, rule ) );
+			this.take( second, true );
+		}
+		
+		this.push( c, saving );
+		return saving;
+	}
+	
+	/*
+	 * Record a candidate as applied with the units taken since the last one
+	 */
+	private void push( int c, long saving )
+	{
+		if( this.numApplied == this.appliedCandidate.length )
+		{
+			this.appliedCandidate	= Arrays.copyOf( this.appliedCandidate, 2 * this.numApplied );
+			this.appliedUnitsEnd	= Arrays.copyOf( this.appliedUnitsEnd, 2 * this.numApplied );
+			this.appliedSaving		= Arrays.copyOf( this.appliedSaving, 2 * this.numApplied );
+		}
+		
+		this.appliedCandidate[ this.numApplied ]	= c;
+		this.appliedUnitsEnd[ this.numApplied ]		= this.numTaken;
+		this.appliedSaving[ this.numApplied ]		= saving;
+		++this.numApplied;
+		this.total -= saving;
+	}
+	
+	/*
+	 * Forget the last bundle applied, leaving its units taken
+	 */
+	private void pop()
+	{
+		--this.numApplied;
+		this.total += this.appliedSaving[ this.numApplied ];
+	}
+	
+	/*
+	 * Take the last bundle applied off the basket
+	 */
+	private void undo()
+	{
+		this.pop();
+		this.release( ( this.numApplied > 0 ) ? this.appliedUnitsEnd[ this.numApplied - 1 ] : 0 );
+	}
+	
+	/*
+	 * Take bundles off until numKept are left
+	 */
+	private void undoTo( int numKept )
+	{
+		while( this.numApplied > numKept )
+		{
+			this.undo();
+		}
+	}
+	
+	private void take( int i, boolean charged )
+	{
+		if( this.numTaken == this.takenUnits.length )
+		{
+			this.takenUnits = Arrays.copyOf( this.takenUnits, 2 * this.numTaken );
+		}
+		
+		++this.used[ i ];
+		if( true == charged )
+		{
+			this.slack -= this.slackOf( i );
+			++this.consumed[ i ];
+			this.slack += this.slackOf( i );
+			this.takenUnits[ this.numTaken++ ] = i;
+		}
+		else
+		{
+			this.takenUnits[ this.numTaken++ ] = -1 - i;
+		}
+	}
+	
+	/*
+	 * Give back the units taken from the unitsStart'th on
+	 */
+	private void release( int unitsStart )
+	{
+		while( this.numTaken > unitsStart )
+		{
+			int i = this.takenUnits[ --this.numTaken ];
+			if( i >= 0 )
+			{
+				this.slack -= this.slackOf( i );
+				--this.used[ i ];
+				--this.consumed[ i ];
+				this.slack += this.slackOf( i );
+			}
+			else
+			{
+				--this.used[ -1 - i ];
+			}
+		}
+	}
+	
+	private void keepIfBest()
+	{
+		if( this.total >= this.bestTotal )
+		{
+			return;
+		}
+		
+		if( this.numApplied > this.bestCandidate.length )
+		{
+			int capacity		= Math.max( this.numApplied, 2 * this.bestCandidate.length );
+			this.bestCandidate	= new int[ capacity ];
+			this.bestUnitsEnd	= new int[ capacity ];
+			this.bestSaving		= new long[ capacity ];
+		}
+		if( this.numTaken > this.bestTakenUnits.length )
+		{
+			this.bestTakenUnits = new int[ Math.max( this.numTaken, 2 * this.bestTakenUnits.length ) ];
+		}
+		
+		System.arraycopy( this.appliedCandidate, 0, this.bestCandidate, 0, this.numApplied );
+		System.arraycopy( this.appliedUnitsEnd, 0, this.bestUnitsEnd, 0, this.numApplied );
+		System.arraycopy( this.appliedSaving, 0, this.bestSaving, 0, this.numApplied );
+		System.arraycopy( this.takenUnits, 0, this.bestTakenUnits, 0, this.numTaken );
+		this.numBest		= this.numApplied;
+		this.numBestTaken	= this.numTaken;
+		this.bestTotal		= this.total;
+	}
+	
+	/*
+	 * The products left for the engine, in basket order, then the bundles applied,
+	 * which are the cheapest set found
+	 */
+	private void writeBill( List<PurchasedProduct> outItems )
+	{
+		for( int i = 0; i < this.basket.size(); ++i )
+		{
+			double quantity = ( 0 == this.consumed[ i ] )
+					? this.basket.getQuantity( i )
+					: this.basket.getQuantity( i ) - this.consumed[ i ];
+			
+			if( quantity > 0 )
+			{
+				this.pricingEngine.rate( this.basket.getProduct( i ), quantity, outItems );
+			}
+		}
+		
+		for( int a = 0; a < this.numApplied; ++a )
+		{
+			int c							= this.appliedCandidate[ a ];
+			PromotionCatalogue.Rule rule	= this.promotions.getRule( this.candidateRule[ c ] );
+			
+			if( PromotionCatalogue.Kind.MIX == rule.kind )
+			{
+				outItems.add( new PurchasedProduct( rule.ruleNameId, rule.units, rule.rate ) );
+			}
+			else
+			{
+				int second = this.candidateSecond[ c ];
+				outItems.add( new PurchasedProduct( this.basket.getProduct( second ).getProductNameId(), 1,
+						PromotionCatalogue.pairedUnitRate( rule, this.pairedPrice( second, rule ) ) ) );
+			}
+		}
+	}
+	
+	/*
+	 * Forget the basket, keeping the working space
+	 */
+	private void clear()
+	{
+		for( int c = 0; c < this.numCandidates; ++c )
+		{
+			this.slots[ this.candidateSlot[ c ] ] = 0;
+		}
+		
+		this.basket			= null;
+		this.numCandidates	= 0;
+		this.numMembers		= 0;
+		this.numOrdered		= 0;
+		this.numApplied		= 0;
+		this.numTaken		= 0;
+		this.total			= 0;
+		this.numBest		= 0;
+		this.numBestTaken	= 0;
+		this.bestTotal		= 0;
+		this.slack			= 0;
+	}
+	
+	/*
+	 * What the engine would no longer charge if one more unit of item i went into
+	 * a bundle, in cents
+	 */
+	private long unitSaving( int i )
+	{
+		return this.remainderCost( i, this.consumed[ i ] ) - this.remainderCost( i, this.consumed[ i ] + 1 );
+	}
+	
+	/*
+	 * What the engine charges for the pooled quantity of item i less k units, in
+	 * cents
+	 */
+	private long remainderCost( int i, int k )
+	{
+		if( k < this.numCosts[ i ] )
+		{
+			return this.remainderCost[ i ][ k ];
+		}
+		
+		long[] costs = this.remainderCost[ i ];
+		if( null == costs || k >= costs.length )
+		{
+			costs = ( null == costs ) ? new long[ Math.max( 8, k + 1 ) ] : Arrays.copyOf( costs, Math.max( 2 * costs.length, k + 1 ) );
+			this.remainderCost[ i ] = costs;
+		}
+		
+		while( this.numCosts[ i ] <= k )
+		{
+			costs[ this.numCosts[ i ] ] = this.engineCost( i, this.pooled[ i ] - this.numCosts[ i ] );
+			++this.numCosts[ i ];
+		}
+		
+		return costs[ k ];
+	}
+	
+	/*
+	 * The price of the unit of item i discounted by a PAIR rule, in mills
+	 */
+	private long pairedPrice( int i, PromotionCatalogue.Rule rule )
+	{
+		if( this.unitCost[ i ] < 0 )
+		{
+			this.unitCost[ i ] = this.engineCost( i, 1 );
+		}
+		
+		return Money.scale( this.unitCost[ i ] * Money.MILLS_PER_CENT, rule.priceScale );
+	}
+	
+	private long engineCost( int i, double inQuantity )
+	{
+		if( inQuantity <= 0 )
+		{
+			return 0;
+		}
+		
+		this.pricingEngine.rate( this.basket.getProduct( i ), inQuantity, this.scratch );
+		
+		long cost = 0;
+		for( int l = 0; l < this.scratch.size(); ++l )
+		{
+			cost += this.scratch.get( l ).getPurchasedCost();
+		}
+		this.scratch.clear();
+		
+		return cost;
+	}
+	
+	/*
+	 * The candidate of a rule, adding it if it is new
+	 */
+	private int candidateOf( int ruleId )
+	{
+		if( 2 * ( this.numCandidates + 1 ) > this.slots.length )
+		{
+			this.growCandidates();
+		}
+		
+		int mask	= this.slots.length - 1;
+		int slot	= spread( ruleId ) & mask;
+		int entry;
+		
+		while( 0 != ( entry = this.slots[ slot ] ) )
+		{
+			if( this.candidateRule[ entry - 1 ] == ruleId )
+			{
+				return entry - 1;
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+		
+		int c = this.numCandidates++;
+		this.candidateRule[ c ]		= ruleId;
+		this.candidateSlot[ c ]		= slot;
+		this.candidateUnits[ c ]	= 0;
+		this.candidateMembers[ c ]	= -1;
+		this.candidateFirst[ c ]	= -1;
+		this.candidateSecond[ c ]	= -1;
+		this.slots[ slot ]			= c + 1;
+		
+		return c;
+	}
+	
+	/*
+	 * Double the candidates and rebuild the slots
+	 */
+	private void growCandidates()
+	{
+		int capacity = 2 * this.candidateRule.length;
+		
+		this.candidateRule		= Arrays.copyOf( this.candidateRule, capacity );
+		this.candidateSlot		= Arrays.copyOf( this.candidateSlot, capacity );
+		this.candidateUnits		= Arrays.copyOf( this.candidateUnits, capacity );
+		this.candidateMembers	= Arrays.copyOf( this.candidateMembers, capacity );
+		this.candidateFirst		= Arrays.copyOf( this.candidateFirst, capacity );
+		this.candidateSecond	= Arrays.copyOf( this.candidateSecond, capacity );
+		this.candidateComponent	= Arrays.copyOf( this.candidateComponent, capacity );
+		this.slots				= new int[ 2 * capacity ];
+		
+		int mask = this.slots.length - 1;
+		for( int c = 0; c < this.numCandidates; ++c )
+		{
+			int slot = spread( this.candidateRule[ c ] ) & mask;
+			while( 0 != this.slots[ slot ] )
+			{
+				slot = ( slot + 1 ) & mask;
+			}
+			this.slots[ slot ]			= c + 1;
+			this.candidateSlot[ c ]		= slot;
+		}
+	}
+	
+	private void addMember( int c, int i )
+	{
+		if( this.numMembers == this.memberItem.length )
+		{
+			this.memberItem	= Arrays.copyOf( this.memberItem, 2 * this.numMembers );
+			this.memberNext	= Arrays.copyOf( this.memberNext, 2 * this.numMembers );
+		}
+		
+		this.memberItem[ this.numMembers ]	= i;
+		this.memberNext[ this.numMembers ]	= this.candidateMembers[ c ];
+		this.candidateMembers[ c ]			= this.numMembers++;
+	}
+	
+	/*
+	 * Rule ids are sequential, so they are mixed before masking
+	 */
+	private static int spread( int ruleId )
+	{
+		return ruleId * 0x9E3779B9 >>> 7;
+	}
+
+}
@@ -0,0 +1,131 @@
+package grocery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/*
+ * Reads a stream a line at a time without decoding it
+ *
+ * Each line is left in the reader's buffer, from getLineStart() to getLineEnd()
+ * without its '\n' or '\r\n', until the next call to next().  Nothing is allocated
+ * per line; the buffer only grows to fit a line longer than itself.  The last line
+ * need not end with a newline.
+ *
+ * Reads return as soon as a line is complete, so the reader also suits a console.
+ *
+ */
+public class ByteLineReader
+{
+	
+	private final InputStream in;
+	private byte[] buf;
+	
+	/*
+	 * buf[ start, limit ) has been read but not yet handed out
+	 */
+	private int start = 0;
+	private int limit = 0;
+	private boolean endOfInput = false;
+	
+	private int lineStart = 0;
+	private int lineEnd = 0;
+	
+	ByteLineReader( InputStream inStream, int inBufferSize )
+	{
+		this.in		= inStream;
+		this.buf	= new byte[ Math.max( 256, inBufferSize ) ];
+	}
+	
+	/*
+	 * Move to the next line.  false at the end of the input
+	 */
+	public boolean next() throws IOException
+	{
+		int scanFrom = this.start;
+		
+		while( true )
+		{
+			for( int i = scanFrom; i < this.limit; ++i )
+			{
+				if( '\n' == this.buf[ i ] )
+				{
+					this.setLine( this.start, i );
+					this.start = i + 1;
+					return true;
+				}
+			}
+			
+			if( true == this.endOfInput )
+			{
+				if( this.start < this.limit )
+				{
+					this.setLine( this.start, this.limit );
+					this.start = this.limit;
+					return true;
+				}
+				return false;
+			}
+			
+			scanFrom = this.fill();
+		}
+	}
+	
+	/*
+	 * The buffer holding the current line
+	 */
+	public byte[] getBuffer()
+	{
+		return this.buf;
+	}
+	
+	public int getLineStart()
+	{
+		return this.lineStart;
+	}
+	
+	public int getLineEnd()
+	{
+		return this.lineEnd;
+	}
+	
+	private void setLine( int from, int to )
+	{
+		this.lineStart	= from;
+		this.lineEnd	= ( to > from && '\r' == this.buf[ to - 1 ] ) ? to - 1 : to;
+	}
+	
+	/*
+	 * Move the unfinished line to the front of the buffer, growing the buffer if the
+	 * line fills it, and read more after it.  Returns where the new bytes start
+	 */
+	private int fill() throws IOException
+	{
+		int pending = this.limit - this.start;
+		
+		if( this.start > 0 )
+		{
+			System.arraycopy( this.buf, this.start, this.buf, 0, pending );
+			this.start = 0;
+			this.limit = pending;
+		}
+		
+		if( this.limit == this.buf.length )
+		{
+			this.buf = Arrays.copyOf( this.buf, 2 * this.buf.length );
+		}
+		
+		int n = this.in.read( this.buf, this.limit, this.buf.length - this.limit );
+		if( n < 0 )
+		{
+			this.endOfInput = true;
+		}
+		else
+		{
+			this.limit += n;
+		}
+		
+		return pending;
+	}
+
+}
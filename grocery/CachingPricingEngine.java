@@ -0,0 +1,251 @@
+package grocery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Remembers the purchased products another engine chose for a product and quantity
+ *
+ * Basket traffic is skewed ('1 apple', '2 orange' make up most lines), so most
+ * lines are answered from the cache without rating them again.  Entries are kept
+ * in a fixed number of least-recently-used stripes, each behind its own lock, so
+ * that pricing threads rarely wait on each other; the least recently used entry
+ * of a full stripe is evicted.
+ *
+ * Entries are keyed by the Product object.  Published products never change (a
+ * delta or reload creates new ones), so an entry can not price with old rates;
+ * setRevision empties the cache when a newer catalogue revision goes live so that
+ * the products of old revisions are not held on to.  Requests still pricing an
+ * older revision leave the cache alone; their entries are evicted in time.
+ *
+ * The cached PurchasedProducts are shared by every bill that uses them, as the
+ * CoverTable moves already are.
+ *
+ */
+public class CachingPricingEngine implements PricingEngine
+{
+	
+	private static final int NUM_STRIPES = 16;
+	
+	private static final PurchasedProduct[] NOTHING = new PurchasedProduct[ 0 ];
+	
+	/*
+	 * A product and quantity
+	 */
+	private static final class Key
+	{
+		final Product product;
+		final double quantity;
+		final int hash;
+		
+		Key( Product inProduct, double inQuantity )
+		{
+			this.product	= inProduct;
+			this.quantity	= inQuantity;
+			
+			long bits = Double.doubleToLongBits( inQuantity );
+			this.hash = 31 * System.identityHashCode( inProduct ) + (int)( bits ^ ( bits >>> 32 ) );
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return this.hash;
+		}
+		
+		@Override
+		public boolean equals( Object inOther )
+		{
+			if( false == ( inOther instanceof Key ) )
+			{
+				return false;
+			}
+			
+			Key other = (Key)inOther;
+			return this.product == other.product
+				&& Double.doubleToLongBits( this.quantity ) == Double.doubleToLongBits( other.quantity );
+		}
+	}
+	
+	/*
+	 * A least-recently-used map with its counters, guarded by its own monitor
+	 */
+	private static final class Stripe extends LinkedHashMap<Key, PurchasedProduct[]>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final int capacity;
+		private long hits;
+		private long misses;
+		private long evictions;
+		
+		Stripe( int inCapacity )
+		{
+			super( 16, 0.75f, true );
+			this.capacity = inCapacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Key, PurchasedProduct[]> eldest )
+		{
+			if( this.size() > this.capacity )
+			{
+				++this.evictions;
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private final PricingEngine pricingEngine;
+	private final Stripe[] stripes;
+	private volatile long revision;
+	
+	CachingPricingEngine( PricingEngine inPricingEngine, int inCapacity )
+	{
+		this.pricingEngine	= inPricingEngine;
+		this.stripes		= new Stripe[ NUM_STRIPES ];
+		this.revision		= -1;
+		
+		int stripeCapacity = Math.max( 1, ( inCapacity + NUM_STRIPES - 1 ) / NUM_STRIPES );
+		for( int i = 0; i < NUM_STRIPES; ++i )
+		{
+			this.stripes[ i ] = new Stripe( stripeCapacity );
+		}
+	}
+	
+	public void rate( Product inProduct, double inQuantity, List<PurchasedProduct> outItems )
+	{
+		Key key = new Key( inProduct, inQuantity );
+		Stripe stripe = this.stripes[ ( key.hash ^ ( key.hash >>> 16 ) ) & ( NUM_STRIPES - 1 ) ];
+		PurchasedProduct[] items;
+		
+		synchronized( stripe )
+		{
+			items = stripe.get( key );
+			if( null != items )
+			{
+				++stripe.hits;
+			}
+			else
+			{
+				++stripe.misses;
+			}
+		}
+		
+		if( null == items )
+		{
+			/*
+			 * Rate outside the lock; two threads missing on the same key both rate
+			 * it and store the same answer
+			 */
+			ArrayList<PurchasedProduct> rated = new ArrayList<PurchasedProduct>( 4 );
+			this.pricingEngine.rate( inProduct, inQuantity, rated );
+			items = ( 0 == rated.size() ) ? NOTHING : rated.toArray( new PurchasedProduct[ rated.size() ] );
+			
+			synchronized( stripe )
+			{
+				stripe.put( key, items );
+			}
+		}
+		
+		for( int i = 0; i < items.length; ++i )
+		{
+			outItems.add( items[ i ] );
+		}
+	}
+	
+	/*
+	 * Tell the cache which catalogue revision a request prices against; the cache
+	 * is emptied when the revision is newer than any seen before, and revisions
+	 * older than that are ignored
+	 */
+	public void setRevision( long inRevision )
+	{
+		if( inRevision <= this.revision )
+		{
+			return;
+		}
+		
+		synchronized( this )
+		{
+			if( inRevision <= this.revision )
+			{
+				return;
+			}
+			
+			for( Stripe stripe : this.stripes )
+			{
+				synchronized( stripe )
+				{
+					stripe.clear();
+				}
+			}
+			this.revision = inRevision;
+		}
+	}
+	
+	public long getHitCount()
+	{
+		long total = 0;
+		for( Stripe stripe : this.stripes )
+		{
+			synchronized( stripe )
+			{
+				total += stripe.hits;
+			}
+		}
+		return total;
+	}
+	
+	public long getMissCount()
+	{
+		long total = 0;
+		for( Stripe stripe : this.stripes )
+		{
+			synchronized( stripe )
+			{
+				total += stripe.misses;
+			}
+		}
+		return total;
+	}
+	
+	public long getEvictionCount()
+	{
+		long total = 0;
+		for( Stripe stripe : this.stripes )
+		{
+			synchronized( stripe )
+			{
+				total += stripe.evictions;
+			}
+		}
+		return total;
+	}
+	
+	public int getSize()
+	{
+		int total = 0;
+		for( Stripe stripe : this.stripes )
+		{
+			synchronized( stripe )
+			{
+				total += stripe.size();
+			}
+		}
+		return total;
+	}
+	
+	/*
+	 * e.g. 'Price cache: 9812 hit(s), 188 miss(es), 0 eviction(s), 188 entries'
+	 */
+	public String describe()
+	{
+		return "Price cache: " + this.getHitCount() + " hit(s), " + this.getMissCount() + " miss(es), "
+				+ this.getEvictionCount() + " eviction(s), " + this.getSize() + " entries";
+	}
+
+}
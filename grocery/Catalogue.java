@@ -1,23 +1,37 @@
 package grocery;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 
 /*
  * This is a class to hold all available products for purchase
  * A product is differentiated from another product by the product name (case sensitive)
  * 
+ * Products are indexed by name as they are added so that lookups do not depend
+ * on the size of the catalogue.  Two indexes are kept:
+ * 
+ * - the exact product name, for case-sensitive lookups
+ * - the upper-cased product name, for case-insensitive lookups.  Several products
+ *   may fold to the same key (e.g. 'apple' and 'Apple'); the first one added is kept,
+ *   and the number of others is counted for the keys that have any
+ * 
  */
 
 public class Catalogue
 {
 	
 	private ArrayList<Product> productList;
+	private HashMap<String, Product> productIndex;
+	private HashMap<String, Product> productIndexIgnoreCase;
+	private HashMap<String, Integer> foldedDuplicates;
 	
 	Catalogue()
 	{
 		this.productList = new ArrayList<Product>();
+		this.productIndex = new HashMap<String, Product>();
+		this.productIndexIgnoreCase = new HashMap<String, Product>();
+		this.foldedDuplicates = new HashMap<String, Integer>();
 	}
 
 	/*
@@ -27,32 +41,14 @@ public class Catalogue
 	 */
 	public boolean productIsInCatalogue( String inProdName, Boolean compareIgnoreCase )
 	{
-
-		HashSet<String> currentProductSet = new HashSet<String>();
-		
-		/*
-		 * Get list of pricing product names
-		 */
-		Iterator ite = this.productList.iterator();
-		while( ite.hasNext() )
-		{
-			if( true == compareIgnoreCase )
-			{
-				currentProductSet.add( ( (Product)ite.next() ).getProductName().toUpperCase() );
-			}
-			else
-			{
-				currentProductSet.add( ( (Product)ite.next() ).getProductName() );
-			}
-		}
 		
 		if( true == compareIgnoreCase )
 		{
-			return currentProductSet.contains( inProdName.toUpperCase() );
+			return this.productIndexIgnoreCase.containsKey( inProdName.toUpperCase() );
 		}
 		else
 		{
-			return currentProductSet.contains( inProdName );
+			return this.productIndex.containsKey( inProdName );
 		}
 
 	}
@@ -62,7 +58,21 @@ public class Catalogue
 	 */
 	public void addProduct( Product inProduct )
 	{
+		String prodName = inProduct.getProductName();
+		
 		this.productList.add( inProduct );
+		this.productIndex.put( prodName, inProduct );
+		
+		String foldedName = prodName.toUpperCase();
+		if( false == this.productIndexIgnoreCase.containsKey( foldedName ) )
+		{
+			this.productIndexIgnoreCase.put( foldedName, inProduct );
+		}
+		else
+		{
+			Integer duplicates = this.foldedDuplicates.get( foldedName );
+			this.foldedDuplicates.put( foldedName, ( ( null == duplicates ) ? 0 : duplicates ) + 1 );
+		}
 	}
 	
 	/*
@@ -70,43 +80,139 @@ public class Catalogue
 	 */
 	public void addRateToExistingProduct( String inExistingProdName, Rate inRate )
 	{
-		Iterator ite = this.productList.iterator();
+		Product currentProd = this.productIndex.get( inExistingProdName );
 		
-		while( ite.hasNext() )
+		if( null != currentProd )
 		{
-			Product currentProd = (Product)ite.next();
-			String currentProdName = currentProd.getProductName();
-			
-			if( 0 == currentProdName.compareTo( inExistingProdName ) )
-			{
-				currentProd.addRate( inRate );
-				break;
-			}
-			
+			currentProd.addRate( inRate );
 		}
 		
 	}
 	
+	/*
+	 * Add a rate read by a CatalogueParser to the product it names, adding the
+	 * product if this is its first rate
+	 */
+	void addParsedRate( String inProdName, Rate inRate )
+	{
+		Product existingProduct = this.productIndex.get( inProdName );
+		
+		if( null != existingProduct )
+		{
+			existingProduct.addRate( inRate );
+		}
+		else
+		{
+			Product newProduct = new Product( inProdName );
+			newProduct.addRate( inRate );
+			this.addProduct( newProduct );
+		}
+	}
+	
 	/*
 	 * Retrieve a product based on its name
 	 */
 	public Product getProduct( String inExistingProdName )
 	{
-		Product foundProduct = null;
-		Iterator ite = this.productList.iterator();
+		if( false == Metrics.ENABLED )
+		{
+			return this.lookupProduct( inExistingProdName );
+		}
+		
+		long started = System.nanoTime();
+		Product aProduct = this.lookupProduct( inExistingProdName );
+		Metrics.GET_PRODUCT.record( System.nanoTime() - started );
+		
+		if( null == aProduct )
+		{
+			Metrics.PRODUCT_MISSES.increment();
+		}
+		return aProduct;
+	}
+	
+	/*
+	 * The lookup behind getProduct, for other kinds of catalogue to override
+	 */
+	Product lookupProduct( String inExistingProdName )
+	{
+		return this.productIndex.get( inExistingProdName );
+	}
+	
+	/*
+	 * Number of products whose name is inProdName ignoring case
+	 */
+	int countFoldedProducts( String inProdName )
+	{
+		String foldedName = inProdName.toUpperCase();
 		
+		if( false == this.productIndexIgnoreCase.containsKey( foldedName ) )
+		{
+			return 0;
+		}
+		
+		Integer duplicates = this.foldedDuplicates.get( foldedName );
+		return 1 + ( ( null == duplicates ) ? 0 : duplicates );
+	}
+	
+	/*
+	 * Whether the catalogue keeps the products it hands out, so a caller holding on
+	 * to them adds nothing to the heap
+	 */
+	boolean holdsProducts()
+	{
+		return true;
+	}
+	
+	/*
+	 * Number of products in the catalogue
+	 */
+	public int getNumProducts()
+	{
+		return this.productList.size();
+	}
+	
+	/*
+	 * Products in the order they were added
+	 */
+	Iterator<Product> productIterator()
+	{
+		return this.productList.iterator();
+	}
+	
+	/*
+	 * Build the best-rate index of every product.  Called once the catalogue is
+	 * loaded so that rating does not pay for it
+	 */
+	public void buildRateIndexes()
+	{
+		Iterator<Product> ite = this.productIterator();
+		while( ite.hasNext() )
+		{
+			ite.next().buildRateIndex();
+		}
+	}
+	
+	/*
+	 * Move every product of another catalogue into this one, in the other catalogue's
+	 * order.  Products already in this catalogue receive the other product's rates
+	 */
+	public void mergeCatalogue( Catalogue inOther )
+	{
+		Iterator<Product> ite = inOther.productIterator();
 		while( ite.hasNext() )
 		{
-			Product aProduct = (Product)ite.next();
-			if( true == aProduct.getProductName().equals( inExistingProdName ) )
+			Product otherProd	= ite.next();
+			Product currentProd	= this.productIndex.get( otherProd.getProductName() );
+			
+			if( null != currentProd )
 			{
-				foundProduct = aProduct;
-				break;
+				currentProd.addAllRates( otherProd );
+			}
+			else
+			{
+				this.addProduct( otherProd );
 			}
 		}
-		
-		return foundProduct;
-		
 	}
 	
 	/*
@@ -114,7 +220,7 @@ public class Catalogue
 	 */
 	public void printCatalogue()
 	{
-		Iterator ite = this.productList.iterator();
+		Iterator ite = this.productIterator();
 		while( ite.hasNext() )
 		{
 			( (Product)ite.next() ).printProduct();
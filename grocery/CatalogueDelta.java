@@ -0,0 +1,279 @@
+package grocery;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * A set of changes to a live catalogue, read from a pipe delimited delta file
+ *
+ * Each line is an operation followed by its fields:
+ *
+ * ADD|apple|retail|Retail|1|0.45			add a rate (the five catalogue columns, see
+ * 											Grocery.generateCatalogue) to an existing product
+ * REPLACE|apple|retail|Retail|1|0.45		replace the rates with this rate name
+ * REMOVE|apple|retail						remove the rates with this rate name
+ * ADD_PRODUCT|kiwi							add a product without rates; ADD its rates after it
+ * REMOVE_PRODUCT|kiwi						remove a product and all its rates
+ *
+ * Rate names need not be unique within a product, so REPLACE and REMOVE act on
+ * every rate of the product with that name.  Operations apply in file order.
+ *
+ * Applying a delta copies only the products it touches, rebuilds their rate
+ * indexes, and lays them over the live catalogue as a new DeltaCatalogue (merged
+ * with the overlays below it that are not much larger); the live catalogue itself
+ * is never changed.  A line that is malformed, or that
+ * does not fit the live catalogue (e.g. removing a product that does not exist),
+ * is reported with its line number and skipped.
+ *
+ */
+public class CatalogueDelta
+{
+	
+	enum Operation
+	{
+		ADD, REPLACE, REMOVE, ADD_PRODUCT, REMOVE_PRODUCT
+	}
+	
+	private static final class Change
+	{
+		final long lineNo;
+		final Operation operation;
+		final String productName;
+		final String rateName;
+		final Rate rate;
+		
+		Change( long inLineNo, Operation inOperation, String inProductName, String inRateName, Rate inRate )
+		{
+			this.lineNo			= inLineNo;
+			this.operation		= inOperation;
+			this.productName	= inProductName;
+			this.rateName		= inRateName;
+			this.rate			= inRate;
+		}
+	}
+	
+	private String source;
+	private ArrayList<Change> changes;
+	private ArrayList<String> parseErrors;
+	
+	private CatalogueDelta( String inSource )
+	{
+		this.source			= inSource;
+		this.changes		= new ArrayList<Change>();
+		this.parseErrors	= new ArrayList<String>();
+	}
+	
+	/*
+	 * Read a delta file
+	 */
+	public static CatalogueDelta parse( String inputFile ) throws IOException
+	{
+		return parse( Files.readAllBytes( Paths.get( inputFile ) ), inputFile );
+	}
+	
+	/*
+	 * Read a delta held in memory, e.g. the body of a request
+	 */
+	public static CatalogueDelta parse( byte[] buf, String inSource )
+	{
+		CatalogueDelta delta		= new CatalogueDelta( inSource );
+		CatalogueParser rateParser	= new CatalogueParser( new Catalogue(), Charset.defaultCharset() );
+		long lineNo					= 0;
+		int lineStart				= 0;
+		
+		rateParser.deferErrors();
+		
+		while( lineStart < buf.length )
+		{
+			int lineEnd = CatalogueParser.indexOf( buf, lineStart, buf.length, (byte)'\n' );
+			delta.parseLine( rateParser, buf, lineStart, lineEnd, ++lineNo );
+			lineStart = lineEnd + 1;
+		}
+		
+		rateParser.collectDeferredErrors( inSource, 0, delta.parseErrors );
+		return delta;
+	}
+	
+	private void parseLine( CatalogueParser rateParser, byte[] buf, int start, int end, long lineNo )
+	{
+		if( end > start && '\r' == buf[ end - 1 ] )
+		{
+			--end;
+		}
+		
+		if( true == CatalogueParser.isBlank( buf, start, end ) )
+		{
+			return;
+		}
+		
+		int opEnd = CatalogueParser.indexOf( buf, start, end, (byte)'|' );
+		Operation operation;
+		
+		try
+		{
+			operation = Operation.valueOf( new String( buf, start, opEnd - start, Charset.defaultCharset() ).trim() );
+		}
+		catch( IllegalArgumentException iae )
+		{
+			rateParser.reportMalformed( lineNo, "expected ADD, REPLACE, REMOVE, ADD_PRODUCT or REMOVE_PRODUCT" );
+			return;
+		}
+		
+		int fieldsStart = Math.min( opEnd + 1, end );
+		
+		switch( operation )
+		{
+			case ADD:
+			case REPLACE:
+				Rate newRate = rateParser.parseRate( buf, fieldsStart, end, lineNo );
+				if( null != newRate )
+				{
+					this.changes.add( new Change( lineNo, operation, rateParser.productName( buf ), newRate.getRateName(), newRate ) );
+				}
+				break;
+			
+			case REMOVE:
+				int productEnd = CatalogueParser.indexOf( buf, fieldsStart, end, (byte)'|' );
+				if( productEnd >= end )
+				{
+					rateParser.reportMalformed( lineNo, "expected REMOVE|product|rate" );
+					break;
+				}
+				this.changes.add( new Change( lineNo, operation,
+						new String( buf, fieldsStart, productEnd - fieldsStart, Charset.defaultCharset() ),
+						new String( buf, productEnd + 1, end - productEnd - 1, Charset.defaultCharset() ), null ) );
+				break;
+			
+			default:
+				if( fieldsStart >= end )
+				{
+					rateParser.reportMalformed( lineNo, "expected " + operation + "|product" );
+					break;
+				}
+				this.changes.add( new Change( lineNo, operation,
+						new String( buf, fieldsStart, end - fieldsStart, Charset.defaultCharset() ), null, null ) );
+				break;
+		}
+	}
+	
+	public int getNumChanges()
+	{
+		return this.changes.size();
+	}
+	
+	/*
+	 * Reports of the lines that could not be read
+	 */
+	public List<String> getParseErrors()
+	{
+		return this.parseErrors;
+	}
+	
+	/*
+	 * Apply the delta to the live revision of the holder and publish the result.
+	 * If another revision is published in the meantime the delta is applied again
+	 * to that one.  Lines that do not fit the catalogue are added to errors
+	 */
+	public CatalogueHolder.Revision applyTo( CatalogueHolder holder, List<String> errors )
+	{
+		while( true )
+		{
+			CatalogueHolder.Revision live = holder.current();
+			ArrayList<String> applyErrors = new ArrayList<String>();
+			
+			Catalogue next = this.apply( live.getCatalogue(), applyErrors );
+			
+			CatalogueHolder.Revision published = holder.publish( live, next );
+			if( null != published )
+			{
+				errors.addAll( applyErrors );
+				return published;
+			}
+		}
+	}
+	
+	/*
+	 * A new catalogue with the delta applied over inCatalogue, which is left as is
+	 */
+	public Catalogue apply( Catalogue inCatalogue, List<String> errors )
+	{
+		DeltaCatalogue next = new DeltaCatalogue( inCatalogue );
+		
+		/*
+		 * Products copied by this delta, which may be changed freely
+		 */
+		HashMap<String, Product> copies = new HashMap<String, Product>();
+		
+		for( Change change : this.changes )
+		{
+			Product aProduct = next.getProduct( change.productName );
+			
+			if( Operation.ADD_PRODUCT == change.operation )
+			{
+				if( null != aProduct )
+				{
+					errors.add( this.skipped( change, "product [" + change.productName + "] already exists" ) );
+					continue;
+				}
+				
+				Product newProduct = new Product( change.productName );
+				next.putProduct( newProduct );
+				copies.put( change.productName, newProduct );
+				continue;
+			}
+			
+			if( null == aProduct )
+			{
+				errors.add( this.skipped( change, "product [" + change.productName + "] does not exist" ) );
+				continue;
+			}
+			
+			if( Operation.REMOVE_PRODUCT == change.operation )
+			{
+				next.removeProduct( change.productName );
+				copies.remove( change.productName );
+				continue;
+			}
+			
+			Product copy = copies.get( change.productName );
+			if( null == copy )
+			{
+				copy = new Product( change.productName );
+				copy.addAllRates( aProduct );
+				next.putProduct( copy );
+				copies.put( change.productName, copy );
+			}
+			
+			if( Operation.ADD == change.operation )
+			{
+				copy.addRate( change.rate );
+			}
+			else if( 0 == copy.removeRates( change.rateName ) )
+			{
+				errors.add( this.skipped( change, "product [" + change.productName + "] has no rate [" + change.rateName + "]" ) );
+			}
+			else if( Operation.REPLACE == change.operation )
+			{
+				copy.addRate( change.rate );
+			}
+		}
+		
+		for( Product copy : copies.values() )
+		{
+			copy.buildRateIndex();
+		}
+		
+		return next.compact();
+	}
+	
+	private String skipped( Change change, String reason )
+	{
+		return CatalogueParser.malformedMessage( this.source, change.lineNo, reason );
+	}
+
+}
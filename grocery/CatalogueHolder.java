@@ -0,0 +1,95 @@
+package grocery;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Holds the live catalogue so that it can be replaced while pricing continues
+ *
+ * A catalogue is only published once it is fully built, and is never changed
+ * afterwards.  Readers take the current Revision once per basket and price the
+ * whole basket against it: a basket that started before a reload finishes
+ * against the old catalogue, the next one sees the new catalogue.  Neither
+ * readers nor the reloader ever take a lock.
+ *
+ */
+public class CatalogueHolder
+{
+	
+	/*
+	 * A published catalogue and its revision number, starting at 1
+	 */
+	public static final class Revision
+	{
+		private final Catalogue catalogue;
+		private final long number;
+		
+		Revision( Catalogue inCatalogue, long inNumber )
+		{
+			this.catalogue	= inCatalogue;
+			this.number		= inNumber;
+		}
+		
+		public Catalogue getCatalogue()
+		{
+			return this.catalogue;
+		}
+		
+		public long getNumber()
+		{
+			return this.number;
+		}
+	}
+	
+	private final AtomicReference<Revision> current;
+	
+	CatalogueHolder( Catalogue inCatalogue )
+	{
+		this.current = new AtomicReference<Revision>( new Revision( inCatalogue, 1 ) );
+	}
+	
+	public Revision current()
+	{
+		return this.current.get();
+	}
+	
+	public Catalogue getCatalogue()
+	{
+		return this.current.get().getCatalogue();
+	}
+	
+	public long getVersion()
+	{
+		return this.current.get().getNumber();
+	}
+	
+	/*
+	 * Make a fully built catalogue the live one and return its revision
+	 */
+	public Revision publish( Catalogue inCatalogue )
+	{
+		Revision previous;
+		Revision next;
+		
+		do
+		{
+			previous	= this.current.get();
+			next		= new Revision( inCatalogue, previous.getNumber() + 1 );
+		}
+		while( false == this.current.compareAndSet( previous, next ) );
+		
+		return next;
+	}
+	
+	/*
+	 * Publish a catalogue derived from the expected revision, provided it is still
+	 * the live one.  Returns the new revision, or null if another one was published
+	 * first, in which case the caller should derive its catalogue again
+	 */
+	public Revision publish( Revision expected, Catalogue inCatalogue )
+	{
+		Revision next = new Revision( inCatalogue, expected.getNumber() + 1 );
+		
+		return ( true == this.current.compareAndSet( expected, next ) ) ? next : null;
+	}
+
+}
@@ -0,0 +1,554 @@
+package grocery;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A streaming parser for the pipe delimited pricing catalogue (see Grocery.generateCatalogue
+ * for the file format)
+ * 
+ * The file is read through a fixed size buffer and each line is parsed in place from
+ * its bytes.  Numbers are parsed straight into primitives (prices into mills, see
+ * Money) and only the strings that are kept by the catalogue (product name, rate
+ * name and description) are created, so the memory used for reading does not depend
+ * on the size of the file.
+ * 
+ * A malformed line is reported with its line number and skipped; the rest of the
+ * file is still loaded.
+ * 
+ */
+public class CatalogueParser
+{
+	
+	private static final int READ_BUFFER_SIZE	= 64 * 1024;
+	private static final int NUM_FIELDS			= 5;
+	
+	/*
+	 * Anything with more significant digits than this is handed to Double.parseDouble
+	 * so that the result is always correctly rounded
+	 */
+	private static final int MAX_FAST_DIGITS	= 15;
+	private static final double[] POWERS_OF_TEN	= { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+													1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+	
+	private Catalogue catalogue;
+	private Charset charset;
+	private String source;
+	
+	private long lineCount;
+	private long malformedLineCount;
+	private ArrayList<Long> deferredErrorLines;
+	private ArrayList<String> deferredErrorReasons;
+	
+	/*
+	 * Holds a line that spans two reads of the file
+	 */
+	private byte[] carryOver;
+	
+	/*
+	 * Reusable scratch space for the field boundaries and the tiers of a line
+	 */
+	private int[] fieldStart;
+	private int[] fieldEnd;
+	private double[] tierMin;
+	private double[] tierMax;
+	private long[] tierPrice;
+	private long[] tierScale;
+	
+	CatalogueParser( Catalogue inCatalogue )
+	{
+		this( inCatalogue, Charset.defaultCharset() );
+	}
+	
+	CatalogueParser( Catalogue inCatalogue, Charset inCharset )
+	{
+		this.catalogue	= inCatalogue;
+		this.charset	= inCharset;
+		this.source		= "N/A";
+		this.carryOver	= new byte[ 256 ];
+		this.fieldStart	= new int[ NUM_FIELDS ];
+		this.fieldEnd	= new int[ NUM_FIELDS ];
+		this.tierMin	= new double[ 4 ];
+		this.tierMax	= new double[ 4 ];
+		this.tierPrice	= new long[ 4 ];
+		this.tierScale	= new long[ 4 ];
+	}
+	
+	public long getLineCount()
+	{
+		return this.lineCount;
+	}
+	
+	public long getMalformedLineCount()
+	{
+		return this.malformedLineCount;
+	}
+	
+	/*
+	 * Read the whole file and add every well formed line to the catalogue
+	 */
+	public void parse( String inputFile ) throws IOException
+	{
+		this.source = inputFile;
+		
+		try( FileChannel channel = FileChannel.open( Paths.get( inputFile ), StandardOpenOption.READ ) )
+		{
+			this.parseRange( channel, 0, channel.size() );
+		}
+	}
+	
+	/*
+	 * Read the bytes [from, to) of the channel and add every well formed line to the
+	 * catalogue.  Uses positional reads only, so several parsers may share one channel.
+	 * Line numbers are counted from the start of the range
+	 */
+	void parseRange( FileChannel channel, long from, long to ) throws IOException
+	{
+		ByteBuffer readBuffer	= ByteBuffer.allocate( READ_BUFFER_SIZE );
+		byte[] buf				= readBuffer.array();
+		int carryLen			= 0;
+		long position			= from;
+		
+		while( position < to )
+		{
+			readBuffer.limit( (int)Math.min( READ_BUFFER_SIZE, to - position ) );
+			
+			int numRead = channel.read( readBuffer, position );
+			if( numRead < 0 )
+			{
+				break;
+			}
+			position += numRead;
+			
+			int filled		= readBuffer.position();
+			int lineStart	= 0;
+			
+			for( int i = 0; i < filled; ++i )
+			{
+				if( '\n' != buf[ i ] )
+				{
+					continue;
+				}
+				
+				if( carryLen > 0 )
+				{
+					/*
+					 * Finish the line started in the previous read
+					 */
+					carryLen = this.appendCarryOver( carryLen, buf, 0, i );
+					this.parseLine( this.carryOver, 0, carryLen, ++this.lineCount );
+					carryLen = 0;
+				}
+				else
+				{
+					this.parseLine( buf, lineStart, i, ++this.lineCount );
+				}
+				lineStart = i + 1;
+			}
+			
+			/*
+			 * Keep the incomplete tail for the next read
+			 */
+			carryLen = this.appendCarryOver( carryLen, buf, lineStart, filled );
+			readBuffer.clear();
+		}
+		
+		if( carryLen > 0 )
+		{
+			/*
+			 * Last line without a trailing new line
+			 */
+			this.parseLine( this.carryOver, 0, carryLen, ++this.lineCount );
+		}
+	}
+	
+	private int appendCarryOver( int carryLen, byte[] buf, int start, int end )
+	{
+		int len = end - start;
+		
+		if( carryLen + len > this.carryOver.length )
+		{
+			byte[] bigger = new byte[ Math.max( this.carryOver.length * 2, carryLen + len ) ];
+			System.arraycopy( this.carryOver, 0, bigger, 0, carryLen );
+			this.carryOver = bigger;
+		}
+		
+		System.arraycopy( buf, start, this.carryOver, carryLen, len );
+		return carryLen + len;
+	}
+	
+	/*
+	 * Parse a single line held in buf[start, end) and add its rate to the catalogue
+	 * Returns false if the line was malformed
+	 */
+	boolean parseLine( byte[] buf, int start, int end, long lineNo )
+	{
+		if( end > start && '\r' == buf[ end - 1 ] )
+		{
+			--end;
+		}
+		
+		if( true == isBlank( buf, start, end ) )
+		{
+			return true;
+		}
+		
+		Rate newRate = this.parseRate( buf, start, end, lineNo );
+		if( null == newRate )
+		{
+			return false;
+		}
+		
+		this.catalogue.addParsedRate( this.fieldString( buf, 0 ), newRate );
+		return true;
+	}
+	
+	/*
+	 * Parse the fields of a line held in buf[start, end) into a Rate, leaving the
+	 * product name in the first field (see productName).  Returns null if the line
+	 * was malformed
+	 */
+	Rate parseRate( byte[] buf, int start, int end, long lineNo )
+	{
+		/*
+		 * Locate the fields
+		 */
+		int numFields = 0;
+		int fieldFrom = start;
+		for( int i = start; i < end && numFields < NUM_FIELDS - 1; ++i )
+		{
+			if( '|' == buf[ i ] )
+			{
+				this.fieldStart[ numFields ]	= fieldFrom;
+				this.fieldEnd[ numFields ]		= i;
+				++numFields;
+				fieldFrom = i + 1;
+			}
+		}
+		
+		if( numFields < NUM_FIELDS - 1 )
+		{
+			this.reportMalformed( lineNo, "expected " + NUM_FIELDS + " fields separated by '|'" );
+			return null;
+		}
+		
+		/*
+		 * The last field runs to the next '|', if any, or to the end of the line
+		 */
+		int lastEnd = fieldFrom;
+		while( lastEnd < end && '|' != buf[ lastEnd ] )
+		{
+			++lastEnd;
+		}
+		this.fieldStart[ NUM_FIELDS - 1 ]	= fieldFrom;
+		this.fieldEnd[ NUM_FIELDS - 1 ]		= lastEnd;
+		
+		double effectiveQuantity = parseDecimal( buf, this.fieldStart[ 3 ], this.fieldEnd[ 3 ] );
+		if( true == Double.isNaN( effectiveQuantity ) )
+		{
+			this.reportMalformed( lineNo, "quantity is not a number" );
+			return null;
+		}
+		
+		Rate newRate;
+		
+		if( effectiveQuantity == -1 )
+		{
+			/*
+			 * A tiered rate
+			 */
+			int numTiers = this.parseTiers( buf, this.fieldStart[ 4 ], this.fieldEnd[ 4 ] );
+			if( numTiers <= 0 )
+			{
+				this.reportMalformed( lineNo, "tiers must look like 'min-max,price,scale;...'" );
+				return null;
+			}
+			
+			newRate = new Rate( this.fieldString( buf, 1 ), this.fieldString( buf, 2 ),
+					this.tierMin, this.tierMax, this.tierPrice, this.tierScale, numTiers );
+		}
+		else
+		{
+			/*
+			 * Non-tiered rate; a quantity of 0 or less has no cost per unit
+			 */
+			if( effectiveQuantity <= 0 )
+			{
+				this.reportMalformed( lineNo, "quantity must be more than 0" );
+				return null;
+			}
+			
+			long effectivePrice = Money.parseMills( buf, this.fieldStart[ 4 ], this.fieldEnd[ 4 ] );
+			if( Money.INVALID == effectivePrice )
+			{
+				this.reportMalformed( lineNo, "price is not a number" );
+				return null;
+			}
+			
+			newRate = new Rate( this.fieldString( buf, 1 ), this.fieldString( buf, 2 ), effectiveQuantity, effectivePrice );
+		}
+		
+		return newRate;
+	}
+	
+	/*
+	 * The product name of the line last given to parseRate
+	 */
+	String productName( byte[] buf )
+	{
+		return this.fieldString( buf, 0 );
+	}
+	
+	/*
+	 * Parse the tiers of a line, e.g. "1-2,0.95,1;3-3,0.95,0.50", into the tier
+	 * scratch arrays.  Returns the number of tiers or -1 if the tiers are malformed
+	 */
+	private int parseTiers( byte[] buf, int start, int end )
+	{
+		int numTiers	= 0;
+		int tierStart	= start;
+		
+		while( tierStart < end )
+		{
+			int tierEnd = tierStart;
+			while( tierEnd < end && ';' != buf[ tierEnd ] )
+			{
+				++tierEnd;
+			}
+			
+			if( false == isBlank( buf, tierStart, tierEnd ) )
+			{
+				/*
+				 * min-max,price,scale
+				 */
+				int rangeEnd	= indexOf( buf, tierStart, tierEnd, (byte)',' );
+				int priceEnd	= indexOf( buf, rangeEnd + 1, tierEnd, (byte)',' );
+				int scaleEnd	= indexOf( buf, priceEnd + 1, tierEnd, (byte)',' );
+				
+				/*
+				 * The '-' after the first character separates min from max
+				 */
+				int minEnd		= indexOf( buf, tierStart + 1, rangeEnd, (byte)'-' );
+				
+				if( rangeEnd >= tierEnd || priceEnd >= tierEnd || minEnd >= rangeEnd )
+				{
+					return -1;
+				}
+				
+				this.ensureTierCapacity( numTiers + 1 );
+				this.tierMin[ numTiers ]	= parseDecimal( buf, tierStart, minEnd );
+				this.tierMax[ numTiers ]	= parseDecimal( buf, minEnd + 1, rangeEnd );
+				this.tierPrice[ numTiers ]	= Money.parseMills( buf, rangeEnd + 1, priceEnd );
+				this.tierScale[ numTiers ]	= Money.parseScale( buf, priceEnd + 1, scaleEnd );
+				
+				if( true == Double.isNaN( this.tierMin[ numTiers ] )
+					|| true == Double.isNaN( this.tierMax[ numTiers ] )
+					|| Money.INVALID == this.tierPrice[ numTiers ]
+					|| Money.INVALID == this.tierScale[ numTiers ] )
+				{
+					return -1;
+				}
+				
+				++numTiers;
+			}
+			
+			tierStart = tierEnd + 1;
+		}
+		
+		return ( numTiers > 0 ) ? numTiers : -1;
+	}
+	
+	private void ensureTierCapacity( int capacity )
+	{
+		if( capacity <= this.tierMin.length )
+		{
+			return;
+		}
+		
+		int newLength = Math.max( capacity, this.tierMin.length * 2 );
+		this.tierMin	= Arrays.copyOf( this.tierMin, newLength );
+		this.tierMax	= Arrays.copyOf( this.tierMax, newLength );
+		this.tierPrice	= Arrays.copyOf( this.tierPrice, newLength );
+		this.tierScale	= Arrays.copyOf( this.tierScale, newLength );
+	}
+	
+	private String fieldString( byte[] buf, int field )
+	{
+		return new String( buf, this.fieldStart[ field ], this.fieldEnd[ field ] - this.fieldStart[ field ], this.charset );
+	}
+	
+	void reportMalformed( long lineNo, String reason )
+	{
+		++this.malformedLineCount;
+		
+		if( null != this.deferredErrorLines )
+		{
+			this.deferredErrorLines.add( lineNo );
+			this.deferredErrorReasons.add( reason );
+		}
+		else
+		{
+			printMalformed( this.source, lineNo, reason );
+		}
+	}
+	
+	/*
+	 * Hold on to malformed line reports instead of printing them straight away.  Used
+	 * when parsing part of a file whose first line number is not known yet
+	 */
+	void deferErrors()
+	{
+		this.deferredErrorLines		= new ArrayList<Long>();
+		this.deferredErrorReasons	= new ArrayList<String>();
+	}
+	
+	/*
+	 * Print the deferred reports, shifting their line numbers by the number of lines
+	 * that came before the parsed range
+	 */
+	void printDeferredErrors( String inSource, long lineOffset )
+	{
+		for( int i = 0; i < this.deferredErrorLines.size(); ++i )
+		{
+			printMalformed( inSource, lineOffset + this.deferredErrorLines.get( i ), this.deferredErrorReasons.get( i ) );
+		}
+	}
+	
+	/*
+	 * The deferred reports as messages, instead of printing them
+	 */
+	void collectDeferredErrors( String inSource, long lineOffset, List<String> out )
+	{
+		for( int i = 0; i < this.deferredErrorLines.size(); ++i )
+		{
+			out.add( malformedMessage( inSource, lineOffset + this.deferredErrorLines.get( i ), this.deferredErrorReasons.get( i ) ) );
+		}
+	}
+	
+	private static void printMalformed( String inSource, long lineNo, String reason )
+	{
+		System.err.println( malformedMessage( inSource, lineNo, reason ) );
+	}
+	
+	static String malformedMessage( String inSource, long lineNo, String reason )
+	{
+		return "Line [" + lineNo + "] of [" + inSource + "] skipped: " + reason;
+	}
+	
+	/*
+	 * Returns the position of the first b in buf[start, end) or end if there is none
+	 */
+	static int indexOf( byte[] buf, int start, int end, byte b )
+	{
+		for( int i = start; i < end; ++i )
+		{
+			if( b == buf[ i ] )
+			{
+				return i;
+			}
+		}
+		return end;
+	}
+	
+	static boolean isBlank( byte[] buf, int start, int end )
+	{
+		for( int i = start; i < end; ++i )
+		{
+			if( ' ' != buf[ i ] && '\t' != buf[ i ] )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Parse a decimal number such as "-1", "3" or "0.50" held in buf[start, end)
+	 * Surrounding blanks are ignored.  Returns NaN rather than throwing if the
+	 * bytes are not a number
+	 */
+	static double parseDecimal( byte[] buf, int start, int end )
+	{
+		while( start < end && ( ' ' == buf[ start ] || '\t' == buf[ start ] ) )
+		{
+			++start;
+		}
+		while( end > start && ( ' ' == buf[ end - 1 ] || '\t' == buf[ end - 1 ] ) )
+		{
+			--end;
+		}
+		
+		int i = start;
+		boolean negative = false;
+		if( i < end && ( '-' == buf[ i ] || '+' == buf[ i ] ) )
+		{
+			negative = ( '-' == buf[ i ] );
+			++i;
+		}
+		
+		long mantissa		= 0;
+		int numDigits		= 0;
+		int fractionDigits	= 0;
+		boolean seenPoint	= false;
+		
+		for( ; i < end; ++i )
+		{
+			byte c = buf[ i ];
+			
+			if( c >= '0' && c <= '9' )
+			{
+				if( numDigits == MAX_FAST_DIGITS )
+				{
+					return parseDecimalSlow( buf, start, end );
+				}
+				mantissa = mantissa * 10 + ( c - '0' );
+				++numDigits;
+				if( true == seenPoint )
+				{
+					++fractionDigits;
+				}
+			}
+			else if( '.' == c && false == seenPoint )
+			{
+				seenPoint = true;
+			}
+			else
+			{
+				/*
+				 * Exponents and the like
+				 */
+				return parseDecimalSlow( buf, start, end );
+			}
+		}
+		
+		if( 0 == numDigits )
+		{
+			return Double.NaN;
+		}
+		
+		double value = ( 0 == fractionDigits ) ? mantissa : mantissa / POWERS_OF_TEN[ fractionDigits ];
+		return ( true == negative ) ? -value : value;
+	}
+	
+	private static double parseDecimalSlow( byte[] buf, int start, int end )
+	{
+		try
+		{
+			double value = Double.parseDouble( new String( buf, start, end - start, StandardCharsets.ISO_8859_1 ) );
+			return ( true == Double.isInfinite( value ) ) ? Double.NaN : value;
+		}
+		catch( NumberFormatException nfe )
+		{
+			return Double.NaN;
+		}
+	}
+	
+}
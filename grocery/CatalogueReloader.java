@@ -0,0 +1,269 @@
+package grocery;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Reloads the catalogue file into a CatalogueHolder while pricing carries on
+ *
+ * A reload builds a complete new catalogue (parsed, or mapped if the file is a
+ * snapshot) on a background thread and only then publishes it, so a half-built
+ * catalogue is never visible.  If the file cannot be loaded the old catalogue
+ * stays live.
+ *
+ * Reloads are triggered explicitly with requestReload, or by a change to the
+ * file when watching.  Requests that arrive while a reload is running are
+ * folded into one more reload once it finishes.
+ *
+ */
+public class CatalogueReloader
+{
+	
+	/*
+	 * How long the file has to stay quiet before a change is picked up, so that
+	 * a file being copied over is not loaded half written
+	 */
+	private static final long SETTLE_MILLIS = 250;
+	
+	private final CatalogueHolder holder;
+	private final String catalogueFile;
+	private final boolean parallelLoad;
+	private final boolean offHeap;
+	
+	private final AtomicBoolean reloadRequested = new AtomicBoolean( false );
+	private final Object signal = new Object();
+	
+	private Thread reloadThread;
+	private Thread watchThread;
+	private WatchService watchService;
+	private volatile boolean stopped = false;
+	
+	CatalogueReloader( CatalogueHolder inHolder, String inCatalogueFile, boolean inParallelLoad, boolean inOffHeap )
+	{
+		this.holder			= inHolder;
+		this.catalogueFile	= inCatalogueFile;
+		this.parallelLoad	= inParallelLoad;
+		this.offHeap		= inOffHeap;
+	}
+	
+	/*
+	 * Load a catalogue file and build its rate indexes, ready to be published.
+	 * With offHeap the catalogue is an OffHeapCatalogue, loaded on one thread.
+	 * Malformed lines are reported on stderr
+	 */
+	public static Catalogue load( String inputFile, boolean parallel, boolean offHeap ) throws IOException
+	{
+		Catalogue aCatalogue;
+		long lineCount = 0;
+		long malformedLineCount = 0;
+		long started = ( true == Metrics.ENABLED ) ? System.nanoTime() : 0;
+		
+		if( true == CatalogueSnapshot.isSnapshot( inputFile ) )
+		{
+			aCatalogue = new SnapshotCatalogue( inputFile );
+		}
+		else if( true == offHeap )
+		{
+			aCatalogue = new OffHeapCatalogue();
+			CatalogueParser parser = new CatalogueParser( aCatalogue );
+			parser.parse( inputFile );
+			lineCount = parser.getLineCount();
+			malformedLineCount = parser.getMalformedLineCount();
+		}
+		else if( true == parallel )
+		{
+			ParallelCatalogueLoader loader = new ParallelCatalogueLoader();
+			aCatalogue = loader.load( inputFile );
+			lineCount = loader.getLineCount();
+			malformedLineCount = loader.getMalformedLineCount();
+		}
+		else
+		{
+			aCatalogue = new Catalogue();
+			CatalogueParser parser = new CatalogueParser( aCatalogue );
+			parser.parse( inputFile );
+			lineCount = parser.getLineCount();
+			malformedLineCount = parser.getMalformedLineCount();
+		}
+		
+		aCatalogue.buildRateIndexes();
+		
+		if( true == Metrics.ENABLED )
+		{
+			Metrics.CATALOGUE_LOAD.record( System.nanoTime() - started );
+		}
+		
+		if( malformedLineCount > 0 )
+		{
+			System.err.println( malformedLineCount + " of " + lineCount + " line(s) in [" + inputFile + "] could not be loaded" );
+		}
+		
+		return aCatalogue;
+	}
+	
+	/*
+	 * Start the background reload thread
+	 */
+	public synchronized void start()
+	{
+		this.reloadThread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				CatalogueReloader.this.reloadLoop();
+			}
+		}, "catalogue-reload" );
+		this.reloadThread.setDaemon( true );
+		this.reloadThread.start();
+	}
+	
+	/*
+	 * Also reload whenever the catalogue file changes
+	 */
+	public synchronized void watch() throws IOException
+	{
+		final Path file = Paths.get( this.catalogueFile ).toAbsolutePath();
+		
+		this.watchService = FileSystems.getDefault().newWatchService();
+		file.getParent().register( this.watchService,
+				StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+		
+		this.watchThread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				CatalogueReloader.this.watchLoop( file.getFileName() );
+			}
+		}, "catalogue-watch" );
+		this.watchThread.setDaemon( true );
+		this.watchThread.start();
+	}
+	
+	public synchronized void stop()
+	{
+		this.stopped = true;
+		
+		if( null != this.watchService )
+		{
+			try
+			{
+				this.watchService.close();
+			}
+			catch( IOException ioe )
+			{
+				// nothing more to watch either way
+			}
+		}
+		
+		synchronized( this.signal )
+		{
+			this.signal.notifyAll();
+		}
+	}
+	
+	/*
+	 * Ask for a reload; returns straight away
+	 */
+	public void requestReload()
+	{
+		this.reloadRequested.set( true );
+		
+		synchronized( this.signal )
+		{
+			this.signal.notifyAll();
+		}
+	}
+	
+	private void reloadLoop()
+	{
+		while( false == this.stopped )
+		{
+			synchronized( this.signal )
+			{
+				while( false == this.reloadRequested.get() && false == this.stopped )
+				{
+					try
+					{
+						this.signal.wait();
+					}
+					catch( InterruptedException ie )
+					{
+						return;
+					}
+				}
+			}
+			
+			if( true == this.reloadRequested.getAndSet( false ) )
+			{
+				reload();
+			}
+		}
+	}
+	
+	private void reload()
+	{
+		long started = System.nanoTime();
+		
+		try
+		{
+			Catalogue aCatalogue = load( this.catalogueFile, this.parallelLoad, this.offHeap );
+			CatalogueHolder.Revision revision = this.holder.publish( aCatalogue );
+			
+			System.err.println( "Price catalogue revision " + revision.getNumber() + " reloaded from [" + this.catalogueFile
+					+ "] in " + ( System.nanoTime() - started ) / 1000000 + " ms" );
+		}
+		catch( IOException | RuntimeException e )
+		{
+			System.err.println( "Price catalogue [" + this.catalogueFile + "] could not be reloaded, revision "
+					+ this.holder.getVersion() + " stays live: " + e );
+		}
+	}
+	
+	private void watchLoop( Path fileName )
+	{
+		try
+		{
+			while( false == this.stopped )
+			{
+				WatchKey key = this.watchService.take();
+				boolean changed = false;
+				
+				/*
+				 * Keep draining events until the file has been quiet for a while
+				 */
+				while( null != key )
+				{
+					for( WatchEvent<?> event : key.pollEvents() )
+					{
+						if( true == fileName.equals( event.context() ) )
+						{
+							changed = true;
+						}
+					}
+					key.reset();
+					
+					key = this.watchService.poll( SETTLE_MILLIS, TimeUnit.MILLISECONDS );
+				}
+				
+				if( true == changed )
+				{
+					requestReload();
+				}
+			}
+		}
+		catch( InterruptedException | ClosedWatchServiceException e )
+		{
+			// stopped
+		}
+	}
+
+}
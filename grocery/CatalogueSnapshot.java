@@ -0,0 +1,341 @@
+package grocery;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/*
+ * Writes a fully built Catalogue to a compact binary snapshot that SnapshotCatalogue
+ * can memory-map, so that starting up does not need to parse the text catalogue or
+ * work out the cost per unit of every rate again
+ * 
+ * All numbers are big-endian.  The file is laid out as follows:
+ * 
+ * Header
+ *   8 bytes	magic "GROCSNAP"
+ *   int		format version
+ *   int		number of products, rates, tiers, strings and hash slots (5 ints)
+ *   long		offset of the string offsets, string data, products, rates, tiers,
+ *   			exact name hash and case-folded name hash sections (7 longs)
+ * 
+ * String offsets	int per string + 1; string i is data[ offset[i], offset[i+1] ) in UTF-8
+ * String data		product names, upper-cased product names, rate names and rate
+ * 					descriptions, each stored once
+ * Products			28 bytes each: name id, name hash, first rate, number of rates,
+ * 					number of products with the same upper-cased name, upper-cased
+ * 					name id and upper-cased name hash
+ * Rates			40 bytes each: name id, description id, first tier, number of tiers
+ * 					(-1 for a rate that is not tiered), effective quantity (double),
+ * 					effective price (long mills), cost per unit (double)
+ * Tiers			all tier minimums, then all maximums (doubles), unit prices (long mills)
+ * 					and scales (long parts per Money.SCALE_PARTS)
+ * Name hashes		two open-addressing tables of int, product index + 1 (0 is empty),
+ * 					one on the exact name and one on the upper-cased name
+ * 
+ */
+public class CatalogueSnapshot
+{
+	
+	static final byte[] MAGIC		= { 'G', 'R', 'O', 'C', 'S', 'N', 'A', 'P' };
+	static final int VERSION		= 5;
+	static final int HEADER_SIZE	= 8 + 4 + 5 * 4 + 7 * 8;
+	static final int PRODUCT_SIZE	= 28;
+	static final int RATE_SIZE		= 40;
+	
+	/*
+	 * Returns true if the file starts with the snapshot magic
+	 */
+	public static boolean isSnapshot( String inFile ) throws IOException
+	{
+		byte[] head = new byte[ MAGIC.length ];
+		int numRead = 0;
+		
+		try( InputStream in = Files.newInputStream( Paths.get( inFile ) ) )
+		{
+			while( numRead < head.length )
+			{
+				int n = in.read( head, numRead, head.length - numRead );
+				if( n < 0 )
+				{
+					return false;
+				}
+				numRead += n;
+			}
+		}
+		
+		for( int i = 0; i < MAGIC.length; ++i )
+		{
+			if( MAGIC[ i ] != head[ i ] )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Write the catalogue to a snapshot file
+	 * 
+	 * The snapshot is written next to the file and renamed over it, so a
+	 * SnapshotCatalogue that still maps the old file keeps seeing the old contents
+	 */
+	public static void write( Catalogue inCatalogue, String outFile ) throws IOException
+	{
+		int numProducts = inCatalogue.getNumProducts();
+		
+		HashMap<String, Integer> stringIds	= new HashMap<String, Integer>();
+		ArrayList<byte[]> strings			= new ArrayList<byte[]>();
+		
+		int[] productNameId		= new int[ numProducts ];
+		int[] productNameHash	= new int[ numProducts ];
+		int[] productFirstRate	= new int[ numProducts ];
+		int[] productNumRates	= new int[ numProducts ];
+		int[] foldedNameId		= new int[ numProducts ];
+		int[] foldedNameHash	= new int[ numProducts ];
+		String[] productNames	= new String[ numProducts ];
+		ArrayList<Rate> rates	= new ArrayList<Rate>();
+		int numTiers			= 0;
+		
+		HashMap<String, Integer> foldCounts = new HashMap<String, Integer>();
+		
+		/*
+		 * Flatten products and rates, and give every distinct string an id
+		 */
+		Iterator<Product> prodIte = inCatalogue.productIterator();
+		for( int p = 0; p < numProducts; ++p )
+		{
+			Product aProduct = prodIte.next();
+			
+			productNames[ p ]		= aProduct.getProductName();
+			productNameId[ p ]		= stringId( productNames[ p ], stringIds, strings );
+			productNameHash[ p ]	= productNames[ p ].hashCode();
+			productFirstRate[ p ]	= rates.size();
+			productNumRates[ p ]	= aProduct.getNumRates();
+			
+			String foldedName	= productNames[ p ].toUpperCase();
+			Integer foldCount	= foldCounts.get( foldedName );
+			foldedNameId[ p ]	= stringId( foldedName, stringIds, strings );
+			foldedNameHash[ p ]	= foldedName.hashCode();
+			foldCounts.put( foldedName, ( ( null == foldCount ) ? 0 : foldCount ) + 1 );
+			
+			Iterator<Rate> rateIte = aProduct.rateIterator();
+			while( rateIte.hasNext() )
+			{
+				Rate aRate = rateIte.next();
+				rates.add( aRate );
+				numTiers += aRate.getNumTiers();
+				stringId( aRate.getRateName(), stringIds, strings );
+				stringId( aRate.getRateDescr(), stringIds, strings );
+			}
+		}
+		
+		/*
+		 * Build the name hash tables.  For the case-folded table the first product
+		 * added wins, as in Catalogue
+		 */
+		int numSlots		= hashTableSize( numProducts );
+		int[] exactHash		= new int[ numSlots ];
+		int[] foldedHash	= new int[ numSlots ];
+		
+		for( int p = 0; p < numProducts; ++p )
+		{
+			insertHash( exactHash, productNameHash[ p ], p );
+			
+			int slot = slotOf( foldedNameHash[ p ], numSlots );
+			boolean alreadyPresent = false;
+			
+			while( 0 != foldedHash[ slot ] )
+			{
+				if( foldedNameId[ p ] == foldedNameId[ foldedHash[ slot ] - 1 ] )
+				{
+					alreadyPresent = true;
+					break;
+				}
+				slot = ( slot + 1 ) & ( numSlots - 1 );
+			}
+			
+			if( false == alreadyPresent )
+			{
+				foldedHash[ slot ] = p + 1;
+			}
+		}
+		
+		/*
+		 * Section offsets
+		 */
+		long stringDataSize = 0;
+		for( byte[] str : strings )
+		{
+			stringDataSize += str.length;
+		}
+		
+		long stringOffsetsPos	= HEADER_SIZE;
+		long stringDataPos		= stringOffsetsPos + 4L * ( strings.size() + 1 );
+		long productsPos		= stringDataPos + stringDataSize;
+		long ratesPos			= productsPos + (long)PRODUCT_SIZE * numProducts;
+		long tiersPos			= ratesPos + (long)RATE_SIZE * rates.size();
+		long exactHashPos		= tiersPos + 4L * 8 * numTiers;
+		long foldedHashPos		= exactHashPos + 4L * numSlots;
+		
+		if( foldedHashPos + 4L * numSlots > Integer.MAX_VALUE )
+		{
+			throw new IOException( "Catalogue is too large for a snapshot" );
+		}
+		
+		Path target		= Paths.get( outFile );
+		Path tempFile	= Paths.get( outFile + ".tmp" );
+		
+		try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile.toFile() ), 64 * 1024 ) ) )
+		{
+			out.write( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( numProducts );
+			out.writeInt( rates.size() );
+			out.writeInt( numTiers );
+			out.writeInt( strings.size() );
+			out.writeInt( numSlots );
+			out.writeLong( stringOffsetsPos );
+			out.writeLong( stringDataPos );
+			out.writeLong( productsPos );
+			out.writeLong( ratesPos );
+			out.writeLong( tiersPos );
+			out.writeLong( exactHashPos );
+			out.writeLong( foldedHashPos );
+			
+			int offset = 0;
+			for( byte[] str : strings )
+			{
+				out.writeInt( offset );
+				offset += str.length;
+			}
+			out.writeInt( offset );
+			
+			for( byte[] str : strings )
+			{
+				out.write( str );
+			}
+			
+			for( int p = 0; p < numProducts; ++p )
+			{
+				out.writeInt( productNameId[ p ] );
+				out.writeInt( productNameHash[ p ] );
+				out.writeInt( productFirstRate[ p ] );
+				out.writeInt( productNumRates[ p ] );
+				out.writeInt( foldCounts.get( productNames[ p ].toUpperCase() ) );
+				out.writeInt( foldedNameId[ p ] );
+				out.writeInt( foldedNameHash[ p ] );
+			}
+			
+			int firstTier = 0;
+			for( Rate aRate : rates )
+			{
+				out.writeInt( stringIds.get( aRate.getRateName() ) );
+				out.writeInt( stringIds.get( aRate.getRateDescr() ) );
+				out.writeInt( firstTier );
+				out.writeInt( ( true == aRate.isTiered() ) ? aRate.getNumTiers() : -1 );
+				out.writeDouble( aRate.getEffectiveQuantity() );
+				out.writeLong( aRate.getEffectivePrice() );
+				out.writeDouble( aRate.getCostPerUnit() );
+				firstTier += aRate.getNumTiers();
+			}
+			
+			for( Rate aRate : rates )
+			{
+				for( int t = 0; t < aRate.getNumTiers(); ++t )
+				{
+					out.writeDouble( aRate.getTierMin( t ) );
+				}
+			}
+			for( Rate aRate : rates )
+			{
+				for( int t = 0; t < aRate.getNumTiers(); ++t )
+				{
+					out.writeDouble( aRate.getTierMax( t ) );
+				}
+			}
+			for( Rate aRate : rates )
+			{
+				for( int t = 0; t < aRate.getNumTiers(); ++t )
+				{
+					out.writeLong( aRate.getTierUnitPrice( t ) );
+				}
+			}
+			for( Rate aRate : rates )
+			{
+				for( int t = 0; t < aRate.getNumTiers(); ++t )
+				{
+					out.writeLong( aRate.getTierScale( t ) );
+				}
+			}
+			
+			for( int slot = 0; slot < numSlots; ++slot )
+			{
+				out.writeInt( exactHash[ slot ] );
+			}
+			for( int slot = 0; slot < numSlots; ++slot )
+			{
+				out.writeInt( foldedHash[ slot ] );
+			}
+		}
+		
+		Files.move( tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+	
+	private static int stringId( String inStr, HashMap<String, Integer> stringIds, ArrayList<byte[]> strings )
+	{
+		Integer id = stringIds.get( inStr );
+		
+		if( null == id )
+		{
+			id = strings.size();
+			stringIds.put( inStr, id );
+			strings.add( inStr.getBytes( StandardCharsets.UTF_8 ) );
+		}
+		
+		return id;
+	}
+	
+	private static void insertHash( int[] table, int hash, int index )
+	{
+		int slot = slotOf( hash, table.length );
+		
+		while( 0 != table[ slot ] )
+		{
+			slot = ( slot + 1 ) & ( table.length - 1 );
+		}
+		table[ slot ] = index + 1;
+	}
+	
+	/*
+	 * A power of two with at most half of the slots used
+	 */
+	static int hashTableSize( int numEntries )
+	{
+		int size = 2;
+		while( size < 2L * numEntries )
+		{
+			size <<= 1;
+		}
+		return size;
+	}
+	
+	/*
+	 * Spread the bits of a String hash code before masking it to a slot
+	 */
+	static int slotOf( int hash, int numSlots )
+	{
+		hash *= 0x9E3779B9;
+		return ( hash ^ ( hash >>> 16 ) ) & ( numSlots - 1 );
+	}
+	
+}
@@ -0,0 +1,192 @@
+package grocery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * A basket priced as it is scanned, for a running total at the till
+ *
+ * Each add, remove or change of quantity re-rates only the product it is about,
+ * and the total moves by the difference in that product's cost.  With the
+ * OptimalPricingEngine that is a walk of the product's CoverTable, which keeps the
+ * cheapest way to buy every quantity worked out so far, so scanning one more of an
+ * item mostly reuses the work done for the previous scan.  The total and the lines
+ * of a product are then read in constant time, and the whole bill in the order the
+ * products were first scanned.
+ *
+ * A session is used by one till at a time; clear it for the next customer.
+ *
+ */
+public class CheckoutSession
+{
+	
+	private final PricingEngine pricingEngine;
+	private final Basket basket;
+	
+	/*
+	 * The purchased products and their cost, by index in the basket.  A product
+	 * taken off the bill keeps its index with no lines
+	 */
+	private ArrayList<ArrayList<PurchasedProduct>> lines;
+	private long[] subtotals;
+	private long total = 0;
+	private int numLines = 0;
+	
+	CheckoutSession( PricingEngine inPricingEngine )
+	{
+		this.pricingEngine	= inPricingEngine;
+		this.basket			= new Basket();
+		this.lines			= new ArrayList<ArrayList<PurchasedProduct>>();
+		this.subtotals		= new long[ 16 ];
+	}
+	
+	/*
+	 * Scan a quantity of a product.  Returns the new total in cents
+	 */
+	public long add( Product inProduct, double inQuantity )
+	{
+		return this.setQuantity( inProduct, this.basket.getQuantity( inProduct ) + inQuantity );
+	}
+	
+	/*
+	 * Take a product off the bill.  Returns the new total in cents
+	 */
+	public long remove( Product inProduct )
+	{
+		return this.setQuantity( inProduct, 0 );
+	}
+	
+	/*
+	 * Change the quantity of a product, 0 to take it off the bill.  Returns the new
+	 * total in cents
+	 */
+	public long setQuantity( Product inProduct, double inQuantity )
+	{
+		double quantity = Math.max( 0, inQuantity );
+		int i			= this.basket.indexOf( inProduct );
+		
+		if( ( i < 0 && 0 == quantity ) || ( i >= 0 && this.basket.getQuantity( i ) == quantity ) )
+		{
+			return this.total;
+		}
+		
+		i = this.basket.set( inProduct, quantity );
+		ArrayList<PurchasedProduct> productLines = this.linesAt( i );
+		
+		this.numLines -= productLines.size();
+		productLines.clear();
+		this.pricingEngine.rate( inProduct, quantity, productLines );
+		this.numLines += productLines.size();
+		
+		long subtotal = 0;
+		for( int l = 0; l < productLines.size(); ++l )
+		{
+			subtotal += productLines.get( l ).getPurchasedCost();
+		}
+		
+		this.total			+= subtotal - this.subtotals[ i ];
+		this.subtotals[ i ]	= subtotal;
+		
+		return this.total;
+	}
+	
+	/*
+	 * The total due, in cents
+	 */
+	public long getTotal()
+	{
+		return this.total;
+	}
+	
+	/*
+	 * The quantity of a product scanned so far
+	 */
+	public double getQuantity( Product inProduct )
+	{
+		return this.basket.getQuantity( inProduct );
+	}
+	
+	/*
+	 * The purchased products of one product, empty if it is not on the bill
+	 */
+	public List<PurchasedProduct> getLines( Product inProduct )
+	{
+		int i = this.basket.indexOf( inProduct );
+		return ( i < 0 ) ? Collections.<PurchasedProduct>emptyList() : Collections.unmodifiableList( this.lines.get( i ) );
+	}
+	
+	/*
+	 * The cost of one product, in cents
+	 */
+	public long getSubtotal( Product inProduct )
+	{
+		int i = this.basket.indexOf( inProduct );
+		return ( i < 0 ) ? 0 : this.subtotals[ i ];
+	}
+	
+	/*
+	 * The number of purchased products on the bill
+	 */
+	public int getLineCount()
+	{
+		return this.numLines;
+	}
+	
+	/*
+	 * Add every purchased product on the bill to outItems, in the order the products
+	 * were first scanned
+	 */
+	public void appendLines( List<PurchasedProduct> outItems )
+	{
+		for( int i = 0; i < this.basket.size(); ++i )
+		{
+			outItems.addAll( this.lines.get( i ) );
+		}
+	}
+	
+	/*
+	 * The products scanned so far and their quantities, e.g. to price the basket
+	 * again with promotions.  Only read it
+	 */
+	Basket getBasket()
+	{
+		return this.basket;
+	}
+	
+	/*
+	 * Start again with an empty bill
+	 */
+	public void clear()
+	{
+		for( int i = 0; i < this.basket.size(); ++i )
+		{
+			this.lines.get( i ).clear();
+			this.subtotals[ i ] = 0;
+		}
+		
+		this.basket.clear();
+		this.total		= 0;
+		this.numLines	= 0;
+	}
+	
+	/*
+	 * The lines of the i'th product, making room for a product just added
+	 */
+	private ArrayList<PurchasedProduct> linesAt( int i )
+	{
+		if( i == this.lines.size() )
+		{
+			this.lines.add( new ArrayList<PurchasedProduct>( 4 ) );
+			
+			if( i == this.subtotals.length )
+			{
+				this.subtotals = Arrays.copyOf( this.subtotals, 2 * i );
+			}
+		}
+		
+		return this.lines.get( i );
+	}
+
+}
@@ -0,0 +1,507 @@
+package grocery;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The cheapest way to buy every whole quantity of one product, worked out by
+ * dynamic programming over its rates and kept for as long as the rates do not change
+ * 
+ * A move buys a number of units with one purchased product: the full effective
+ * quantity of a bulk or retail rate, or the first k units of a tiered rate.  Only the
+ * cheapest move for each number of units is kept, and only if smaller moves cannot
+ * buy the same units for as little (e.g. of a long tier at one unit price, only the
+ * first unit is kept).  cost[n] is the cheapest total for exactly n units and
+ * choice[n] the last move used to get there.  Moves of consecutive units whose
+ * costs go up by the same step, such as the units of one tier, are solved together
+ * (see extend), so a long tier costs no more per row than a short one.
+ * 
+ * The table grows on demand and is published as a whole, so readers never lock.
+ * Quantities too large for the table first use the move with the lowest cost per
+ * unit until what is left fits; this does not change the answer as long as the best
+ * move's units times the largest move's units fit in the table.
+ * 
+ * A quantity with a fractional part, e.g. 2.5, is bought with the whole units from
+ * the table and the fraction either as GreedyPricingEngine would buy it, or together
+ * with some of the whole units at a tiered rate with the rest from the table,
+ * whichever is cheaper.
+ * 
+ * More than the quantity is only bought when the exact quantity cannot be, unless
+ * the caller asks to over-cover.  Then the cheapest cover of at least the quantity
+ * is used whenever buying a little more is cheaper, including a whole number of
+ * units for a fraction, so buying more never costs less.
+ * 
+ */
+public class CoverTable
+{
+	
+	private static final int MAX_TABLE_UNITS	= 1 << 16;
+	private static final long NO_COVER			= Long.MAX_VALUE;
+	
+	private final int prodNameId;
+	private final Rate[] tieredRates;
+	private final int largestUnits;
+	private final int[] moveUnits;
+	private final long[] moveCost;
+	private final PurchasedProduct[] moveItem;
+	private final Moves moves;
+	private final int maxMoveUnits;
+	private final int bestRatioMove;
+	
+	private volatile Solution solution;
+	
+	CoverTable( Product inProduct )
+	{
+		Rate[] rates		= inProduct.getRateIndex().rates;
+		int prodNameId		= inProduct.getProductNameId();
+		
+		/*
+		 * Find the largest move so the cheapest move per number of units can be
+		 * kept in an array
+		 */
+		int largest		= 0;
+		int numTiered	= 0;
+		for( Rate aRate : rates )
+		{
+			largest = Math.max( largest, wholeUnits( aRate.getEffectiveQuantity() ) );
+			if( true == aRate.isTiered() )
+			{
+				++numTiered;
+			}
+		}
+		
+		this.prodNameId		= prodNameId;
+		this.tieredRates	= new Rate[ numTiered ];
+		numTiered			= 0;
+		for( Rate aRate : rates )
+		{
+			if( true == aRate.isTiered() )
+			{
+				this.tieredRates[ numTiered++ ] = aRate;
+			}
+		}
+		
+		/*
+		 * The cheapest move for each number of units
+		 */
+		PurchasedProduct[] cheapest	= new PurchasedProduct[ largest + 1 ];
+		long[] cheapestCost			= new long[ largest + 1 ];
+		int numCheapest				= 0;
+		
+		for( Rate aRate : rates )
+		{
+			int units = wholeUnits( aRate.getEffectiveQuantity() );
+			
+			for( int k = ( true == aRate.isTiered() ) ? 1 : units; k <= units && k > 0; ++k )
+			{
+				PurchasedProduct item	= new PurchasedProduct( prodNameId, k, aRate );
+				long itemCost			= item.getPurchasedCost();
+				
+				if( null == cheapest[ k ] )
+				{
+					++numCheapest;
+				}
+				if( null == cheapest[ k ] || itemCost < cheapestCost[ k ] )
+				{
+					cheapest[ k ]		= item;
+					cheapestCost[ k ]	= itemCost;
+				}
+			}
+		}
+		
+		int[] units		= new int[ numCheapest ];
+		long[] costs	= new long[ numCheapest ];
+		int m			= 0;
+		for( int k = 1; k <= largest; ++k )
+		{
+			if( null != cheapest[ k ] )
+			{
+				units[ m ]	= k;
+				costs[ m ]	= cheapestCost[ k ];
+				++m;
+			}
+		}
+		
+		/*
+		 * Solve the table up to the largest move with all of them.  A move that
+		 * smaller moves can match for the same units or less is never the last move
+		 * of a cheapest cover, so the moves kept are the ones that are the last move
+		 * for their own number of units
+		 */
+		long[] cost		= new long[ largest + 1 ];
+		int[] choice	= new int[ largest + 1 ];
+		choice[ 0 ]		= -1;
+		extend( cost, choice, 1, largest + 1, new Moves( units, costs ) );
+		
+		int[] keptMove	= new int[ numCheapest ];
+		int numMoves	= 0;
+		for( m = 0; m < numCheapest; ++m )
+		{
+			keptMove[ m ] = ( m == choice[ units[ m ] ] ) ? numMoves++ : -1;
+		}
+		for( int k = 1; k <= largest; ++k )
+		{
+			choice[ k ] = ( choice[ k ] < 0 ) ? -1 : keptMove[ choice[ k ] ];
+		}
+		
+		this.moveUnits	= new int[ numMoves ];
+		this.moveCost	= new long[ numMoves ];
+		this.moveItem	= new PurchasedProduct[ numMoves ];
+		
+		int bestRatio	= -1;
+		for( m = 0; m < numCheapest; ++m )
+		{
+			int move = keptMove[ m ];
+			if( move < 0 )
+			{
+				continue;
+			}
+			
+			this.moveUnits[ move ]	= units[ m ];
+			this.moveCost[ move ]	= costs[ m ];
+			this.moveItem[ move ]	= cheapest[ units[ m ] ];
+			
+			if( bestRatio < 0 || (double)costs[ m ] / units[ m ] < (double)this.moveCost[ bestRatio ] / this.moveUnits[ bestRatio ] )
+			{
+				bestRatio = move;
+			}
+		}
+		
+		this.moves			= new Moves( this.moveUnits, this.moveCost );
+		this.largestUnits	= largest;
+		this.maxMoveUnits	= ( numMoves > 0 ) ? this.moveUnits[ numMoves - 1 ] : 0;
+		this.bestRatioMove	= bestRatio;
+		this.solution		= new Solution( cost, choice );
+	}
+	
+	/*
+	 * Add the cheapest purchased products for inUnits units and inRemainder, a
+	 * fraction of a unit, to outItems.  inRemainderItem is how GreedyPricingEngine
+	 * buys the fraction on its own, or null if there is none.  With inOverCover,
+	 * more than the quantity is bought whenever that is cheaper.  Returns false,
+	 * adding nothing, if the rates cannot buy whole units
+	 */
+	public boolean cover( long inUnits, double inRemainder, PurchasedProduct inRemainderItem, boolean inOverCover,
+			List<PurchasedProduct> outItems )
+	{
+		if( 0 == this.moveUnits.length )
+		{
+			return false;
+		}
+		
+		/*
+		 * Take large quantities down to what the table holds with the best move
+		 */
+		long numBestMoves	= 0;
+		long units			= inUnits;
+		int tableLimit		= MAX_TABLE_UNITS - 1 - this.maxMoveUnits;
+		
+		if( units > tableLimit )
+		{
+			int bestUnits	= this.moveUnits[ this.bestRatioMove ];
+			numBestMoves	= ( units - tableLimit + bestUnits - 1 ) / bestUnits;
+			units			-= numBestMoves * bestUnits;
+		}
+		
+		int n			= (int)units;
+		Solution s		= this.solve( n + this.maxMoveUnits );
+		
+		/*
+		 * The whole units to buy from the table: the exact quantity unless it cannot
+		 * be bought or, when over-covering, a slightly larger one is cheaper
+		 */
+		int target = -1;
+		for( int i = n; i <= n + this.maxMoveUnits; ++i )
+		{
+			if( NO_COVER != s.cost[ i ] && ( target < 0 || s.cost[ i ] < s.cost[ target ] ) )
+			{
+				target = i;
+			}
+			if( n == target && false == inOverCover )
+			{
+				break;
+			}
+		}
+		
+		if( target < 0 )
+		{
+			return false;
+		}
+		
+		/*
+		 * The fraction: with the whole units if they already buy more than the
+		 * quantity, otherwise on its own or at a tiered rate together with some of
+		 * the whole units, whichever is cheaper.  A whole unit more is only bought
+		 * when over-covering, or when neither can buy the fraction
+		 */
+		PurchasedProduct tailItem = null;
+		if( inRemainder > 0 && target == n )
+		{
+			long ceilCost	= NO_COVER;
+			int ceilTarget	= -1;
+			
+			for( int i = n + 1; i <= n + this.maxMoveUnits; ++i )
+			{
+				if( NO_COVER != s.cost[ i ] && s.cost[ i ] < ceilCost )
+				{
+					ceilCost	= s.cost[ i ];
+					ceilTarget	= i;
+				}
+			}
+			
+			long bestCost	= ( true == inOverCover ) ? ceilCost : NO_COVER;
+			int bestTarget	= ( true == inOverCover ) ? ceilTarget : -1;
+			Rate bestRate	= null;
+			
+			if( null != inRemainderItem && s.cost[ n ] + inRemainderItem.getPurchasedCost() <= bestCost )
+			{
+				bestCost	= s.cost[ n ] + inRemainderItem.getPurchasedCost();
+				bestTarget	= n;
+				tailItem	= inRemainderItem;
+			}
+			
+			for( Rate aRate : this.tieredRates )
+			{
+				int maxUnits = (int)Math.min( n, Math.min( this.largestUnits, Math.floor( aRate.getEffectiveQuantity() - inRemainder ) ) );
+				
+				for( int k = 0; k <= maxUnits; ++k )
+				{
+					if( NO_COVER == s.cost[ n - k ] )
+					{
+						continue;
+					}
+					
+					long tailCost = Money.toCents( aRate.getTierPrice( k + inRemainder ) );
+					if( s.cost[ n - k ] + tailCost < bestCost )
+					{
+						bestCost	= s.cost[ n - k ] + tailCost;
+						bestTarget	= n - k;
+						bestRate	= aRate;
+					}
+				}
+			}
+			
+			if( bestTarget < 0 )
+			{
+				bestTarget = ceilTarget;
+			}
+			if( bestTarget < 0 )
+			{
+				return false;
+			}
+			
+			if( null != bestRate )
+			{
+				tailItem = new PurchasedProduct( this.prodNameId, n - bestTarget + inRemainder, bestRate );
+			}
+			target = bestTarget;
+		}
+		
+		while( target > 0 )
+		{
+			int move = s.choice[ target ];
+			outItems.add( this.moveItem[ move ] );
+			target -= this.moveUnits[ move ];
+		}
+		
+		for( long i = 0; i < numBestMoves; ++i )
+		{
+			outItems.add( this.moveItem[ this.bestRatioMove ] );
+		}
+		
+		if( null != tailItem )
+		{
+			outItems.add( tailItem );
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Returns a solution that covers at least 0..inUnits, extending the table if needed
+	 */
+	private Solution solve( int inUnits )
+	{
+		Solution s = this.solution;
+		if( s.cost.length > inUnits )
+		{
+			return s;
+		}
+		
+		synchronized( this )
+		{
+			s = this.solution;
+			if( s.cost.length > inUnits )
+			{
+				return s;
+			}
+			
+			int newLength		= (int)Math.min( MAX_TABLE_UNITS, Math.max( inUnits + 1L, 2L * s.cost.length ) );
+			long[] cost			= new long[ newLength ];
+			int[] choice		= new int[ newLength ];
+			int solved			= s.cost.length;
+			
+			System.arraycopy( s.cost, 0, cost, 0, solved );
+			System.arraycopy( s.choice, 0, choice, 0, solved );
+			extend( cost, choice, solved, newLength, this.moves );
+			
+			s = new Solution( cost, choice );
+			this.solution = s;
+			return s;
+		}
+	}
+	
+	/*
+	 * Solve cost[ inFrom, inTo ) and choice[ inFrom, inTo ) from the rows before them
+	 * 
+	 * For each run of moves, the moves of k, k+1, ... units whose costs go up by
+	 * the same step, the cheapest way to end row i with a move of the run is the
+	 * cheapest of cost[j] - j * step over the rows j it can start from, plus the
+	 * same amount for every j.  A sliding window keeps the rows in the run's range
+	 * in order of that value, so each run costs the same per row however many
+	 * moves it has.  Ties go to the move with the fewest units
+	 */
+	private static void extend( long[] cost, int[] choice, int inFrom, int inTo, Moves inMoves )
+	{
+		int numRuns		= inMoves.runFirst.length;
+		int[] window	= new int[ inMoves.units.length + numRuns ];
+		int[] base		= new int[ numRuns ];
+		int[] head		= new int[ numRuns ];
+		int[] tail		= new int[ numRuns ];
+		
+		for( int r = 0; r < numRuns; ++r )
+		{
+			base[ r ] = inMoves.runFirst[ r ] + r;
+			
+			int lowest	= inMoves.units[ inMoves.runFirst[ r ] ];
+			int highest	= lowest + inMoves.runLength[ r ] - 1;
+			for( int j = Math.max( 0, inFrom - highest ); j < inFrom - lowest; ++j )
+			{
+				tail[ r ] = push( cost, window, base[ r ], head[ r ], tail[ r ], inMoves.runLength[ r ] + 1, inMoves.runStep[ r ], j );
+			}
+		}
+		
+		for( int i = inFrom; i < inTo; ++i )
+		{
+			cost[ i ]	= NO_COVER;
+			choice[ i ]	= -1;
+			
+			for( int r = 0; r < numRuns; ++r )
+			{
+				int first		= inMoves.runFirst[ r ];
+				int capacity	= inMoves.runLength[ r ] + 1;
+				int lowest		= inMoves.units[ first ];
+				
+				if( i - lowest >= 0 )
+				{
+					tail[ r ] = push( cost, window, base[ r ], head[ r ], tail[ r ], capacity, inMoves.runStep[ r ], i - lowest );
+				}
+				while( head[ r ] < tail[ r ] && window[ base[ r ] + head[ r ] % capacity ] < i - lowest - inMoves.runLength[ r ] + 1 )
+				{
+					++head[ r ];
+				}
+				
+				if( head[ r ] < tail[ r ] )
+				{
+					int j		= window[ base[ r ] + head[ r ] % capacity ];
+					int move	= first + ( i - j - lowest );
+					
+					if( cost[ j ] + inMoves.costs[ move ] < cost[ i ] )
+					{
+						cost[ i ]	= cost[ j ] + inMoves.costs[ move ];
+						choice[ i ]	= move;
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Add row j to the back of a run's window, dropping the rows before it that it
+	 * is as cheap as.  Returns the new tail
+	 */
+	private static int push( long[] cost, int[] window, int base, int head, int tail, int capacity, long step, int j )
+	{
+		if( NO_COVER == cost[ j ] )
+		{
+			return tail;
+		}
+		
+		long value = cost[ j ] - j * step;
+		while( tail > head && cost[ window[ base + ( tail - 1 ) % capacity ] ] - window[ base + ( tail - 1 ) % capacity ] * step >= value )
+		{
+			--tail;
+		}
+		
+		window[ base + tail % capacity ] = j;
+		return tail + 1;
+	}
+	
+	/*
+	 * The quantity as a number of whole units, or 0 if it is not a positive whole
+	 * number the table can hold
+	 */
+	private static int wholeUnits( double inQuantity )
+	{
+		if( inQuantity < 1 || inQuantity > MAX_TABLE_UNITS / 2 || inQuantity != Math.floor( inQuantity ) )
+		{
+			return 0;
+		}
+		return (int)inQuantity;
+	}
+	
+	/*
+	 * Moves in order of units, grouped in runs of consecutive units whose costs go
+	 * up by the same step
+	 */
+	private static final class Moves
+	{
+		final int[] units;
+		final long[] costs;
+		final int[] runFirst;
+		final int[] runLength;
+		final long[] runStep;
+		
+		Moves( int[] inUnits, long[] inCosts )
+		{
+			int[] first		= new int[ inUnits.length ];
+			int[] length	= new int[ inUnits.length ];
+			long[] step		= new long[ inUnits.length ];
+			int r			= -1;
+			
+			for( int m = 0; m < inUnits.length; ++m )
+			{
+				if( r >= 0 && inUnits[ m ] == inUnits[ m - 1 ] + 1
+					&& ( 1 == length[ r ] || inCosts[ m ] - inCosts[ m - 1 ] == step[ r ] ) )
+				{
+					step[ r ] = inCosts[ m ] - inCosts[ m - 1 ];
+					++length[ r ];
+				}
+				else
+				{
+					first[ ++r ]	= m;
+					length[ r ]		= 1;
+				}
+			}
+			
+			this.units		= inUnits;
+			this.costs		= inCosts;
+			this.runFirst	= Arrays.copyOf( first, r + 1 );
+			this.runLength	= Arrays.copyOf( length, r + 1 );
+			this.runStep	= Arrays.copyOf( step, r + 1 );
+		}
+	}
+	
+	private static final class Solution
+	{
+		final long[] cost;
+		final int[] choice;
+		
+		Solution( long[] inCost, int[] inChoice )
+		{
+			this.cost	= inCost;
+			this.choice	= inChoice;
+		}
+	}
+	
+}
@@ -0,0 +1,334 @@
+package grocery;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ * A catalogue made of a base catalogue and the products that a delta changed,
+ * added or removed (see CatalogueDelta)
+ *
+ * Products that the delta did not touch are the base catalogue's own objects, so
+ * a new revision costs as much as the delta, not the size of the catalogue.  Each
+ * delta lays a new DeltaCatalogue over the live one.  To keep lookups from going
+ * through one overlay per delta, an overlay is merged with the overlay below it
+ * while that one holds no more than MERGE_RATIO times its changes; the chain stays
+ * about log n overlays deep for n changes, and each change is copied about log n
+ * times in all.  A full reload starts again from a new base.
+ *
+ * Like any published catalogue it is read-only once built.
+ *
+ */
+public class DeltaCatalogue extends Catalogue
+{
+	
+	private static final int MERGE_RATIO = 2;
+	
+	private final Catalogue base;
+	
+	/*
+	 * Products changed or added by name, in the order they were first changed.
+	 * A null product is a base product that was removed
+	 */
+	private final LinkedHashMap<String, Product> changedProducts;
+	
+	/*
+	 * Per upper-cased name, the number of products added that are not in the
+	 * base, and, once a base product of that name has been removed, the number of
+	 * base products of that name left.  The base products of a name are counted
+	 * by the base the first time one of them is removed
+	 */
+	private final HashMap<String, Integer> addedFolds;
+	private final HashMap<String, Integer> baseFoldsLeft;
+	
+	private int numProducts;
+	
+	DeltaCatalogue( Catalogue inBase )
+	{
+		this.base				= inBase;
+		this.changedProducts	= new LinkedHashMap<String, Product>();
+		this.addedFolds			= new HashMap<String, Integer>();
+		this.baseFoldsLeft		= new HashMap<String, Integer>();
+		this.numProducts		= inBase.getNumProducts();
+	}
+	
+	/*
+	 * A copy of the changes of another delta catalogue, over the same base, for
+	 * merging overlays
+	 */
+	DeltaCatalogue( DeltaCatalogue inOther )
+	{
+		this.base				= inOther.base;
+		this.changedProducts	= new LinkedHashMap<String, Product>( inOther.changedProducts );
+		this.addedFolds			= new HashMap<String, Integer>( inOther.addedFolds );
+		this.baseFoldsLeft		= new HashMap<String, Integer>( inOther.baseFoldsLeft );
+		this.numProducts		= inOther.numProducts;
+	}
+	
+	/*
+	 * Number of products changed, added or removed over the base
+	 */
+	public int getNumChangedProducts()
+	{
+		return this.changedProducts.size();
+	}
+	
+	@Override
+	public boolean productIsInCatalogue( String inProdName, Boolean compareIgnoreCase )
+	{
+		if( false == compareIgnoreCase )
+		{
+			if( true == this.changedProducts.containsKey( inProdName ) )
+			{
+				return null != this.changedProducts.get( inProdName );
+			}
+			return this.base.productIsInCatalogue( inProdName, false );
+		}
+		
+		String foldedName = inProdName.toUpperCase();
+		
+		if( true == this.addedFolds.containsKey( foldedName ) )
+		{
+			return true;
+		}
+		
+		Integer baseLeft = this.baseFoldsLeft.get( foldedName );
+		if( null != baseLeft )
+		{
+			return baseLeft > 0;
+		}
+		
+		return this.base.productIsInCatalogue( inProdName, true );
+	}
+	
+	@Override
+	int countFoldedProducts( String inProdName )
+	{
+		String foldedName	= inProdName.toUpperCase();
+		Integer added		= this.addedFolds.get( foldedName );
+		Integer baseLeft	= this.baseFoldsLeft.get( foldedName );
+		
+		return ( ( null == added ) ? 0 : added )
+			+ ( ( null == baseLeft ) ? this.base.countFoldedProducts( foldedName ) : baseLeft );
+	}
+	
+	@Override
+	Product lookupProduct( String inExistingProdName )
+	{
+		if( true == this.changedProducts.containsKey( inExistingProdName ) )
+		{
+			return this.changedProducts.get( inExistingProdName );
+		}
+		return this.base.lookupProduct( inExistingProdName );
+	}
+	
+	@Override
+	boolean holdsProducts()
+	{
+		return this.base.holdsProducts();
+	}
+	
+	@Override
+	public int getNumProducts()
+	{
+		return this.numProducts;
+	}
+	
+	/*
+	 * The base products in their order, with changed products in place of the
+	 * originals, then the added products
+	 */
+	@Override
+	Iterator<Product> productIterator()
+	{
+		final Iterator<Product> baseIte						= this.base.productIterator();
+		final Iterator<Map.Entry<String, Product>> changedIte	= this.changedProducts.entrySet().iterator();
+		
+		return new Iterator<Product>()
+		{
+			private Product next = this.advance();
+			
+			private Product advance()
+			{
+				while( true == baseIte.hasNext() )
+				{
+					Product baseProd = baseIte.next();
+					String prodName = baseProd.getProductName();
+					
+					if( false == DeltaCatalogue.this.changedProducts.containsKey( prodName ) )
+					{
+						return baseProd;
+					}
+					if( null != DeltaCatalogue.this.changedProducts.get( prodName ) )
+					{
+						return DeltaCatalogue.this.changedProducts.get( prodName );
+					}
+				}
+				
+				while( true == changedIte.hasNext() )
+				{
+					Map.Entry<String, Product> entry = changedIte.next();
+					
+					if( null != entry.getValue()
+						&& false == DeltaCatalogue.this.base.productIsInCatalogue( entry.getKey(), false ) )
+					{
+						return entry.getValue();
+					}
+				}
+				
+				return null;
+			}
+			
+			public boolean hasNext()
+			{
+				return null != this.next;
+			}
+			
+			public Product next()
+			{
+				if( null == this.next )
+				{
+					throw new NoSuchElementException();
+				}
+				
+				Product current = this.next;
+				this.next = this.advance();
+				return current;
+			}
+		};
+	}
+	
+	/*
+	 * Add a product or take the place of the product of the same name.  Only used
+	 * while a delta is applied, before the catalogue is published
+	 */
+	void putProduct( Product inProduct )
+	{
+		String prodName = inProduct.getProductName();
+		
+		if( null == this.lookupProduct( prodName ) )
+		{
+			++this.numProducts;
+			
+			if( true == this.base.productIsInCatalogue( prodName, false ) )
+			{
+				/*
+				 * A base product removed before is back
+				 */
+				String foldedName = prodName.toUpperCase();
+				this.baseFoldsLeft.put( foldedName, this.baseFoldsLeft.get( foldedName ) + 1 );
+			}
+			else
+			{
+				adjustFold( this.addedFolds, prodName, 1 );
+			}
+		}
+		
+		this.changedProducts.put( prodName, inProduct );
+	}
+	
+	/*
+	 * Remove a product that is in the catalogue.  Only used while a delta is
+	 * applied, before the catalogue is published
+	 */
+	void removeProduct( String inProdName )
+	{
+		--this.numProducts;
+		
+		if( true == this.base.productIsInCatalogue( inProdName, false ) )
+		{
+			String foldedName	= inProdName.toUpperCase();
+			Integer baseLeft	= this.baseFoldsLeft.get( foldedName );
+			
+			this.changedProducts.put( inProdName, null );
+			this.baseFoldsLeft.put( foldedName, ( ( null == baseLeft ) ? this.base.countFoldedProducts( foldedName ) : baseLeft ) - 1 );
+		}
+		else
+		{
+			this.changedProducts.remove( inProdName );
+			adjustFold( this.addedFolds, inProdName, -1 );
+		}
+	}
+	
+	/*
+	 * This overlay merged with the overlays below it that are not much larger.
+	 * Only used while a delta is applied, before the catalogue is published
+	 */
+	DeltaCatalogue compact()
+	{
+		DeltaCatalogue merged = this;
+		
+		while( merged.base instanceof DeltaCatalogue )
+		{
+			DeltaCatalogue below = (DeltaCatalogue)merged.base;
+			if( below.changedProducts.size() > MERGE_RATIO * Math.max( 1, merged.changedProducts.size() ) )
+			{
+				break;
+			}
+			
+			/*
+			 * Replay the changes of the upper overlay over a copy of the lower one
+			 */
+			DeltaCatalogue next = new DeltaCatalogue( below );
+			for( Map.Entry<String, Product> entry : merged.changedProducts.entrySet() )
+			{
+				if( null == entry.getValue() )
+				{
+					next.removeProduct( entry.getKey() );
+				}
+				else
+				{
+					next.putProduct( entry.getValue() );
+				}
+			}
+			merged = next;
+		}
+		
+		return merged;
+	}
+	
+	private static void adjustFold( HashMap<String, Integer> folds, String inProdName, int change )
+	{
+		String foldedName = inProdName.toUpperCase();
+		Integer count = folds.get( foldedName );
+		int newCount = ( ( null == count ) ? 0 : count ) + change;
+		
+		if( newCount > 0 )
+		{
+			folds.put( foldedName, newCount );
+		}
+		else
+		{
+			folds.remove( foldedName );
+		}
+	}
+	
+	@Override
+	public void addProduct( Product inProduct )
+	{
+		throw new UnsupportedOperationException( "A published catalogue is read-only, apply a CatalogueDelta instead" );
+	}
+	
+	@Override
+	public void addRateToExistingProduct( String inExistingProdName, Rate inRate )
+	{
+		throw new UnsupportedOperationException( "A published catalogue is read-only, apply a CatalogueDelta instead" );
+	}
+	
+	/*
+	 * The base is indexed when it is loaded and changed products as the delta is applied
+	 */
+	@Override
+	public void buildRateIndexes()
+	{
+	}
+	
+	@Override
+	public void mergeCatalogue( Catalogue inOther )
+	{
+		throw new UnsupportedOperationException( "A published catalogue is read-only, apply a CatalogueDelta instead" );
+	}
+
+}
@@ -0,0 +1,78 @@
+package grocery;
+
+import java.util.List;
+
+/*
+ * Fill the quantity greedily: keep taking the best rate (see Product.getBestRate)
+ * for the quantity still to be bought until it is all bought
+ * 
+ * This is fast but not always the cheapest combination, e.g. with 'buy 3 for $1.30'
+ * and 'buy 4 for $1.60' the greedy choice for 6 units is 4 + 1 + 1 rather than 3 + 3
+ * 
+ */
+public class GreedyPricingEngine implements PricingEngine
+{
+	
+	public void rate( Product inProduct, double inQuantity, List<PurchasedProduct> outItems )
+	{
+		int prodNameId			= inProduct.getProductNameId();
+		double prodQuantity		= inQuantity;
+		
+		while( prodQuantity > 0 )
+		{
+			Rate bestRate = inProduct.getBestRate( prodQuantity );
+			
+			if( null == bestRate )
+			{
+				rateRemainder( inProduct, prodQuantity, outItems );
+				break;
+			}
+			
+			double purchasedQuantity = bestRate.getEffectiveQuantity();
+			if( purchasedQuantity <= 0 )
+			{
+				/*
+				 * A rate that buys nothing would never fill the quantity
+				 */
+				break;
+			}
+			
+			outItems.add( new PurchasedProduct( prodNameId, purchasedQuantity, bestRate ) );
+			prodQuantity = prodQuantity - purchasedQuantity;
+		}
+	}
+	
+	/*
+	 * Buy a quantity that is less than the effective quantity of every rate, e.g. half
+	 * an apple.  It is bought with the rate that has the smallest effective quantity;
+	 * a tiered rate charges for just the remainder, any other rate for its full quantity
+	 */
+	static void rateRemainder( Product inProduct, double inRemainder, List<PurchasedProduct> outItems )
+	{
+		PurchasedProduct item = remainderItem( inProduct, inRemainder );
+		
+		if( null != item )
+		{
+			outItems.add( item );
+		}
+	}
+	
+	/*
+	 * The purchased product rateRemainder buys, or null if the product has no rates
+	 */
+	static PurchasedProduct remainderItem( Product inProduct, double inRemainder )
+	{
+		Rate[] rates = inProduct.getRateIndex().rates;
+		
+		if( 0 == rates.length )
+		{
+			return null;
+		}
+		
+		Rate smallestRate			= rates[ 0 ];
+		double purchasedQuantity	= ( true == smallestRate.isTiered() ) ? inRemainder : smallestRate.getEffectiveQuantity();
+		
+		return new PurchasedProduct( inProduct.getProductNameId(), purchasedQuantity, smallestRate );
+	}
+	
+}
@@ -1,17 +1,13 @@
 package grocery;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.StringTokenizer;
 
 /*
  * A console program that does the following:
@@ -26,23 +22,264 @@ import java.util.StringTokenizer;
 public class Grocery {
 	
 	private static Catalogue pricingCatalogue;
-	private static HashMap<String, Double> inputItemList = new HashMap<String, Double>();
+	private static Basket inputItemList = new Basket();
+	private static CheckoutSession checkout;
 	private static ArrayList<PurchasedProduct> purchasedItemList;
 
+	/*
+	 * Command line options
+	 */
+	private static boolean parallelLoad = false;
+	private static boolean offHeap = false;
+	private static String snapshotFile = null;
+	private static PricingEngine pricingEngine = new OptimalPricingEngine();
+	private static String batchFile = null;
+	private static int batchThreads = 1;
+	private static boolean orderedOutput = false;
+	private static boolean overCover = false;
+	private static BillRenderer.Format billFormat = BillRenderer.Format.PIPE;
+	private static int servePort = -1;
+	private static String bindAddress = "127.0.0.1";
+	private static String tokenFile = null;
+	private static boolean watchCatalogue = false;
+	private static ArrayList<String> deltaFiles = new ArrayList<String>();
+	private static int cacheSize = 0;
+	private static String promotionsFile = null;
+	private static PromotionCatalogue promotions = null;
+	
+	/*
+	 * Where progress messages go; stderr when the bills are written to stdout
+	 */
+	private static PrintStream console = System.out;
+
 	public static void main(String[] args) {
 		
-		if( args.length != 1 )
+		String catalogueFile = null;
+		
+		for( int i = 0; i < args.length; ++i )
+		{
+			if( true == args[i].equals( "-parallel" ) )
+			{
+				parallelLoad = true;
+			}
+			else if( true == args[i].equals( "-offheap" ) )
+			{
+				offHeap = true;
+			}
+			else if( true == args[i].equals( "-compile" ) && i + 1 < args.length )
+			{
+				snapshotFile = args[++i];
+			}
+			else if( true == args[i].equals( "-rounding" ) && i + 1 < args.length )
+			{
+				try
+				{
+					Money.setRoundingPolicy( RoundingPolicy.valueOf( args[++i] ) );
+				}
+				catch( IllegalArgumentException iae )
+				{
+					catalogueFile = null;
+					break;
+				}
+			}
+			else if( true == args[i].equals( "-batch" ) && i + 1 < args.length )
+			{
+				batchFile = args[++i];
+				console = System.err;
+			}
+			else if( true == args[i].equals( "-format" ) && i + 1 < args.length )
+			{
+				try
+				{
+					billFormat = BillRenderer.Format.valueOf( args[++i].toUpperCase() );
+				}
+				catch( IllegalArgumentException iae )
+				{
+					catalogueFile = null;
+					break;
+				}
+			}
+			else if( true == args[i].equals( "-threads" ) && i + 1 < args.length )
+			{
+				try
+				{
+					batchThreads = Integer.parseInt( args[++i] );
+				}
+				catch( NumberFormatException nfe )
+				{
+					catalogueFile = null;
+					break;
+				}
+			}
+			else if( true == args[i].equals( "-serve" ) && i + 1 < args.length )
+			{
+				try
+				{
+					servePort = Integer.parseInt( args[++i] );
+				}
+				catch( NumberFormatException nfe )
+				{
+					catalogueFile = null;
+					break;
+				}
+			}
+			else if( true == args[i].equals( "-bind" ) && i + 1 < args.length )
+			{
+				bindAddress = args[++i];
+			}
+			else if( true == args[i].equals( "-token" ) && i + 1 < args.length )
+			{
+				tokenFile = args[++i];
+			}
+			else if( true == args[i].equals( "-delta" ) && i + 1 < args.length )
+			{
+				deltaFiles.add( args[++i] );
+			}
+			else if( true == args[i].equals( "-cache" ) && i + 1 < args.length )
+			{
+				try
+				{
+					cacheSize = Integer.parseInt( args[++i] );
+				}
+				catch( NumberFormatException nfe )
+				{
+					catalogueFile = null;
+					break;
+				}
+			}
+			else if( true == args[i].equals( "-promotions" ) && i + 1 < args.length )
+			{
+				promotionsFile = args[++i];
+			}
+			else if( true == args[i].equals( "-watch" ) )
+			{
+				watchCatalogue = true;
+			}
+			else if( true == args[i].equals( "-ordered" ) )
+			{
+				orderedOutput = true;
+			}
+			else if( true == args[i].equals( "-overcover" ) )
+			{
+				overCover = true;
+			}
+			else if( true == args[i].equals( "-engine" ) && i + 1 < args.length )
+			{
+				pricingEngine = createPricingEngine( args[++i] );
+				if( null == pricingEngine )
+				{
+					catalogueFile = null;
+					break;
+				}
+			}
+			else if( null == catalogueFile && false == args[i].startsWith( "-" ) )
+			{
+				catalogueFile = args[i];
+			}
+			else
+			{
+				catalogueFile = null;
+				break;
+			}
+		}
+		
+		if( true == overCover && pricingEngine instanceof OptimalPricingEngine )
 		{
-			System.err.println( "Please specify a path to a pricing catalogue file" );
+			pricingEngine = new OptimalPricingEngine( true );
+		}
+		else if( true == overCover )
+		{
+			catalogueFile = null;
+		}
+		
+		if( null == catalogueFile )
+		{
+			printUsage();
 			System.exit( 1 );
 		}
 		
-		generateCatalogue( args[0] );
+		Metrics.start();
+		
+		if( cacheSize > 0 )
+		{
+			pricingEngine = new CachingPricingEngine( pricingEngine, cacheSize );
+		}
+		
+		generateCatalogue( catalogueFile );
+		
+		for( String deltaFile : deltaFiles )
+		{
+			applyDelta( deltaFile );
+		}
+		
+		if( null != promotionsFile )
+		{
+			loadPromotions( promotionsFile );
+		}
+		
+		if( null != snapshotFile )
+		{
+			compileCatalogue( snapshotFile );
+			return;
+		}
+		
+		if( null != batchFile )
+		{
+			priceBatch( batchFile );
+			return;
+		}
+		
+		if( servePort >= 0 )
+		{
+			serve( servePort, catalogueFile );
+			return;
+		}
+		
 		gatherUserInput();
 		rateItem();
 		printItemizedBill();
 	}
 	
+	private static void printUsage()
+	{
+		System.err.println( "Please specify a path to a pricing catalogue file" );
+		System.err.println( "Usage: java grocery.Grocery [OPTIONS] PATH_TO_FILE" );
+		System.err.println( "  -parallel                 load the catalogue on all cores" );
+		System.err.println( "  -offheap                  keep the catalogue outside the Java heap" );
+		System.err.println( "  -compile SNAPSHOT_FILE    write the catalogue to a binary snapshot and exit" );
+		System.err.println( "  -engine optimal|greedy    how rates are combined (default optimal)" );
+		System.err.println( "  -overcover                let the optimal engine buy more than asked when it costs less" );
+		System.err.println( "  -rounding POLICY          HALF_UP (default), HALF_EVEN, HALF_DOWN, UP or DOWN" );
+		System.err.println( "  -batch BASKET_FILE|-      price the baskets in a file (or stdin) without prompting" );
+		System.err.println( "  -format FORMAT            batch bills as TEXT, PIPE (default), CSV or JSON" );
+		System.err.println( "  -threads N                price batch baskets on N rater threads" );
+		System.err.println( "  -ordered                  with -threads, write the bills in input order" );
+		System.err.println( "  -serve PORT               serve pricing over HTTP/JSON instead of prompting" );
+		System.err.println( "  -bind ADDRESS             with -serve, the address to listen on (default 127.0.0.1)" );
+		System.err.println( "  -token TOKEN_FILE         with -serve, require the token in the file to change the catalogue" );
+		System.err.println( "  -watch                    with -serve, reload the catalogue when the file changes" );
+		System.err.println( "  -delta FILE               apply a catalogue delta after loading (may be repeated)" );
+		System.err.println( "  -cache N                  remember the rating of up to N product quantities" );
+		System.err.println( "  -promotions FILE          price baskets with the bundles in a promotions file" );
+	}
+	
+	/*
+	 * Returns the pricing engine with the given name, or null if there is none
+	 */
+	private static PricingEngine createPricingEngine( String engineName )
+	{
+		if( true == engineName.equals( "optimal" ) )
+		{
+			return new OptimalPricingEngine();
+		}
+		else if( true == engineName.equals( "greedy" ) )
+		{
+			return new GreedyPricingEngine();
+		}
+		
+		return null;
+	}
+	
 	/*
 	 * Parse a text dlimited file that holds pricing information
 	 * A sample looks like the following:
@@ -66,82 +303,182 @@ public class Grocery {
 	 *           - For a tiered model, specify different tiers separated by ';'
 	 *           - information within a tier is separated by ','
 	 *           - e.g 1-5,0.50,0.8 reads The first 5 unit is charged at 0.50 each with 20% off
+	 *
+	 * With -parallel the file is split into chunks that are parsed on all cores.
+	 * With -offheap the products and rates are kept outside the heap (see
+	 * OffHeapCatalogue)
+	 *
+	 * The file may also be a binary snapshot written with -compile, in which case it
+	 * is memory-mapped instead of parsed
 	 */
 	private static void generateCatalogue( String inputFile ) {
 		
 		try {
 			
-            List<String> lines = Files.readAllLines( 
-            		Paths.get(inputFile),
-                    Charset.defaultCharset() );
-            
-            pricingCatalogue = new Catalogue();
-            
-            Boolean compareIgnoreCase = false;
-            
-            /*
-             * Step through each line
-             */
-            for (String line : lines) {
-                
-            	StringTokenizer token = new StringTokenizer( line, "|" );
-            	
-            	String productName       = (String)token.nextElement();
-            	String rateName          = (String)token.nextElement();
-            	String rateDescr         = (String)token.nextElement();
-            	Double effectiveQuantity = new Double( (String)token.nextElement() );
-            	
-            	Double effectivePrice;
-            	String tierPrice;
-            	Rate newRate;
-            	Product newProduct;
-            	
-            	if( effectiveQuantity == -1 )
-            	{
-            		/*
-            		 * A tiered rate
-            		 */
-            		tierPrice = (String)token.nextElement();
-            		newRate = new Rate( rateName, rateDescr, tierPrice );
-            		
-            	}
-            	else
-            	{
-            		/*
-            		 * Non-tiered rate
-            		 */
-            		effectivePrice = new Double( (String)token.nextElement() );
-            		newRate = new Rate( rateName, rateDescr, effectiveQuantity, effectivePrice );
-            	}
+			/*
+			 * Stream through the file; malformed lines are reported and skipped
+			 */
+			pricingCatalogue = CatalogueReloader.load( inputFile, parallelLoad, offHeap );
+			
+		} 
+		catch (IOException e) {
+			e.printStackTrace();
+			
+			pricingCatalogue = new Catalogue();
+			pricingCatalogue.buildRateIndexes();
+		}
+		
+		//pricingCatalogue.printCatalogue();
+		console.println( "Price catalogue loaded sucessfully from [" + inputFile + "]\n" );
+		
+	}
 
-            	if( true == pricingCatalogue.productIsInCatalogue( productName, compareIgnoreCase ) )
-            	{
-            		/*
-            		 * Add the rate to the existing product
-            		 */
-            		pricingCatalogue.addRateToExistingProduct( productName, newRate );
-            	}
-            	else
-            	{
-            		/*
-            		 * Create a product and associate the rate to the product
-            		 * Add the product to the catalogue
-            		 */
-            		newProduct = new Product( productName );
-                	newProduct.addRate( newRate );
-                	pricingCatalogue.addProduct( newProduct );
-            	}
+	/*
+	 * Apply the changes of a delta file (see CatalogueDelta) to the loaded catalogue
+	 */
+	private static void applyDelta( String deltaFile ) {
+		
+		try {
+			CatalogueDelta delta = CatalogueDelta.parse( deltaFile );
+			ArrayList<String> errors = new ArrayList<String>();
+			
+			pricingCatalogue = delta.apply( pricingCatalogue, errors );
+			
+			for( String error : delta.getParseErrors() )
+			{
+				System.err.println( error );
+			}
+			for( String error : errors )
+			{
+				System.err.println( error );
+			}
+			console.println( "Price catalogue delta applied from [" + deltaFile + "] ("
+					+ ( delta.getNumChanges() - errors.size() ) + " change(s))\n" );
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+		
+	}
 
-            	
-            } // end reading input file
-            
-        } 
+	/*
+	 * Read the bundle promotions (see PromotionCatalogue) that baskets are priced with
+	 */
+	private static void loadPromotions( String inputFile ) {
+		
+		try {
+			promotions = PromotionCatalogue.parse( inputFile );
+			
+			for( String error : promotions.getParseErrors() )
+			{
+				System.err.println( error );
+			}
+			console.println( "Promotions loaded from [" + inputFile + "] (" + promotions.getNumRules() + " rule(s))\n" );
+		}
 		catch (IOException e) {
-            e.printStackTrace();
-        }
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	
+	}
+	
+	/*
+	 * Write the loaded catalogue to a binary snapshot that later runs can load directly
+	 */
+	private static void compileCatalogue( String outputFile ) {
 		
-		//pricingCatalogue.printCatalogue();
-		System.out.println( "Price catalogue loaded sucessfully from [" + inputFile + "]\n" );
+		try {
+			CatalogueSnapshot.write( pricingCatalogue, outputFile );
+			console.println( "Price catalogue snapshot written to [" + outputFile + "]" );
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+		
+	}
+
+	/*
+	 * Price every basket in the file ('-' for stdin) and write the bills to stdout.
+	 * See BatchPricer for the formats.  With more than one thread the baskets go
+	 * through a PricingPipeline
+	 */
+	private static void priceBatch( String inputFile ) {
+		
+		BatchPricer pricer = null;
+		PricingPipeline pipeline = null;
+		
+		try( InputStream in = ( true == inputFile.equals( "-" ) ) ? System.in : new FileInputStream( inputFile ) )
+		{
+			if( batchThreads > 1 )
+			{
+				pipeline = new PricingPipeline( pricingCatalogue, pricingEngine, billFormat, promotions, batchThreads, orderedOutput );
+				pipeline.run( in, System.out );
+			}
+			else
+			{
+				pricer = new BatchPricer( pricingCatalogue, pricingEngine, billFormat, promotions );
+				pricer.run( in, System.out );
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+		
+		if( null != pipeline )
+		{
+			console.println( "Priced " + pipeline.getBasketCount() + " basket(s) in " + pipeline.getElapsedMillis() + " ms ("
+					+ (long)pipeline.getBasketsPerSecond() + " baskets/s, " + pipeline.getErrorCount() + " error(s))" );
+		}
+		else
+		{
+			console.println( "Priced " + pricer.getBasketCount() + " basket(s) in " + pricer.getElapsedMillis() + " ms ("
+					+ (long)pricer.getBasketsPerSecond() + " baskets/s, " + pricer.getErrorCount() + " error(s))" );
+		}
+		
+		if( pricingEngine instanceof CachingPricingEngine )
+		{
+			console.println( ( (CachingPricingEngine)pricingEngine ).describe() );
+		}
+		
+	}
+
+	/*
+	 * Start the HTTP pricing service.  It keeps running after main returns.
+	 * The catalogue can be reloaded with POST /reload, or on every change to
+	 * the file with -watch.  With -token, POST /reload and /delta need the token
+	 */
+	private static void serve( int port, String catalogueFile ) {
+		
+		CatalogueHolder holder = new CatalogueHolder( pricingCatalogue );
+		CatalogueReloader reloader = new CatalogueReloader( holder, catalogueFile, parallelLoad, offHeap );
+		PricingServer server = null;
+		
+		try {
+			String token = ( null == tokenFile ) ? null
+					: new String( Files.readAllBytes( Paths.get( tokenFile ) ), StandardCharsets.UTF_8 ).trim();
+			if( null != token && token.isEmpty() )
+			{
+				System.err.println( "Token file [" + tokenFile + "] is empty" );
+				System.exit( 1 );
+			}
+			
+			server = new PricingServer( holder, reloader, pricingEngine, promotions, token );
+			reloader.start();
+			if( true == watchCatalogue )
+			{
+				reloader.watch();
+			}
+			server.start( bindAddress, port );
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+		
+		console.println( "Pricing service listening on " + bindAddress + " port " + server.getPort() );
 		
 	}
 
@@ -152,17 +489,12 @@ public class Grocery {
 	private static void gatherUserInput()
 	{
 
-        BufferedReader br 			= new BufferedReader(new InputStreamReader( System.in ) );
-        String inStr 				= new String();
+        ByteLineReader reader		= new ByteLineReader( System.in, 1024 );
+        BasketLineScanner scanner	= new BasketLineScanner( pricingCatalogue );
         String magicWord			= "CHECK OUT";
-        Boolean readyToCheckOut 	= false;
-        Boolean compareIgnoreCase	= false;
-        StringTokenizer item_tok	= null;
-        String tok					= null;
-        String itemName				= new String();
-        Double itemQuantity			= new Double( 0 );
+        boolean readyToCheckOut 	= false;
         
-        inputItemList.clear();
+        checkout = new CheckoutSession( pricingEngine );
         System.out.println( "Please enter an item with quantity in a format like '2 apple'" );
         System.out.println( "When you are done entering item(s), type 'CHECK OUT' to get an itemized bill" );
         
@@ -172,71 +504,63 @@ public class Grocery {
         	System.out.print( ">> ");
         	
         	try {
-        		inStr = br.readLine();
+        		if( false == reader.next() ) {
+        			/*
+        			 * Nothing more to read, so check out what there is
+        			 */
+        			break;
+        		}
         	}catch( IOException ioe ) {
         		System.err.println("Failed to read line item");
+        		break;
         	}
         	
-        	item_tok = new StringTokenizer( inStr );
+        	if( true == BasketLineScanner.matches( reader.getBuffer(), reader.getLineStart(), reader.getLineEnd(), magicWord ) ) {
+        		readyToCheckOut = true;
+        		continue;
+        	}
         	
-        	while( 	false == inStr.equals( magicWord )
-        			&&
-        			true == item_tok.hasMoreTokens() )
+        	/*
+        	 * ASSUMPTION: User is going to enter something like "5 apple"
+        	 * That is, quantity, space then item name
+        	 *
+        	 * Each item is validated against the catalogue (case sensitive) and
+        	 * priced straight away, added to the same item entered before
+        	 */
+        	inputItemList.clear();
+        	scanner.scanItems( reader.getBuffer(), reader.getLineStart(), reader.getLineEnd(), inputItemList );
+        	
+        	/*
+        	 * A line over the limits of the scanner is refused as a whole
+        	 */
+        	for( int i = 0; false == scanner.isOverLimit() && i < inputItemList.size(); ++i )
         	{
-        		
-        		/*
-        		 * ASSUMPTION: User is going to enter something like "5 apple"
-        		 * That is, quantity, space then item name
-        		 */
-        		
-        		try
-        		{
-        			tok = item_tok.nextElement().toString();
-        			itemQuantity = new Double( tok );
-        			tok = item_tok.nextElement().toString();
-        		}
-        		catch( NumberFormatException nfe )
-        		{
-        			System.err.println( "[" + tok + "] is not something I recognize.  Try something like '2 apple'" );
-        			break;
-        		}
-        		catch( Exception e )
-        		{
-        			System.err.println( "Oops I did not understand that.  Try something like '2 apple'" );
-        			break;
-        		}
-      
-        		itemName = tok;
-        		//System.out.println( "--- ITEM [" + itemName + "] QUANTITY [" + ItemQuantity + "]" );
-        		
-        		/*
-        		 * Validate the entered product name matches a product from the catalogue
-        		 * Case sensitive
-        		 */
-        		if( false == pricingCatalogue.productIsInCatalogue( itemName, compareIgnoreCase ) )
+        		checkout.add( inputItemList.getProduct( i ), inputItemList.getQuantity( i ) );
+        	}
+        	
+        	for( int i = 0; i < scanner.getErrorCount(); ++i )
+        	{
+        		switch( scanner.getErrorCode( i ) )
         		{
-        			System.err.println( "Item [" + itemName + "] does not exist in the catalogue" );
-        			continue;
-        		}
-        		
-        		if( true == inputItemList.containsKey( itemName ) ) {
-        			/*
-        			 * Update the quantity
-        			 */
-        			itemQuantity = itemQuantity + inputItemList.get( itemName );
-        			inputItemList.remove( itemName );
-        			inputItemList.put( itemName, itemQuantity );
-        		}
-        		else {
-        			/*
-        			 * Add the product and the quantity
-        			 */
-        			inputItemList.put( itemName, itemQuantity );
+        			case BAD_QUANTITY:
+        				System.err.println( "[" + scanner.getErrorToken( i ) + "] is not something I recognize.  Try something like '2 apple'" );
+        				break;
+        			case UNKNOWN_ITEM:
+        				System.err.println( "Item [" + scanner.getErrorToken( i ) + "] does not exist in the catalogue" );
+        				break;
+        			case TOO_MANY_UNITS:
+        			case TOO_MANY_ITEMS:
+        			case BASKET_TOO_LARGE:
+        				System.err.println( "Sorry, " + scanner.getErrorMessage( i ) );
+        				break;
+        			default:
+        				System.err.println( "Oops I did not understand that.  Try something like '2 apple'" );
+        				break;
         		}
         	}
         	
-        	if( true == inStr.equals( magicWord ) ) {
-        		readyToCheckOut = true;
+        	if( inputItemList.size() > 0 ) {
+        		System.out.println( "Running total: $" + Money.format( checkout.getTotal() ) );
         	}
         }
         
@@ -245,55 +569,21 @@ public class Grocery {
 	}
 	
 	/*
-	 * Loop through the custom input items and find the best deal(s)
+	 * Collect the best deal(s) of the input items, which the checkout session
+	 * priced as they were entered.  With promotions the basket is priced again with
+	 * its cheapest set of bundles, so the bill may come to less than the running total
 	 */
 	private static void rateItem()
 	{
 		purchasedItemList = new ArrayList<PurchasedProduct>();
-		Product aProduct;
-		Rate bestRate;
-		PurchasedProduct pp;
-		double purchasedQuantity = 0;
-		
-		/*
-		 * Step through each input item with quantity
-		 */
-		for( Map.Entry<String, Double> entry : inputItemList.entrySet() )
+		
+		if( null != promotions )
+		{
+			new BundleOptimizer( promotions, pricingEngine ).rate( checkout.getBasket(), purchasedItemList );
+		}
+		else
 		{
-		    String prodName 		= entry.getKey();
-		    Double prodQuantity 	= entry.getValue();
-		    
-		    /*
-		     * Find the product from the catalogue
-		     */
-		    aProduct = pricingCatalogue.getProduct( prodName );
-		    
-		    /*
-		     * Get the best rate from the product
-		     */
-		    bestRate = aProduct.getBestRate( prodQuantity );
-		    purchasedQuantity = bestRate.getEffectiveQuantity();
-		    
-		    pp = new PurchasedProduct( prodName, purchasedQuantity, bestRate );
-		    purchasedItemList.add( pp );
-		    
-		    prodQuantity = prodQuantity - purchasedQuantity;
-		    
-		    /*
-		     * Keep finding the best rate for the same product until we
-		     * have filled the quantity
-		     */
-		    while( prodQuantity > 0 )
-		    {
-			    bestRate = aProduct.getBestRate( prodQuantity );
-			    purchasedQuantity = bestRate.getEffectiveQuantity();
-			    
-			    pp = new PurchasedProduct( prodName, purchasedQuantity, bestRate );
-			    purchasedItemList.add( pp );
-			    
-			    prodQuantity = prodQuantity - purchasedQuantity;
-		    }
-		    
+			checkout.appendLines( purchasedItemList );
 		}
 	}
 	
@@ -302,22 +592,17 @@ public class Grocery {
 	 */
 	private static void printItemizedBill()
 	{
-		PurchasedProduct pp = null;
-		Double totalDue = new Double( 0 );
-		Double lineTotal = new Double( 0 );
+		BillRenderer renderer = new BillRenderer( BillRenderer.Format.TEXT, System.out );
 		
-		System.out.println( "\nHere is your invoice:" );
-		
-		Iterator ite = purchasedItemList.iterator();
-		while( ite.hasNext() )
+		try
 		{
-			pp = (PurchasedProduct)ite.next();
-			lineTotal = pp.getPurhcasedCost();
-			System.out.format( "%10s%20s%10.2f\n", pp.getPurchasedProductName(), pp.getPurchasedRateDescr(), lineTotal );
-			totalDue += lineTotal;
+			renderer.render( null, purchasedItemList );
+			renderer.flush();
+		}
+		catch( IOException e )
+		{
+			e.printStackTrace();
 		}
-		
-		System.out.format( "\n%10s%20s$%9.2f\n", "TOTAL DUE", "", totalDue );
 		
 	}
 	
@@ -0,0 +1,218 @@
+package grocery;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A histogram of durations in nanoseconds, for percentiles like p99 (see Metrics)
+ *
+ * Durations are counted in log-linear buckets: every power of two is split into
+ * 32 equal buckets, so a percentile is within about 3% of the true value, from
+ * nanoseconds up to hours, in a fixed 2K buckets.
+ *
+ * Recording is lock-free and cheap: one increment of an atomic counter in a stripe
+ * picked by the recording thread, so threads seldom share a cache line.  Each
+ * stripe also keeps the total and the largest duration.  Reading adds the stripes
+ * up; a read taken while threads record may miss the latest few durations.
+ *
+ */
+public class LatencyHistogram
+{
+	
+	private static final int SUB_BUCKET_BITS	= 5;
+	private static final int SUB_BUCKETS		= 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS		= ( 64 - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS;
+	
+	/*
+	 * Slots after the buckets of a stripe
+	 */
+	private static final int TOTAL_SLOT			= NUM_BUCKETS;
+	private static final int MAX_SLOT			= NUM_BUCKETS + 1;
+	private static final int STRIPE_LENGTH		= NUM_BUCKETS + 2;
+	
+	private final String name;
+	private final AtomicLongArray[] stripes;
+	
+	LatencyHistogram( String inName )
+	{
+		this.name = inName;
+		
+		int numStripes = 1;
+		while( numStripes < Runtime.getRuntime().availableProcessors() && numStripes < 64 )
+		{
+			numStripes <<= 1;
+		}
+		
+		this.stripes = new AtomicLongArray[ numStripes ];
+		for( int i = 0; i < numStripes; ++i )
+		{
+			this.stripes[ i ] = new AtomicLongArray( STRIPE_LENGTH );
+		}
+	}
+	
+	public String getName()
+	{
+		return this.name;
+	}
+	
+	/*
+	 * Count one duration
+	 */
+	public void record( long inNanos )
+	{
+		long nanos = Math.max( 0, inNanos );
+		AtomicLongArray stripe = this.stripes[ (int)Thread.currentThread().getId() & ( this.stripes.length - 1 ) ];
+		
+		stripe.incrementAndGet( bucketOf( nanos ) );
+		stripe.addAndGet( TOTAL_SLOT, nanos );
+		
+		long max = stripe.get( MAX_SLOT );
+		while( nanos > max && false == stripe.compareAndSet( MAX_SLOT, max, nanos ) )
+		{
+			max = stripe.get( MAX_SLOT );
+		}
+	}
+	
+	/*
+	 * Values below SUB_BUCKETS have a bucket each; above, the highest bit picks a
+	 * group of SUB_BUCKETS buckets and the next SUB_BUCKET_BITS bits the bucket
+	 */
+	static int bucketOf( long nanos )
+	{
+		if( nanos < SUB_BUCKETS )
+		{
+			return (int)nanos;
+		}
+		
+		int highestBit	= 63 - Long.numberOfLeadingZeros( nanos );
+		int shift		= highestBit - SUB_BUCKET_BITS;
+		
+		return ( shift + 1 ) * SUB_BUCKETS + (int)( ( nanos >>> shift ) & ( SUB_BUCKETS - 1 ) );
+	}
+	
+	/*
+	 * The largest value that falls in a bucket, which percentiles report (never more
+	 * than the largest duration recorded)
+	 */
+	static long highestValueOf( int bucket )
+	{
+		if( bucket < SUB_BUCKETS )
+		{
+			return bucket;
+		}
+		
+		int shift	= bucket / SUB_BUCKETS - 1;
+		long lowest	= (long)( SUB_BUCKETS + bucket % SUB_BUCKETS ) << shift;
+		
+		return lowest + ( 1L << shift ) - 1;
+	}
+	
+	/*
+	 * The counts of the buckets over all stripes
+	 */
+	private long[] snapshot()
+	{
+		long[] counts = new long[ NUM_BUCKETS ];
+		
+		for( AtomicLongArray stripe : this.stripes )
+		{
+			for( int b = 0; b < NUM_BUCKETS; ++b )
+			{
+				counts[ b ] += stripe.get( b );
+			}
+		}
+		
+		return counts;
+	}
+	
+	public long getCount()
+	{
+		long count = 0;
+		
+		for( long bucketCount : this.snapshot() )
+		{
+			count += bucketCount;
+		}
+		
+		return count;
+	}
+	
+	public long getTotalNanos()
+	{
+		long total = 0;
+		
+		for( AtomicLongArray stripe : this.stripes )
+		{
+			total += stripe.get( TOTAL_SLOT );
+		}
+		
+		return total;
+	}
+	
+	public long getMaxNanos()
+	{
+		long max = 0;
+		
+		for( AtomicLongArray stripe : this.stripes )
+		{
+			max = Math.max( max, stripe.get( MAX_SLOT ) );
+		}
+		
+		return max;
+	}
+	
+	/*
+	 * The duration that inFraction of the durations are at or below, e.g. 0.99 for
+	 * p99.  0 if nothing was recorded
+	 */
+	public long getPercentileNanos( double inFraction )
+	{
+		return Math.min( percentileOf( this.snapshot(), inFraction ), this.getMaxNanos() );
+	}
+	
+	/*
+	 * { count, p50, p99, p999, max, total } from a single snapshot
+	 */
+	public long[] getSummary()
+	{
+		long[] counts	= this.snapshot();
+		long max		= this.getMaxNanos();
+		long count		= 0;
+		
+		for( long bucketCount : counts )
+		{
+			count += bucketCount;
+		}
+		
+		return new long[] { count, Math.min( percentileOf( counts, 0.5 ), max ), Math.min( percentileOf( counts, 0.99 ), max ),
+				Math.min( percentileOf( counts, 0.999 ), max ), max, this.getTotalNanos() };
+	}
+	
+	private static long percentileOf( long[] counts, double inFraction )
+	{
+		long count = 0;
+		for( long bucketCount : counts )
+		{
+			count += bucketCount;
+		}
+		
+		if( 0 == count )
+		{
+			return 0;
+		}
+		
+		long rank		= Math.max( 1, (long)Math.ceil( inFraction * count ) );
+		long seen		= 0;
+		
+		for( int b = 0; b < NUM_BUCKETS; ++b )
+		{
+			seen += counts[ b ];
+			if( seen >= rank )
+			{
+				return highestValueOf( b );
+			}
+		}
+		
+		return highestValueOf( NUM_BUCKETS - 1 );
+	}
+
+}
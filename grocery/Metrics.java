@@ -0,0 +1,321 @@
+package grocery;
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms of every pricing stage
+ *
+ * Metrics are off unless the JVM is started with -Dgrocery.metrics=true.  The
+ * switch is a static final, so with metrics off the JIT drops the timing at every
+ * stage and pricing pays nothing for it.  With metrics on, each stage records how
+ * long it took in a LatencyHistogram:
+ *
+ * catalogueLoad		loading a catalogue (see CatalogueReloader.load)
+ * getProduct			Catalogue.getProduct
+ * getBestRate			Product.getBestRate
+ * getTierPrice			Rate.getTierPrice
+ * bill					writing one bill (interactive, batch and server)
+ *
+ * and productMisses and billLines count the product lookups that found nothing and
+ * the lines written on bills.  symbols and symbolChars are the size of the
+ * SymbolTable, which only grows.
+ *
+ * Once started the metrics are published over JMX as grocery:type=Metrics (e.g. the
+ * attribute getProduct.p99 in jconsole), written to stderr every
+ * -Dgrocery.metrics.interval seconds if that is set, and written once more at exit.
+ *
+ */
+public class Metrics
+{
+	
+	public static final boolean ENABLED = Boolean.getBoolean( "grocery.metrics" );
+	
+	public static final LatencyHistogram CATALOGUE_LOAD	= histogram( "catalogueLoad" );
+	public static final LatencyHistogram GET_PRODUCT	= histogram( "getProduct" );
+	public static final LatencyHistogram GET_BEST_RATE	= histogram( "getBestRate" );
+	public static final LatencyHistogram GET_TIER_PRICE	= histogram( "getTierPrice" );
+	public static final LatencyHistogram BILL			= histogram( "bill" );
+	
+	public static final LongAdder PRODUCT_MISSES		= counter();
+	public static final LongAdder BILL_LINES			= counter();
+	
+	private static final String[] COUNTER_NAMES = { "productMisses", "billLines", "symbols", "symbolChars" };
+	
+	private static final String[] SUMMARY_NAMES = { "count", "p50", "p99", "p999", "max", "mean" };
+	
+	private static boolean started = false;
+	
+	private Metrics()
+	{
+	}
+	
+	/*
+	 * The histograms are only created when metrics are on, so that nothing can
+	 * record into them by mistake when they are off
+	 */
+	private static LatencyHistogram histogram( String name )
+	{
+		return ( true == ENABLED ) ? new LatencyHistogram( name ) : null;
+	}
+	
+	private static LongAdder counter()
+	{
+		return ( true == ENABLED ) ? new LongAdder() : null;
+	}
+	
+	private static LatencyHistogram[] histograms()
+	{
+		return new LatencyHistogram[] { CATALOGUE_LOAD, GET_PRODUCT, GET_BEST_RATE, GET_TIER_PRICE, BILL };
+	}
+	
+	/*
+	 * The counters, and the sizes that are read rather than counted
+	 */
+	private static long[] counterValues()
+	{
+		return new long[] { PRODUCT_MISSES.sum(), BILL_LINES.sum(), SymbolTable.size(), SymbolTable.charCount() };
+	}
+	
+	/*
+	 * Publish the metrics over JMX and start writing them to stderr.  Does nothing
+	 * when metrics are off
+	 */
+	public static synchronized void start()
+	{
+		if( false == ENABLED || true == started )
+		{
+			return;
+		}
+		started = true;
+		
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean( new MetricsBean(), new ObjectName( "grocery:type=Metrics" ) );
+		}
+		catch( JMException jme )
+		{
+			System.err.println( "Metrics could not be published over JMX: " + jme.getMessage() );
+		}
+		
+		long interval = Long.getLong( "grocery.metrics.interval", 0 );
+		if( interval > 0 )
+		{
+			new Timer( "metrics-dump", true ).scheduleAtFixedRate( new TimerTask()
+			{
+				public void run()
+				{
+					System.err.print( report() );
+				}
+			}, interval * 1000, interval * 1000 );
+		}
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( new Runnable()
+		{
+			public void run()
+			{
+				System.err.print( report() );
+			}
+		}, "metrics-report" ) );
+	}
+	
+	/*
+	 * The metrics as a table, e.g.
+	 *
+	 * stage                count       p50       p99      p999       max      mean
+	 * getProduct          300000     150ns     1.2us     9.8us     2.1ms     180ns
+	 *
+	 * productMisses            0
+	 */
+	public static String report()
+	{
+		StringBuilder text = new StringBuilder( 1024 );
+		
+		if( false == ENABLED )
+		{
+			return "Metrics are off (run with -Dgrocery.metrics=true)\n";
+		}
+		
+		text.append( String.format( "%-16s%10s%10s%10s%10s%10s%10s\n", "stage", "count", "p50", "p99", "p999", "max", "mean" ) );
+		for( LatencyHistogram histogram : histograms() )
+		{
+			long[] summary = histogram.getSummary();
+			
+			text.append( String.format( "%-16s%10d%10s%10s%10s%10s%10s\n", histogram.getName(), summary[ 0 ],
+					formatNanos( summary[ 1 ] ), formatNanos( summary[ 2 ] ), formatNanos( summary[ 3 ] ),
+					formatNanos( summary[ 4 ] ), formatNanos( mean( summary ) ) ) );
+		}
+		
+		text.append( '\n' );
+		long[] values = counterValues();
+		for( int i = 0; i < COUNTER_NAMES.length; ++i )
+		{
+			text.append( String.format( "%-16s%10d\n", COUNTER_NAMES[ i ], values[ i ] ) );
+		}
+		
+		return text.toString();
+	}
+	
+	/*
+	 * The metrics as a JSON object, in nanoseconds, e.g.
+	 * { "getProduct": { "count": 300000, "p50": 150, ... }, "productMisses": 0 }
+	 */
+	public static void appendJson( StringBuilder json )
+	{
+		json.append( '{' );
+		
+		for( LatencyHistogram histogram : histograms() )
+		{
+			long[] summary = histogram.getSummary();
+			
+			json.append( '"' ).append( histogram.getName() ).append( "\":{" );
+			for( int i = 0; i < SUMMARY_NAMES.length; ++i )
+			{
+				json.append( ( 0 == i ) ? "\"" : ",\"" ).append( SUMMARY_NAMES[ i ] ).append( "\":" );
+				json.append( ( 5 == i ) ? mean( summary ) : summary[ i ] );
+			}
+			json.append( "}," );
+		}
+		
+		long[] values = counterValues();
+		for( int i = 0; i < COUNTER_NAMES.length; ++i )
+		{
+			json.append( ( 0 == i ) ? "\"" : ",\"" ).append( COUNTER_NAMES[ i ] ).append( "\":" ).append( values[ i ] );
+		}
+		
+		json.append( '}' );
+	}
+	
+	private static long mean( long[] summary )
+	{
+		return ( 0 == summary[ 0 ] ) ? 0 : summary[ 5 ] / summary[ 0 ];
+	}
+	
+	/*
+	 * e.g. 850ns, 12.4us, 3.0ms, 1.25s
+	 */
+	static String formatNanos( long nanos )
+	{
+		if( nanos < 1000 )
+		{
+			return nanos + "ns";
+		}
+		else if( nanos < 1000000 )
+		{
+			return String.format( "%.1fus", nanos / 1e3 );
+		}
+		else if( nanos < 1000000000 )
+		{
+			return String.format( "%.1fms", nanos / 1e6 );
+		}
+		
+		return String.format( "%.2fs", nanos / 1e9 );
+	}
+	
+	/*
+	 * The JMX view: an attribute per counter and per histogram summary, e.g.
+	 * getProduct.p99, in nanoseconds
+	 */
+	private static final class MetricsBean implements DynamicMBean
+	{
+		
+		public Object getAttribute( String attribute ) throws AttributeNotFoundException
+		{
+			for( int i = 0; i < COUNTER_NAMES.length; ++i )
+			{
+				if( true == COUNTER_NAMES[ i ].equals( attribute ) )
+				{
+					return counterValues()[ i ];
+				}
+			}
+			
+			for( LatencyHistogram histogram : histograms() )
+			{
+				for( int i = 0; i < SUMMARY_NAMES.length; ++i )
+				{
+					if( true == attribute.equals( histogram.getName() + "." + SUMMARY_NAMES[ i ] ) )
+					{
+						long[] summary = histogram.getSummary();
+						return ( 5 == i ) ? mean( summary ) : summary[ i ];
+					}
+				}
+			}
+			
+			throw new AttributeNotFoundException( attribute );
+		}
+		
+		public AttributeList getAttributes( String[] attributes )
+		{
+			AttributeList list = new AttributeList();
+			
+			for( String attribute : attributes )
+			{
+				try
+				{
+					list.add( new Attribute( attribute, this.getAttribute( attribute ) ) );
+				}
+				catch( AttributeNotFoundException anfe )
+				{
+					/*
+					 * Left out of the list, as the JMX contract asks
+					 */
+				}
+			}
+			
+			return list;
+		}
+		
+		public void setAttribute( Attribute attribute ) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException( "Metrics are read-only" );
+		}
+		
+		public AttributeList setAttributes( AttributeList attributes )
+		{
+			return new AttributeList();
+		}
+		
+		public Object invoke( String actionName, Object[] params, String[] signature )
+		{
+			throw new UnsupportedOperationException( actionName );
+		}
+		
+		public MBeanInfo getMBeanInfo()
+		{
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ COUNTER_NAMES.length + histograms().length * SUMMARY_NAMES.length ];
+			int next = 0;
+			
+			for( String name : COUNTER_NAMES )
+			{
+				attributes[ next++ ] = new MBeanAttributeInfo( name, "long", name, true, false, false );
+			}
+			
+			for( LatencyHistogram histogram : histograms() )
+			{
+				for( String summaryName : SUMMARY_NAMES )
+				{
+					String name = histogram.getName() + "." + summaryName;
+					attributes[ next++ ] = new MBeanAttributeInfo( name, "long",
+							( true == summaryName.equals( "count" ) ) ? name : name + " in nanoseconds", true, false, false );
+				}
+			}
+			
+			return new MBeanInfo( Metrics.class.getName(), "Pricing stage metrics", attributes, null,
+					new MBeanOperationInfo[ 0 ], null );
+		}
+	
+	}
+
+}
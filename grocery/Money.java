@@ -0,0 +1,249 @@
+package grocery;
+
+/*
+ * Money is held as a long number of minor units:
+ * 
+ * - mills (thousandths of the currency unit) for catalogue prices and the cost of
+ *   a rate, so that a tier price like 0.95 at a 0.50 scale (0.475) is exact
+ * - cents for what goes on the bill: each line total, and the total due
+ * 
+ * Scales, such as a tier's 0.5 or a 30% discount (0.7), are held as a long number
+ * of parts per SCALE_PARTS (5000 and 7000), so scaling a price is integer math.
+ * 
+ * Every step that drops precision (a price with more than 3 decimals, a scale with
+ * more than 4, a tier scale that does not give whole mills, a fractional quantity,
+ * a line total in mills going to cents) is rounded with the rounding policy,
+ * HALF_UP unless set otherwise.  Set the policy before the catalogue is loaded.
+ * 
+ * Because amounts are exact, a line of exactly half a cent, e.g. 0.475, is rounded
+ * HALF_UP to 0.48.  When prices were doubles the same line was 0.4749999... and
+ * billed 0.47, so such lines now bill a cent more than they used to.
+ * 
+ */
+public final class Money
+{
+	
+	public static final long MILLS_PER_CENT	= 10;
+	public static final long MILLS_PER_UNIT	= 1000;
+	public static final long SCALE_PARTS	= 10000;
+	
+	/*
+	 * Returned by the parse methods for something that is not an amount
+	 */
+	public static final long INVALID		= Long.MIN_VALUE;
+	
+	private static final int MAX_DIGITS		= 18;
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+												100000000L, 1000000000L, 10000000000L, 100000000000L, 1000000000000L,
+												10000000000000L, 100000000000000L, 1000000000000000L,
+												10000000000000000L, 100000000000000000L, 1000000000000000000L };
+	
+	private static volatile RoundingPolicy roundingPolicy = RoundingPolicy.HALF_UP;
+	
+	private Money()
+	{
+	}
+	
+	public static RoundingPolicy getRoundingPolicy()
+	{
+		return roundingPolicy;
+	}
+	
+	public static void setRoundingPolicy( RoundingPolicy inPolicy )
+	{
+		roundingPolicy = inPolicy;
+	}
+	
+	/*
+	 * Round an amount in mills to cents
+	 */
+	public static long toCents( long inMills )
+	{
+		return roundingPolicy.divide( inMills, MILLS_PER_CENT );
+	}
+	
+	/*
+	 * The cost of inQuantity units at inUnitMills each, in mills.  Whole quantities
+	 * are plain integer math
+	 */
+	public static long multiply( double inQuantity, long inUnitMills )
+	{
+		long wholeQuantity = (long)inQuantity;
+		
+		if( wholeQuantity == inQuantity && Math.abs( wholeQuantity ) < ( 1L << 31 ) && Math.abs( inUnitMills ) < ( 1L << 31 ) )
+		{
+			return wholeQuantity * inUnitMills;
+		}
+		
+		return roundingPolicy.round( inQuantity * inUnitMills );
+	}
+	
+	/*
+	 * inMills scaled by inScaleParts parts per SCALE_PARTS (e.g. 5000 for a 0.5
+	 * discount scale), in mills.  Amounts too large for exact math are scaled as
+	 * doubles
+	 */
+	public static long scale( long inMills, long inScaleParts )
+	{
+		if( Math.abs( inMills ) < ( 1L << 40 ) && Math.abs( inScaleParts ) < ( 1L << 22 ) )
+		{
+			return roundingPolicy.divide( inMills * inScaleParts, SCALE_PARTS );
+		}
+		
+		return roundingPolicy.round( inMills * ( (double)inScaleParts / SCALE_PARTS ) );
+	}
+	
+	/*
+	 * Parse a decimal amount such as "1.30" held in buf[start, end) into mills.
+	 * Surrounding blanks are ignored.  Returns INVALID if the bytes are not an amount
+	 */
+	public static long parseMills( byte[] buf, int start, int end )
+	{
+		return parseFixed( buf, start, end, 3 );
+	}
+	
+	public static long parseMills( String inAmount )
+	{
+		byte[] bytes = asciiBytes( inAmount );
+		return parseFixed( bytes, 0, bytes.length, 3 );
+	}
+	
+	/*
+	 * Parse a decimal scale such as "0.5" held in buf[start, end) into parts per
+	 * SCALE_PARTS.  Returns INVALID if the bytes are not a number
+	 */
+	public static long parseScale( byte[] buf, int start, int end )
+	{
+		return parseFixed( buf, start, end, 4 );
+	}
+	
+	public static long parseScale( String inScale )
+	{
+		byte[] bytes = asciiBytes( inScale );
+		return parseFixed( bytes, 0, bytes.length, 4 );
+	}
+	
+	/*
+	 * Parse a decimal number held in buf[start, end) into a whole number of
+	 * 10^-inDecimals.  Surrounding blanks are ignored.  Returns INVALID if the
+	 * bytes are not a number
+	 */
+	static long parseFixed( byte[] buf, int start, int end, int inDecimals )
+	{
+		while( start < end && ( ' ' == buf[ start ] || '\t' == buf[ start ] ) )
+		{
+			++start;
+		}
+		while( end > start && ( ' ' == buf[ end - 1 ] || '\t' == buf[ end - 1 ] ) )
+		{
+			--end;
+		}
+		
+		int i = start;
+		boolean negative = false;
+		if( i < end && ( '-' == buf[ i ] || '+' == buf[ i ] ) )
+		{
+			negative = ( '-' == buf[ i ] );
+			++i;
+		}
+		
+		long value			= 0;
+		int numDigits		= 0;
+		int fractionDigits	= 0;
+		boolean seenPoint	= false;
+		
+		for( ; i < end; ++i )
+		{
+			byte c = buf[ i ];
+			
+			if( c >= '0' && c <= '9' )
+			{
+				if( numDigits == MAX_DIGITS )
+				{
+					return INVALID;
+				}
+				value = value * 10 + ( c - '0' );
+				++numDigits;
+				if( true == seenPoint )
+				{
+					++fractionDigits;
+				}
+			}
+			else if( '.' == c && false == seenPoint )
+			{
+				seenPoint = true;
+			}
+			else
+			{
+				return INVALID;
+			}
+		}
+		
+		if( 0 == numDigits )
+		{
+			return INVALID;
+		}
+		
+		if( true == negative )
+		{
+			value = -value;
+		}
+		
+		/*
+		 * Bring the value to exactly inDecimals decimals
+		 */
+		if( fractionDigits > inDecimals )
+		{
+			return roundingPolicy.divide( value, POWERS_OF_TEN[ fractionDigits - inDecimals ] );
+		}
+		
+		long factor = POWERS_OF_TEN[ inDecimals - fractionDigits ];
+		if( Math.abs( value ) > Long.MAX_VALUE / factor )
+		{
+			return INVALID;
+		}
+		return value * factor;
+	}
+	
+	private static byte[] asciiBytes( String inNumber )
+	{
+		byte[] bytes = new byte[ inNumber.length() ];
+		
+		for( int i = 0; i < bytes.length; ++i )
+		{
+			char c = inNumber.charAt( i );
+			bytes[ i ] = ( c < 128 ) ? (byte)c : (byte)'?';
+		}
+		
+		return bytes;
+	}
+	
+	/*
+	 * Format cents as e.g. "15.59" or "-0.05"
+	 */
+	public static String format( long inCents )
+	{
+		StringBuilder sb = new StringBuilder( 16 );
+		appendCents( sb, inCents );
+		return sb.toString();
+	}
+	
+	public static void appendCents( StringBuilder sb, long inCents )
+	{
+		if( inCents < 0 )
+		{
+			sb.append( '-' );
+		}
+		
+		long magnitude	= Math.abs( inCents );
+		long fraction	= magnitude % 100;
+		
+		sb.append( magnitude / 100 ).append( '.' );
+		if( fraction < 10 )
+		{
+			sb.append( '0' );
+		}
+		sb.append( fraction );
+	}
+	
+}
@@ -0,0 +1,654 @@
+package grocery;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A catalogue whose products, rates and tiers are kept outside the Java heap, for
+ * price books too large to hold as Product and Rate objects
+ *
+ * Each field is a column of direct ByteBuffer segments indexed by product, rate or
+ * tier number, so the heap holds a few hundred buffers whatever the size of the
+ * catalogue and the garbage collector has nothing to trace.  Rate names and
+ * descriptions are SymbolTable ids; product names are UTF-8 bytes in a column of
+ * their own.  The rates of a product are linked in the order they were added, as
+ * a product's lines may be anywhere in the file.
+ *
+ * Names are found through open addressing hash tables of product numbers, also
+ * off heap: one of exact names and one of upper-cased names (the first product
+ * added wins, as in Catalogue).
+ *
+ * getProduct returns a view: a Product built from the columns with its rate index,
+ * kept in a small cache of recent views.  The cache keeps the heap bounded while
+ * the products priced most often keep their identity, so their CoverTables and
+ * CachingPricingEngine entries are reused.  A view must not be changed; changes go
+ * through CatalogueDelta as for any other catalogue.
+ *
+ * Loading is single-threaded (-parallel is not used with -offheap).  The memory is
+ * released when the catalogue is no longer reachable, e.g. after a reload.
+ *
+ */
+public class OffHeapCatalogue extends Catalogue
+{
+	
+	private static final int VIEW_CACHE_SIZE	= 1 << 12;
+	private static final int INITIAL_SLOTS		= 1 << 10;
+	private static final int NONE				= -1;
+	
+	/*
+	 * A column of fixed width values in direct buffers of SEGMENT_SIZE bytes
+	 */
+	private static final class Column
+	{
+		private static final int SEGMENT_SHIFT	= 20;
+		private static final int SEGMENT_SIZE	= 1 << SEGMENT_SHIFT;
+		
+		private final int widthShift;
+		private final int indexShift;
+		private final int indexMask;
+		private ByteBuffer[] segments;
+		private int size;
+		
+		/*
+		 * inWidth is 1, 4 or 8 bytes
+		 */
+		Column( int inWidth )
+		{
+			this.widthShift	= Integer.numberOfTrailingZeros( inWidth );
+			this.indexShift	= SEGMENT_SHIFT - this.widthShift;
+			this.indexMask	= ( 1 << this.indexShift ) - 1;
+			this.segments	= new ByteBuffer[ 0 ];
+			this.size		= 0;
+		}
+		
+		/*
+		 * Make room for one more value and return its index
+		 */
+		int append()
+		{
+			if( Integer.MAX_VALUE == this.size )
+			{
+				throw new IllegalStateException( "An off-heap catalogue column can hold at most " + Integer.MAX_VALUE + " values" );
+			}
+			
+			int segment = this.size >>> this.indexShift;
+			if( segment == this.segments.length )
+			{
+				ByteBuffer[] grown = new ByteBuffer[ segment + 1 ];
+				System.arraycopy( this.segments, 0, grown, 0, segment );
+				grown[ segment ] = ByteBuffer.allocateDirect( SEGMENT_SIZE );
+				this.segments = grown;
+			}
+			
+			return this.size++;
+		}
+		
+		/*
+		 * Make room for inCount more values, zeroed
+		 */
+		void appendZeroed( int inCount )
+		{
+			for( int i = 0; i < inCount; ++i )
+			{
+				this.putInt( this.append(), 0 );
+			}
+		}
+		
+		private ByteBuffer segment( int index )
+		{
+			return this.segments[ index >>> this.indexShift ];
+		}
+		
+		private int offset( int index )
+		{
+			return ( index & this.indexMask ) << this.widthShift;
+		}
+		
+		byte getByte( int index )
+		{
+			return this.segment( index ).get( this.offset( index ) );
+		}
+		
+		void putByte( int index, byte value )
+		{
+			this.segment( index ).put( this.offset( index ), value );
+		}
+		
+		int getInt( int index )
+		{
+			return this.segment( index ).getInt( this.offset( index ) );
+		}
+		
+		void putInt( int index, int value )
+		{
+			this.segment( index ).putInt( this.offset( index ), value );
+		}
+		
+		long getLong( int index )
+		{
+			return this.segment( index ).getLong( this.offset( index ) );
+		}
+		
+		void putLong( int index, long value )
+		{
+			this.segment( index ).putLong( this.offset( index ), value );
+		}
+		
+		double getDouble( int index )
+		{
+			return this.segment( index ).getDouble( this.offset( index ) );
+		}
+		
+		void putDouble( int index, double value )
+		{
+			this.segment( index ).putDouble( this.offset( index ), value );
+		}
+		
+		long getAllocatedBytes()
+		{
+			return (long)this.segments.length * SEGMENT_SIZE;
+		}
+	}
+	
+	/*
+	 * A product built from the columns, with the number it was built from
+	 */
+	private static final class View
+	{
+		final int index;
+		final Product product;
+		
+		View( int inIndex, Product inProduct )
+		{
+			this.index		= inIndex;
+			this.product	= inProduct;
+		}
+	}
+	
+	/*
+	 * Products
+	 */
+	private final Column nameBytes		= new Column( 1 );
+	private final Column nameStart		= new Column( 4 );
+	private final Column nameLength		= new Column( 4 );
+	private final Column nameHash		= new Column( 4 );
+	private final Column foldedHash		= new Column( 4 );
+	private final Column foldedFirst	= new Column( 1 );	// 1 if in the upper-cased name table
+	private final Column foldedCount	= new Column( 4 );	// products of the name, kept on the first one
+	private final Column firstRate		= new Column( 4 );
+	private final Column lastRate		= new Column( 4 );
+	private final Column numRates		= new Column( 4 );
+	
+	/*
+	 * Rates; rateNumTiers is -1 for a rate that is not tiered
+	 */
+	private final Column nextRate		= new Column( 4 );
+	private final Column rateNameId		= new Column( 4 );
+	private final Column rateDescrId	= new Column( 4 );
+	private final Column rateFirstTier	= new Column( 4 );
+	private final Column rateNumTiers	= new Column( 4 );
+	private final Column rateQuantity	= new Column( 8 );
+	private final Column ratePrice		= new Column( 8 );
+	private final Column rateCostPerUnit	= new Column( 8 );
+	
+	/*
+	 * Tiers
+	 */
+	private final Column tierMin		= new Column( 8 );
+	private final Column tierMax		= new Column( 8 );
+	private final Column tierPrice		= new Column( 8 );
+	private final Column tierScale		= new Column( 8 );
+	
+	/*
+	 * Name hash tables of product number + 1 (0 is an empty slot)
+	 */
+	private Column exactSlots;
+	private Column foldedSlots;
+	private int numSlots;
+	
+	private int numProducts;
+	
+	private final AtomicReferenceArray<View> views = new AtomicReferenceArray<View>( VIEW_CACHE_SIZE );
+	
+	OffHeapCatalogue()
+	{
+		this.numSlots		= INITIAL_SLOTS;
+		this.exactSlots		= new Column( 4 );
+		this.foldedSlots	= new Column( 4 );
+		this.exactSlots.appendZeroed( this.numSlots );
+		this.foldedSlots.appendZeroed( this.numSlots );
+	}
+	
+	@Override
+	void addParsedRate( String inProdName, Rate inRate )
+	{
+		int index = this.findProduct( inProdName.getBytes( StandardCharsets.UTF_8 ) );
+		if( NONE == index )
+		{
+			index = this.appendProduct( inProdName );
+		}
+		
+		this.appendRate( index, inRate );
+	}
+	
+	/*
+	 * Copy a product and its rates into the catalogue; products already in the
+	 * catalogue receive its rates
+	 */
+	@Override
+	public void addProduct( Product inProduct )
+	{
+		String prodName = inProduct.getProductName();
+		
+		int index = this.findProduct( prodName.getBytes( StandardCharsets.UTF_8 ) );
+		if( NONE == index )
+		{
+			index = this.appendProduct( prodName );
+		}
+		
+		Iterator<Rate> ite = inProduct.rateIterator();
+		while( ite.hasNext() )
+		{
+			this.appendRate( index, ite.next() );
+		}
+	}
+	
+	@Override
+	public void addRateToExistingProduct( String inExistingProdName, Rate inRate )
+	{
+		int index = this.findProduct( inExistingProdName.getBytes( StandardCharsets.UTF_8 ) );
+		if( NONE != index )
+		{
+			this.appendRate( index, inRate );
+		}
+	}
+	
+	@Override
+	public void mergeCatalogue( Catalogue inOther )
+	{
+		Iterator<Product> ite = inOther.productIterator();
+		while( ite.hasNext() )
+		{
+			this.addProduct( ite.next() );
+		}
+	}
+	
+	/*
+	 * Views build their rate index as they are created
+	 */
+	@Override
+	public void buildRateIndexes()
+	{
+	}
+	
+	@Override
+	public boolean productIsInCatalogue( String inProdName, Boolean compareIgnoreCase )
+	{
+		if( true == compareIgnoreCase )
+		{
+			return NONE != this.findFoldedProduct( inProdName.toUpperCase() );
+		}
+		else
+		{
+			return NONE != this.findProduct( inProdName.getBytes( StandardCharsets.UTF_8 ) );
+		}
+	}
+	
+	@Override
+	int countFoldedProducts( String inProdName )
+	{
+		int index = this.findFoldedProduct( inProdName.toUpperCase() );
+		return ( NONE == index ) ? 0 : this.foldedCount.getInt( index );
+	}
+	
+	@Override
+	Product lookupProduct( String inExistingProdName )
+	{
+		int index = this.findProduct( inExistingProdName.getBytes( StandardCharsets.UTF_8 ) );
+		return ( NONE == index ) ? null : this.view( index );
+	}
+	
+	/*
+	 * Only the most recent views are kept
+	 */
+	@Override
+	boolean holdsProducts()
+	{
+		return false;
+	}
+	
+	@Override
+	public int getNumProducts()
+	{
+		return this.numProducts;
+	}
+	
+	/*
+	 * Views of every product in the order they were added.  They are not kept in
+	 * the view cache, so iterating does not push out the products being priced
+	 */
+	@Override
+	Iterator<Product> productIterator()
+	{
+		return new Iterator<Product>()
+		{
+			private int next = 0;
+			
+			public boolean hasNext()
+			{
+				return this.next < OffHeapCatalogue.this.numProducts;
+			}
+			
+			public Product next()
+			{
+				if( false == this.hasNext() )
+				{
+					throw new NoSuchElementException();
+				}
+				return OffHeapCatalogue.this.buildProduct( this.next++ );
+			}
+			
+			public void remove()
+			{
+				throw new UnsupportedOperationException( "An off-heap catalogue is changed through deltas" );
+			}
+		};
+	}
+	
+	/*
+	 * The direct memory held by the columns and hash tables, in bytes
+	 */
+	public long getOffHeapBytes()
+	{
+		Column[] columns = { this.nameBytes, this.nameStart, this.nameLength, this.nameHash, this.foldedHash, this.foldedFirst,
+				this.foldedCount, this.firstRate, this.lastRate, this.numRates, this.nextRate, this.rateNameId, this.rateDescrId,
+				this.rateFirstTier, this.rateNumTiers, this.rateQuantity, this.ratePrice, this.rateCostPerUnit,
+				this.tierMin, this.tierMax, this.tierPrice, this.tierScale, this.exactSlots, this.foldedSlots };
+		
+		long total = 0;
+		for( Column column : columns )
+		{
+			total += column.getAllocatedBytes();
+		}
+		return total;
+	}
+	
+	private int appendProduct( String inProdName )
+	{
+		byte[] name			= inProdName.getBytes( StandardCharsets.UTF_8 );
+		String foldedName	= inProdName.toUpperCase();
+		int folded			= hashOf( foldedName.getBytes( StandardCharsets.UTF_8 ) );
+		int firstOfName		= this.findFoldedProduct( foldedName, folded );
+		boolean first		= ( NONE == firstOfName );
+		
+		int start = this.nameBytes.size;
+		for( int i = 0; i < name.length; ++i )
+		{
+			this.nameBytes.putByte( this.nameBytes.append(), name[ i ] );
+		}
+		
+		int index = this.nameStart.append();
+		this.nameStart.putInt( index, start );
+		this.nameLength.putInt( this.nameLength.append(), name.length );
+		this.nameHash.putInt( this.nameHash.append(), hashOf( name ) );
+		this.foldedHash.putInt( this.foldedHash.append(), folded );
+		this.foldedFirst.putByte( this.foldedFirst.append(), (byte)( ( true == first ) ? 1 : 0 ) );
+		this.foldedCount.putInt( this.foldedCount.append(), ( true == first ) ? 1 : 0 );
+		if( false == first )
+		{
+			this.foldedCount.putInt( firstOfName, this.foldedCount.getInt( firstOfName ) + 1 );
+		}
+		this.firstRate.putInt( this.firstRate.append(), NONE );
+		this.lastRate.putInt( this.lastRate.append(), NONE );
+		this.numRates.putInt( this.numRates.append(), 0 );
+		++this.numProducts;
+		
+		if( 2 * this.numProducts > this.numSlots )
+		{
+			this.rehash( 2 * this.numSlots );
+		}
+		else
+		{
+			this.insertSlot( this.exactSlots, this.nameHash.getInt( index ), index );
+			if( true == first )
+			{
+				this.insertSlot( this.foldedSlots, folded, index );
+			}
+		}
+		
+		return index;
+	}
+	
+	private void appendRate( int productIndex, Rate inRate )
+	{
+		int rate		= this.nextRate.append();
+		int numTiers	= inRate.getNumTiers();
+		int firstTier	= this.tierMin.size;
+		
+		this.nextRate.putInt( rate, NONE );
+		this.rateNameId.putInt( this.rateNameId.append(), inRate.getRateNameId() );
+		this.rateDescrId.putInt( this.rateDescrId.append(), inRate.getRateDescrId() );
+		this.rateFirstTier.putInt( this.rateFirstTier.append(), firstTier );
+		this.rateNumTiers.putInt( this.rateNumTiers.append(), ( true == inRate.isTiered() ) ? numTiers : NONE );
+		this.rateQuantity.putDouble( this.rateQuantity.append(), inRate.getEffectiveQuantity() );
+		this.ratePrice.putLong( this.ratePrice.append(), inRate.getEffectivePrice() );
+		this.rateCostPerUnit.putDouble( this.rateCostPerUnit.append(), inRate.getCostPerUnit() );
+		
+		for( int t = 0; t < numTiers; ++t )
+		{
+			this.tierMin.putDouble( this.tierMin.append(), inRate.getTierMin( t ) );
+			this.tierMax.putDouble( this.tierMax.append(), inRate.getTierMax( t ) );
+			this.tierPrice.putLong( this.tierPrice.append(), inRate.getTierUnitPrice( t ) );
+			this.tierScale.putLong( this.tierScale.append(), inRate.getTierScale( t ) );
+		}
+		
+		/*
+		 * Link the rate after the product's last rate
+		 */
+		int last = this.lastRate.getInt( productIndex );
+		if( NONE == last )
+		{
+			this.firstRate.putInt( productIndex, rate );
+		}
+		else
+		{
+			this.nextRate.putInt( last, rate );
+		}
+		this.lastRate.putInt( productIndex, rate );
+		this.numRates.putInt( productIndex, this.numRates.getInt( productIndex ) + 1 );
+		
+		/*
+		 * A view of the product taken before this rate is out of date
+		 */
+		this.views.set( productIndex & ( VIEW_CACHE_SIZE - 1 ), null );
+	}
+	
+	/*
+	 * The cached view of a product, or a new one
+	 */
+	private Product view( int index )
+	{
+		int slot	= index & ( VIEW_CACHE_SIZE - 1 );
+		View cached	= this.views.get( slot );
+		
+		if( null != cached && index == cached.index )
+		{
+			return cached.product;
+		}
+		
+		Product built = this.buildProduct( index );
+		this.views.set( slot, new View( index, built ) );
+		return built;
+	}
+	
+	/*
+	 * Build the product and its rates from the columns
+	 */
+	private Product buildProduct( int index )
+	{
+		Product newProduct = new Product( this.readName( index ) );
+		
+		for( int rate = this.firstRate.getInt( index ); NONE != rate; rate = this.nextRate.getInt( rate ) )
+		{
+			int firstTier		= this.rateFirstTier.getInt( rate );
+			int storedNumTiers	= this.rateNumTiers.getInt( rate );
+			int numTiers		= Math.max( 0, storedNumTiers );
+			
+			double[] min	= new double[ numTiers ];
+			double[] max	= new double[ numTiers ];
+			long[] price	= new long[ numTiers ];
+			long[] scale	= new long[ numTiers ];
+			
+			for( int t = 0; t < numTiers; ++t )
+			{
+				min[ t ]	= this.tierMin.getDouble( firstTier + t );
+				max[ t ]	= this.tierMax.getDouble( firstTier + t );
+				price[ t ]	= this.tierPrice.getLong( firstTier + t );
+				scale[ t ]	= this.tierScale.getLong( firstTier + t );
+			}
+			
+			newProduct.addRate( new Rate( this.rateNameId.getInt( rate ), this.rateDescrId.getInt( rate ),
+					storedNumTiers >= 0, this.rateQuantity.getDouble( rate ), this.ratePrice.getLong( rate ),
+					this.rateCostPerUnit.getDouble( rate ), min, max, price, scale, numTiers ) );
+		}
+		
+		newProduct.buildRateIndex();
+		return newProduct;
+	}
+	
+	private String readName( int index )
+	{
+		int start	= this.nameStart.getInt( index );
+		byte[] name	= new byte[ this.nameLength.getInt( index ) ];
+		
+		for( int i = 0; i < name.length; ++i )
+		{
+			name[ i ] = this.nameBytes.getByte( start + i );
+		}
+		
+		return new String( name, StandardCharsets.UTF_8 );
+	}
+	
+	/*
+	 * Returns the number of the product with exactly this UTF-8 name, or -1
+	 */
+	private int findProduct( byte[] inName )
+	{
+		int hash = hashOf( inName );
+		int slot = CatalogueSnapshot.slotOf( hash, this.numSlots );
+		
+		while( true )
+		{
+			int entry = this.exactSlots.getInt( slot );
+			if( 0 == entry )
+			{
+				return NONE;
+			}
+			
+			if( hash == this.nameHash.getInt( entry - 1 ) && true == this.nameEquals( entry - 1, inName ) )
+			{
+				return entry - 1;
+			}
+			
+			slot = ( slot + 1 ) & ( this.numSlots - 1 );
+		}
+	}
+	
+	private int findFoldedProduct( String inFoldedName )
+	{
+		return this.findFoldedProduct( inFoldedName, hashOf( inFoldedName.getBytes( StandardCharsets.UTF_8 ) ) );
+	}
+	
+	/*
+	 * Returns the number of the first product whose upper-cased name is inFoldedName,
+	 * or -1
+	 */
+	private int findFoldedProduct( String inFoldedName, int hash )
+	{
+		int slot = CatalogueSnapshot.slotOf( hash, this.numSlots );
+		
+		while( true )
+		{
+			int entry = this.foldedSlots.getInt( slot );
+			if( 0 == entry )
+			{
+				return NONE;
+			}
+			
+			if( hash == this.foldedHash.getInt( entry - 1 )
+				&& true == this.readName( entry - 1 ).toUpperCase().equals( inFoldedName ) )
+			{
+				return entry - 1;
+			}
+			
+			slot = ( slot + 1 ) & ( this.numSlots - 1 );
+		}
+	}
+	
+	private boolean nameEquals( int index, byte[] inName )
+	{
+		if( inName.length != this.nameLength.getInt( index ) )
+		{
+			return false;
+		}
+		
+		int start = this.nameStart.getInt( index );
+		for( int i = 0; i < inName.length; ++i )
+		{
+			if( inName[ i ] != this.nameBytes.getByte( start + i ) )
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private void insertSlot( Column slots, int hash, int index )
+	{
+		int slot = CatalogueSnapshot.slotOf( hash, this.numSlots );
+		
+		while( 0 != slots.getInt( slot ) )
+		{
+			slot = ( slot + 1 ) & ( this.numSlots - 1 );
+		}
+		
+		slots.putInt( slot, index + 1 );
+	}
+	
+	/*
+	 * Rebuild both hash tables with more slots
+	 */
+	private void rehash( int inNumSlots )
+	{
+		this.numSlots		= inNumSlots;
+		this.exactSlots		= new Column( 4 );
+		this.foldedSlots	= new Column( 4 );
+		this.exactSlots.appendZeroed( inNumSlots );
+		this.foldedSlots.appendZeroed( inNumSlots );
+		
+		for( int p = 0; p < this.numProducts; ++p )
+		{
+			this.insertSlot( this.exactSlots, this.nameHash.getInt( p ), p );
+			
+			if( 1 == this.foldedFirst.getByte( p ) )
+			{
+				this.insertSlot( this.foldedSlots, this.foldedHash.getInt( p ), p );
+			}
+		}
+	}
+	
+	private static int hashOf( byte[] inName )
+	{
+		int hash = 0;
+		for( int i = 0; i < inName.length; ++i )
+		{
+			hash = 31 * hash + inName[ i ];
+		}
+		return hash;
+	}
+
+}
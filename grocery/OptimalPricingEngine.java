@@ -0,0 +1,58 @@
+package grocery;
+
+import java.util.List;
+
+/*
+ * Find the cheapest combination of rates for a quantity
+ * 
+ * This is an unbounded knapsack over whole units: every bulk or retail rate can be
+ * used any number of times for its effective quantity, and a tiered rate can be used
+ * for any number of units up to its tier total.  The cheapest way to buy each quantity
+ * is kept per product in a CoverTable, so the same or a smaller quantity is priced
+ * again by walking the table.
+ * 
+ * If the exact quantity cannot be made up from the rates (e.g. 2 units when the only
+ * rate is 'buy 3 for $1.30'), the cheapest way to buy a little more is used.  An
+ * engine made to over-cover also buys a little more whenever that is cheaper, e.g.
+ * 3 avocados as 'buy 2 get 2 free'; it bills more units than were asked for, so it
+ * is off by default.  A fractional part of the quantity is bought with the
+ * whole units so the total is the lowest (see CoverTable), e.g. 2.5 oranges at
+ * 'buy 2 get 1 50% off' take the half orange at the third orange's price.
+ * 
+ */
+public class OptimalPricingEngine implements PricingEngine
+{
+	
+	private final boolean overCover;
+	
+	OptimalPricingEngine()
+	{
+		this( false );
+	}
+	
+	OptimalPricingEngine( boolean inOverCover )
+	{
+		this.overCover = inOverCover;
+	}
+	
+	public void rate( Product inProduct, double inQuantity, List<PurchasedProduct> outItems )
+	{
+		if( inQuantity <= 0 )
+		{
+			return;
+		}
+		
+		long units						= (long)Math.floor( inQuantity );
+		double remainder				= inQuantity - units;
+		PurchasedProduct remainderItem	= ( remainder > 0 ) ? GreedyPricingEngine.remainderItem( inProduct, remainder ) : null;
+		
+		if( false == inProduct.getCoverTable().cover( units, remainder, remainderItem, this.overCover, outItems ) )
+		{
+			/*
+			 * None of the rates buys whole units; fall back on the greedy fill
+			 */
+			new GreedyPricingEngine().rate( inProduct, inQuantity, outItems );
+		}
+	}
+	
+}
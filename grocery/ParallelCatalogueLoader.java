@@ -0,0 +1,202 @@
+package grocery;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Loads a pricing catalogue using all the cores of a fork-join pool
+ * 
+ * The file is split into chunks that start and end on a line boundary.  Each chunk
+ * is parsed into its own Catalogue by a CatalogueParser, then the chunk catalogues
+ * are merged in file order.  Because products are merged in the order they first
+ * appear, and every rate goes to the product it names, the result is the same as
+ * loading the file sequentially.
+ * 
+ */
+public class ParallelCatalogueLoader
+{
+	
+	/*
+	 * Chunks smaller than this are not worth a task of their own
+	 */
+	private static final long MIN_CHUNK_SIZE	= 1024 * 1024;
+	private static final int CHUNKS_PER_THREAD	= 4;
+	private static final int SCAN_BUFFER_SIZE	= 8 * 1024;
+	
+	private ForkJoinPool pool;
+	private long lineCount;
+	private long malformedLineCount;
+	
+	ParallelCatalogueLoader()
+	{
+		this( ForkJoinPool.commonPool() );
+	}
+	
+	ParallelCatalogueLoader( ForkJoinPool inPool )
+	{
+		this.pool = inPool;
+	}
+	
+	public long getLineCount()
+	{
+		return this.lineCount;
+	}
+	
+	public long getMalformedLineCount()
+	{
+		return this.malformedLineCount;
+	}
+	
+	/*
+	 * Load the file into a new catalogue
+	 */
+	public Catalogue load( String inputFile ) throws IOException
+	{
+		Catalogue loadedCatalogue = new Catalogue();
+		
+		try( FileChannel channel = FileChannel.open( Paths.get( inputFile ), StandardOpenOption.READ ) )
+		{
+			long[] boundaries = findChunkBoundaries( channel, this.pool.getParallelism() * CHUNKS_PER_THREAD );
+			
+			ArrayList<ChunkTask> tasks = new ArrayList<ChunkTask>();
+			for( int i = 0; i + 1 < boundaries.length; ++i )
+			{
+				ChunkTask task = new ChunkTask( channel, boundaries[ i ], boundaries[ i + 1 ] );
+				tasks.add( task );
+				this.pool.execute( task );
+			}
+			
+			/*
+			 * Merge in file order while the later chunks are still being parsed
+			 */
+			for( ChunkTask task : tasks )
+			{
+				CatalogueParser chunkParser;
+				
+				try
+				{
+					chunkParser = task.join();
+				}
+				catch( UncheckedIOException uioe )
+				{
+					throw uioe.getCause();
+				}
+				
+				chunkParser.printDeferredErrors( inputFile, this.lineCount );
+				this.lineCount			+= chunkParser.getLineCount();
+				this.malformedLineCount	+= chunkParser.getMalformedLineCount();
+				
+				loadedCatalogue.mergeCatalogue( task.chunkCatalogue );
+				task.chunkCatalogue = null;
+			}
+		}
+		
+		return loadedCatalogue;
+	}
+	
+	/*
+	 * Split the file into at most maxChunks ranges.  Every range but the first starts
+	 * right after a new line so that no line is split between two chunks
+	 */
+	private static long[] findChunkBoundaries( FileChannel channel, int maxChunks ) throws IOException
+	{
+		long fileSize	= channel.size();
+		int numChunks	= (int)Math.max( 1, Math.min( maxChunks, fileSize / MIN_CHUNK_SIZE ) );
+		
+		long[] boundaries		= new long[ numChunks + 1 ];
+		int numBoundaries		= 1;
+		ByteBuffer scanBuffer	= ByteBuffer.allocate( SCAN_BUFFER_SIZE );
+		
+		for( int i = 1; i < numChunks; ++i )
+		{
+			long target = Math.max( fileSize * i / numChunks, boundaries[ numBoundaries - 1 ] );
+			long lineStart = nextLineStart( channel, target, scanBuffer );
+			
+			if( lineStart < fileSize && lineStart > boundaries[ numBoundaries - 1 ] )
+			{
+				boundaries[ numBoundaries++ ] = lineStart;
+			}
+		}
+		boundaries[ numBoundaries++ ] = fileSize;
+		
+		long[] trimmed = new long[ numBoundaries ];
+		System.arraycopy( boundaries, 0, trimmed, 0, numBoundaries );
+		return trimmed;
+	}
+	
+	/*
+	 * Returns the position just after the first new line at or after position, or
+	 * the file size if there is none
+	 */
+	private static long nextLineStart( FileChannel channel, long position, ByteBuffer scanBuffer ) throws IOException
+	{
+		byte[] buf = scanBuffer.array();
+		
+		while( true )
+		{
+			scanBuffer.clear();
+			int numRead = channel.read( scanBuffer, position );
+			if( numRead <= 0 )
+			{
+				return channel.size();
+			}
+			
+			for( int i = 0; i < numRead; ++i )
+			{
+				if( '\n' == buf[ i ] )
+				{
+					return position + i + 1;
+				}
+			}
+			position += numRead;
+		}
+	}
+	
+	/*
+	 * Parse one range of the file into a catalogue of its own
+	 */
+	private static class ChunkTask extends RecursiveTask<CatalogueParser>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private FileChannel channel;
+		private long from;
+		private long to;
+		private Catalogue chunkCatalogue;
+		
+		ChunkTask( FileChannel inChannel, long inFrom, long inTo )
+		{
+			this.channel	= inChannel;
+			this.from		= inFrom;
+			this.to			= inTo;
+		}
+		
+		@Override
+		protected CatalogueParser compute()
+		{
+			this.chunkCatalogue = new Catalogue();
+			
+			CatalogueParser parser = new CatalogueParser( this.chunkCatalogue );
+			parser.deferErrors();
+			
+			try
+			{
+				parser.parseRange( this.channel, this.from, this.to );
+			}
+			catch( IOException ioe )
+			{
+				throw new UncheckedIOException( ioe );
+			}
+			
+			return parser;
+		}
+	}
+	
+}
@@ -0,0 +1,21 @@
+package grocery;
+
+import java.util.List;
+
+/*
+ * A strategy for choosing which rates of a product to use when buying a quantity
+ * of it
+ * 
+ * GreedyPricingEngine	: repeatedly takes the best rate for what is left (fast)
+ * OptimalPricingEngine	: finds the cheapest combination of rates
+ * 
+ */
+public interface PricingEngine
+{
+	
+	/*
+	 * Add the purchased products that make up inQuantity of inProduct to outItems
+	 */
+	void rate( Product inProduct, double inQuantity, List<PurchasedProduct> outItems );
+	
+}
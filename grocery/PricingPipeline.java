@@ -0,0 +1,533 @@
+package grocery;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Prices a stream of baskets (in the BatchPricer format) on several threads
+ * 
+ * reader -> parsers -> raters -> writer
+ * 
+ * - the reader groups input lines, as bytes, into numbered batches and hands them on
+ * - parsers scan each line into its basket id and items (see BasketLineScanner)
+ * - raters price the items and render the bills of a batch (see BillRenderer)
+ * - the writer writes the bills, in input order if asked to
+ * 
+ * Baskets travel in batches so the hand-off between threads is paid once per batch
+ * rather than once per basket.  Stages are connected by bounded queues, and the
+ * reader must take a permit for each batch that the writer gives back once its bills
+ * are written.  So no more than a fixed number of baskets are in memory at once
+ * (including bills waiting for an earlier batch when the output is ordered), and a
+ * slow stage holds back the reader.
+ * 
+ * If any stage fails, the pipeline is aborted: every stage and the writer are
+ * interrupted so none is left waiting for a batch that will never come, and run
+ * throws the first failure.  A batch lost with the failed stage gives back its permit.
+ * 
+ * All the threads share the catalogue and the promotions, which are only read.
+ * Each rater has its own BundleOptimizer.
+ * 
+ */
+public class PricingPipeline
+{
+	
+	private static final int IO_BUFFER_SIZE		= 64 * 1024;
+	private static final int QUEUE_PER_THREAD	= 4;
+	private static final int BASKETS_PER_JOB	= 256;
+	
+	/*
+	 * Marks the end of the input on a queue
+	 */
+	private static final BasketJob END_OF_INPUT	= new BasketJob( -1 );
+	
+	private Catalogue catalogue;
+	private PricingEngine pricingEngine;
+	private BillRenderer.Format billFormat;
+	private PromotionCatalogue promotions;
+	private int numParsers;
+	private int numRaters;
+	private boolean orderedOutput;
+	
+	private BlockingQueue<BasketJob> parseQueue;
+	private BlockingQueue<BasketJob> rateQueue;
+	private BlockingQueue<BasketJob> writeQueue;
+	private Semaphore inFlight;
+	private AtomicInteger liveParsers;
+	private AtomicInteger liveRaters;
+	private ArrayList<Thread> stages;
+	private Thread writerThread;
+	
+	private AtomicLong basketCount;
+	private AtomicLong errorCount;
+	private long elapsedNanos;
+	private volatile Throwable failure;
+	
+	/*
+	 * inPromotions may be null for no promotions
+	 */
+	PricingPipeline( Catalogue inCatalogue, PricingEngine inPricingEngine, BillRenderer.Format inBillFormat,
+			PromotionCatalogue inPromotions, int inNumThreads, boolean inOrderedOutput )
+	{
+		this.catalogue		= inCatalogue;
+		this.pricingEngine	= inPricingEngine;
+		this.billFormat		= inBillFormat;
+		this.promotions		= inPromotions;
+		this.numRaters		= Math.max( 1, inNumThreads );
+		this.numParsers		= Math.max( 1, this.numRaters / 4 );
+		this.orderedOutput	= inOrderedOutput;
+		this.basketCount	= new AtomicLong();
+		this.errorCount		= new AtomicLong();
+	}
+	
+	public long getBasketCount()
+	{
+		return this.basketCount.get();
+	}
+	
+	public long getErrorCount()
+	{
+		return this.errorCount.get();
+	}
+	
+	public double getBasketsPerSecond()
+	{
+		return ( 0 == this.elapsedNanos ) ? 0 : this.basketCount.get() * 1e9 / this.elapsedNanos;
+	}
+	
+	public long getElapsedMillis()
+	{
+		return this.elapsedNanos / 1000000;
+	}
+	
+	/*
+	 * Price every basket read from in and write the bills to out.  Returns once
+	 * every bill is written, or throws the first failure of any stage
+	 */
+	public void run( InputStream in, OutputStream out ) throws IOException
+	{
+		long startNanos		= System.nanoTime();
+		int queueCapacity	= QUEUE_PER_THREAD * this.numRaters;
+		
+		this.parseQueue		= new ArrayBlockingQueue<BasketJob>( queueCapacity );
+		this.rateQueue		= new ArrayBlockingQueue<BasketJob>( queueCapacity );
+		this.writeQueue		= new ArrayBlockingQueue<BasketJob>( queueCapacity );
+		this.inFlight		= new Semaphore( 3 * queueCapacity + this.numParsers + this.numRaters );
+		this.liveParsers	= new AtomicInteger( this.numParsers );
+		this.liveRaters		= new AtomicInteger( this.numRaters );
+		
+		final ByteLineReader reader	= new ByteLineReader( in, IO_BUFFER_SIZE );
+		final OutputStream writer	= new BufferedOutputStream( out, IO_BUFFER_SIZE );
+		
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		
+		this.stages			= threads;
+		this.writerThread	= Thread.currentThread();
+		
+		threads.add( this.newStage( "basket-reader", new Runnable()
+		{
+			public void run()
+			{
+				PricingPipeline.this.readBaskets( reader );
+			}
+		} ) );
+		
+		for( int i = 0; i < this.numParsers; ++i )
+		{
+			threads.add( this.newStage( "basket-parser-" + i, new Runnable()
+			{
+				public void run()
+				{
+					PricingPipeline.this.parseBaskets();
+				}
+			} ) );
+		}
+		
+		for( int i = 0; i < this.numRaters; ++i )
+		{
+			threads.add( this.newStage( "basket-rater-" + i, new Runnable()
+			{
+				public void run()
+				{
+					PricingPipeline.this.rateBaskets();
+				}
+			} ) );
+		}
+		
+		/*
+		 * The writer runs on the calling thread
+		 */
+		for( Thread stage : threads )
+		{
+			stage.start();
+		}
+		
+		try
+		{
+			this.writeBills( writer );
+			
+			for( Thread stage : threads )
+			{
+				stage.join();
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			if( null == this.failure )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( "Interrupted while pricing baskets", ie );
+			}
+		}
+		catch( IOException ioe )
+		{
+			this.abort( ioe );
+		}
+		finally
+		{
+			synchronized( this )
+			{
+				this.writerThread = null;
+			}
+		}
+		
+		this.elapsedNanos = System.nanoTime() - startNanos;
+		
+		if( null != this.failure )
+		{
+			/*
+			 * Clear an interrupt the abort may have sent the writer after it stopped
+			 */
+			Thread.interrupted();
+			
+			if( this.failure instanceof IOException )
+			{
+				throw (IOException)this.failure;
+			}
+			throw new IOException( "Pricing pipeline failed", this.failure );
+		}
+	}
+	
+	private Thread newStage( String name, final Runnable work )
+	{
+		Thread stage = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					work.run();
+				}
+				catch( RuntimeException re )
+				{
+					PricingPipeline.this.abort( re );
+					throw re;
+				}
+				catch( Error e )
+				{
+					PricingPipeline.this.abort( e );
+					throw e;
+				}
+			}
+		}, name );
+		
+		stage.setDaemon( true );
+		return stage;
+	}
+	
+	/*
+	 * Keep the first failure and stop every other stage and the writer, wherever they
+	 * are waiting
+	 */
+	private synchronized void abort( Throwable inCause )
+	{
+		if( null == this.failure )
+		{
+			this.failure = inCause;
+		}
+		
+		for( Thread stage : this.stages )
+		{
+			if( Thread.currentThread() != stage )
+			{
+				stage.interrupt();
+			}
+		}
+		
+		if( null != this.writerThread && Thread.currentThread() != this.writerThread )
+		{
+			this.writerThread.interrupt();
+		}
+	}
+	
+	private void readBaskets( ByteLineReader reader )
+	{
+		long seq	= 0;
+		long lineNo	= 0;
+		
+		try
+		{
+			BasketJob job = new BasketJob( seq++ );
+			
+			while( null == this.failure && true == reader.next() )
+			{
+				++lineNo;
+				
+				if( true == BasketLineScanner.isBlank( reader.getBuffer(), reader.getLineStart(), reader.getLineEnd() ) )
+				{
+					continue;
+				}
+				
+				job.add( lineNo, reader.getBuffer(), reader.getLineStart(), reader.getLineEnd() );
+				
+				if( BASKETS_PER_JOB == job.size )
+				{
+					this.inFlight.acquire();
+					this.parseQueue.put( job );
+					job = new BasketJob( seq++ );
+				}
+			}
+			
+			/*
+			 * The last, possibly empty, batch
+			 */
+			this.inFlight.acquire();
+			this.parseQueue.put( job );
+		}
+		catch( IOException ioe )
+		{
+			this.abort( ioe );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			this.putAll( this.parseQueue, this.numParsers );
+		}
+	}
+	
+	private void parseBaskets()
+	{
+		BasketLineScanner scanner	= new BasketLineScanner( this.catalogue );
+		BasketJob job				= null;
+		
+		try
+		{
+			while( END_OF_INPUT != ( job = this.parseQueue.take() ) )
+			{
+				for( int b = 0; b < job.size; ++b )
+				{
+					Basket basketItems = new Basket();
+					
+					job.basketIds[ b ] = scanner.scanBasket( job.lines, job.lineStarts[ b ], job.lineStarts[ b + 1 ], basketItems );
+					for( int i = 0; i < scanner.getErrorCount(); ++i )
+					{
+						this.reportError( job.lineNos[ b ], scanner.getErrorMessage( i ) );
+					}
+					
+					if( null != job.basketIds[ b ] )
+					{
+						job.items[ b ] = basketItems;
+					}
+				}
+				
+				job.lines = null;
+				
+				this.rateQueue.put( job );
+				job = null;
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			this.releaseLost( job );
+			
+			if( 0 == this.liveParsers.decrementAndGet() )
+			{
+				this.putAll( this.rateQueue, this.numRaters );
+			}
+		}
+	}
+	
+	private void rateBaskets()
+	{
+		ArrayList<PurchasedProduct> purchasedItems	= new ArrayList<PurchasedProduct>();
+		BillRenderer renderer						= new BillRenderer( this.billFormat );
+		BundleOptimizer optimizer					= ( null == this.promotions ) ? null : new BundleOptimizer( this.promotions, this.pricingEngine );
+		BasketJob job								= null;
+		
+		try
+		{
+			while( END_OF_INPUT != ( job = this.rateQueue.take() ) )
+			{
+				renderer.reset();
+				
+				for( int b = 0; b < job.size; ++b )
+				{
+					if( null != job.items[ b ] )
+					{
+						BatchPricer.priceBasket( this.pricingEngine, optimizer, job.basketIds[ b ], job.items[ b ], purchasedItems, renderer );
+						++job.numBills;
+					}
+				}
+				
+				job.bills = renderer.toByteArray();
+				job.items = null;
+				job.basketIds = null;
+				this.writeQueue.put( job );
+				job = null;
+			}
+		}
+		catch( IOException ioe )
+		{
+			this.abort( ioe );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			this.releaseLost( job );
+			
+			if( 0 == this.liveRaters.decrementAndGet() )
+			{
+				this.putAll( this.writeQueue, 1 );
+			}
+		}
+	}
+	
+	/*
+	 * Write bills as they arrive, or in input order holding back any that arrive
+	 * before an earlier one
+	 */
+	private void writeBills( OutputStream writer ) throws IOException, InterruptedException
+	{
+		HashMap<Long, BasketJob> waiting	= new HashMap<Long, BasketJob>();
+		long nextSeq						= 0;
+		
+		BasketJob job;
+		while( END_OF_INPUT != ( job = this.writeQueue.take() ) )
+		{
+			if( false == this.orderedOutput )
+			{
+				this.writeBill( writer, job );
+				continue;
+			}
+			
+			waiting.put( job.seq, job );
+			
+			while( null != ( job = waiting.remove( nextSeq ) ) )
+			{
+				this.writeBill( writer, job );
+				++nextSeq;
+			}
+		}
+		
+		writer.flush();
+	}
+	
+	private void writeBill( OutputStream writer, BasketJob job ) throws IOException
+	{
+		writer.write( job.bills );
+		this.basketCount.addAndGet( job.numBills );
+		this.inFlight.release();
+	}
+	
+	/*
+	 * Give back the permit of a batch a stage was working on when it stopped, as the
+	 * writer will never see it
+	 */
+	private void releaseLost( BasketJob job )
+	{
+		if( null != job && END_OF_INPUT != job )
+		{
+			this.inFlight.release();
+		}
+	}
+	
+	private void putAll( BlockingQueue<BasketJob> queue, int count )
+	{
+		try
+		{
+			for( int i = 0; i < count; ++i )
+			{
+				queue.put( END_OF_INPUT );
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void reportError( long lineNo, String reason )
+	{
+		this.errorCount.incrementAndGet();
+		System.err.println( "Basket line [" + lineNo + "]: " + reason );
+	}
+	
+	/*
+	 * A batch of baskets on its way through the pipeline.  Each stage fills in what
+	 * the next one needs and drops what it no longer needs.  A basket whose line
+	 * could not be read has no items and gets no bill
+	 */
+	private static final class BasketJob
+	{
+		final long seq;
+		int size;
+		long[] lineNos;
+		String[] basketIds;
+		
+		/*
+		 * The lines of the baskets end to end; line b is lines[ lineStarts[ b ],
+		 * lineStarts[ b + 1 ] )
+		 */
+		byte[] lines;
+		int[] lineStarts;
+		
+		Basket[] items;
+		byte[] bills;
+		int numBills;
+		
+		BasketJob( long inSeq )
+		{
+			this.seq		= inSeq;
+			this.lineNos	= new long[ BASKETS_PER_JOB ];
+			this.lines		= new byte[ 64 * BASKETS_PER_JOB ];
+			this.lineStarts	= new int[ BASKETS_PER_JOB + 1 ];
+			this.basketIds	= new String[ BASKETS_PER_JOB ];
+			this.items		= new Basket[ BASKETS_PER_JOB ];
+		}
+		
+		void add( long inLineNo, byte[] buf, int from, int to )
+		{
+			int start	= this.lineStarts[ this.size ];
+			int end		= start + ( to - from );
+			
+			if( end > this.lines.length )
+			{
+				this.lines = Arrays.copyOf( this.lines, Math.max( 2 * this.lines.length, end ) );
+			}
+			System.arraycopy( buf, from, this.lines, start, to - from );
+			
+			this.lineNos[ this.size ]		= inLineNo;
+			this.lineStarts[ ++this.size ]	= end;
+		}
+	}
+	
+}
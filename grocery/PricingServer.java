@@ -0,0 +1,568 @@
+package grocery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * An HTTP/JSON pricing service on the JDK's built-in HttpServer
+ * 
+ * The catalogue is loaded once and shared, read-only, by every request.  A reload
+ * publishes a new revision through the CatalogueHolder; each request prices
+ * against the revision that was live when it started, and reports its number.
+ * 
+ * POST /price					body is a basket, e.g. '2 apple 3 orange'
+ * GET  /price?items=2+apple	the same with the basket in the query string
+ * 		-> { "revision": 1, "items": [ { "product": "apple", "description": "...", "cost": 0.75 } ],
+ * 			 "total": 0.75, "errors": [] }
+ * 		a basket over the limits of BasketLineScanner (units of an item, items) is
+ * 		refused with 400
+ * 
+ * GET  /product?name=apple		the rates of a product, 404 if there is no such product
+ * 		-> { "product": "apple", "rates": [ { "name": "retail", "description": "Retail",
+ * 			 "quantity": 1.0, "price": 0.500, "tiers": [] } ] }
+ * 
+ * The server listens on the address it is given (loopback unless told otherwise).
+ * POST /reload and /delta change the catalogue, so with a token they need the
+ * header 'Authorization: Bearer TOKEN' (401 otherwise), and without one they are
+ * only accepted from this host (403 otherwise).
+ * 
+ * POST /reload					reload the catalogue file in the background
+ * 		-> { "revision": 1 }		the revision live when the reload was asked for
+ * 
+ * POST /delta					body is a catalogue delta (see CatalogueDelta), applied
+ * 		-> { "revision": 2, "changes": 3, "errors": [] }	over the live revision
+ * 
+ * GET  /stats					the live revision, the size of the SymbolTable and,
+ * 		-> { "revision": 2, "symbols": { "count": 412, "chars": 5120 },
+ * 			 "cache": { "hits": 9812, "misses": 188,	with a CachingPricingEngine, its
+ * 			 "evictions": 0, "size": 188 } }	counters and, with metrics on (see
+ * 												Metrics), their summaries in
+ * 												nanoseconds
+ * 
+ * With promotions, each basket is priced with its cheapest set of bundles (see
+ * BundleOptimizer).  The promotions are loaded once and kept over reloads.
+ * 
+ * Each request runs on its own virtual thread when the JVM has them (Java 21 and
+ * later), otherwise on a pooled platform thread.
+ * 
+ */
+public class PricingServer
+{
+	
+	private static final int MAX_BODY_SIZE = 64 * 1024;
+	
+	private CatalogueHolder catalogueHolder;
+	private CatalogueReloader reloader;
+	private PricingEngine pricingEngine;
+	private PromotionCatalogue promotions;
+	private CachingPricingEngine priceCache;
+	private byte[] authorization;
+	private HttpServer server;
+	private ExecutorService executor;
+	
+	/*
+	 * inPromotions may be null for no promotions, and inToken null to only accept
+	 * changes to the catalogue from this host
+	 */
+	PricingServer( CatalogueHolder inCatalogueHolder, CatalogueReloader inReloader, PricingEngine inPricingEngine,
+			PromotionCatalogue inPromotions, String inToken )
+	{
+		this.catalogueHolder	= inCatalogueHolder;
+		this.reloader			= inReloader;
+		this.pricingEngine		= inPricingEngine;
+		this.promotions			= inPromotions;
+		this.priceCache			= ( inPricingEngine instanceof CachingPricingEngine ) ? (CachingPricingEngine)inPricingEngine : null;
+		this.authorization		= ( null == inToken ) ? null : ( "Bearer " + inToken ).getBytes( StandardCharsets.UTF_8 );
+	}
+	
+	/*
+	 * Start serving on the address and port.  Returns straight away; the server
+	 * threads keep running until stop is called
+	 */
+	public void start( String inAddress, int inPort ) throws IOException
+	{
+		this.executor	= newRequestExecutor();
+		this.server		= HttpServer.create( new InetSocketAddress( inAddress, inPort ), 0 );
+		
+		this.server.createContext( "/price", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				PricingServer.this.handlePrice( exchange );
+			}
+		} );
+		
+		this.server.createContext( "/product", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				PricingServer.this.handleProduct( exchange );
+			}
+		} );
+		
+		this.server.createContext( "/reload", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				PricingServer.this.handleReload( exchange );
+			}
+		} );
+		
+		this.server.createContext( "/delta", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				PricingServer.this.handleDelta( exchange );
+			}
+		} );
+		
+		this.server.createContext( "/stats", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				PricingServer.this.handleStats( exchange );
+			}
+		} );
+		
+		this.server.setExecutor( this.executor );
+		this.server.start();
+	}
+	
+	public void stop()
+	{
+		this.server.stop( 0 );
+		this.executor.shutdown();
+	}
+	
+	public int getPort()
+	{
+		return this.server.getAddress().getPort();
+	}
+	
+	/*
+	 * A virtual thread per request if the JVM supports it, otherwise a cached pool
+	 */
+	private static ExecutorService newRequestExecutor()
+	{
+		try
+		{
+			Method virtualThreads = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+			return (ExecutorService)virtualThreads.invoke( null );
+		}
+		catch( ReflectiveOperationException roe )
+		{
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	private void handlePrice( HttpExchange exchange ) throws IOException
+	{
+		byte[] items;
+		
+		if( true == "POST".equals( exchange.getRequestMethod() ) )
+		{
+			items = readBodyBytes( exchange );
+			if( null == items )
+			{
+				sendJson( exchange, 413, "{\"error\":\"basket is too large\"}" );
+				return;
+			}
+		}
+		else if( true == "GET".equals( exchange.getRequestMethod() ) )
+		{
+			String query	= queryParameter( exchange, "items" );
+			items			= ( null == query ) ? null : query.getBytes( StandardCharsets.UTF_8 );
+		}
+		else
+		{
+			sendJson( exchange, 405, "{\"error\":\"use GET or POST\"}" );
+			return;
+		}
+		
+		if( null == items )
+		{
+			sendJson( exchange, 400, "{\"error\":\"no basket given\"}" );
+			return;
+		}
+		
+		CatalogueHolder.Revision revision			= this.catalogueHolder.current();
+		Catalogue catalogue							= revision.getCatalogue();
+		Basket basketItems							= new Basket();
+		BasketLineScanner scanner					= new BasketLineScanner( catalogue, StandardCharsets.UTF_8 );
+		ArrayList<PurchasedProduct> purchasedItems	= new ArrayList<PurchasedProduct>();
+		
+		scanner.scanItems( items, 0, items.length, basketItems );
+		
+		if( true == scanner.isOverLimit() )
+		{
+			StringBuilder error = new StringBuilder( "{\"error\":" );
+			appendString( error, scanner.getErrorMessage( scanner.getErrorCount() - 1 ) );
+			sendJson( exchange, 400, error.append( '}' ).toString() );
+			return;
+		}
+		
+		if( null != this.priceCache )
+		{
+			this.priceCache.setRevision( revision.getNumber() );
+		}
+		
+		if( null != this.promotions )
+		{
+			new BundleOptimizer( this.promotions, this.pricingEngine ).rate( basketItems, purchasedItems );
+		}
+		else
+		{
+			for( int i = 0; i < basketItems.size(); ++i )
+			{
+				this.pricingEngine.rate( basketItems.getProduct( i ), basketItems.getQuantity( i ), purchasedItems );
+			}
+		}
+		
+		StringBuilder json	= new StringBuilder( 128 + 96 * purchasedItems.size() );
+		long totalDue		= 0;
+		long started		= ( true == Metrics.ENABLED ) ? System.nanoTime() : 0;
+		
+		json.append( "{\"revision\":" ).append( revision.getNumber() ).append( ",\"items\":[" );
+		for( int i = 0; i < purchasedItems.size(); ++i )
+		{
+			PurchasedProduct pp = purchasedItems.get( i );
+			
+			json.append( ( 0 == i ) ? "{" : ",{" );
+			appendField( json, "product", pp.getPurchasedProductName() ).append( ',' );
+			appendField( json, "description", pp.getPurchasedRateDescr() ).append( ",\"cost\":" );
+			Money.appendCents( json, pp.getPurchasedCost() );
+			json.append( '}' );
+			
+			totalDue += pp.getPurchasedCost();
+		}
+		
+		json.append( "],\"total\":" );
+		Money.appendCents( json, totalDue );
+		json.append( ",\"errors\":[" );
+		for( int i = 0; i < scanner.getErrorCount(); ++i )
+		{
+			json.append( ( 0 == i ) ? "" : "," );
+			appendString( json, scanner.getErrorMessage( i ) );
+		}
+		json.append( "]}" );
+		
+		if( true == Metrics.ENABLED )
+		{
+			Metrics.BILL.record( System.nanoTime() - started );
+			Metrics.BILL_LINES.add( purchasedItems.size() );
+		}
+		
+		sendJson( exchange, 200, json.toString() );
+	}
+	
+	private void handleProduct( HttpExchange exchange ) throws IOException
+	{
+		if( false == "GET".equals( exchange.getRequestMethod() ) )
+		{
+			sendJson( exchange, 405, "{\"error\":\"use GET\"}" );
+			return;
+		}
+		
+		String name = queryParameter( exchange, "name" );
+		Product aProduct = ( null == name ) ? null : this.catalogueHolder.getCatalogue().getProduct( name );
+		
+		if( null == aProduct )
+		{
+			sendJson( exchange, 404, "{\"error\":\"no such product\"}" );
+			return;
+		}
+		
+		StringBuilder json = new StringBuilder( 256 );
+		
+		json.append( '{' );
+		appendField( json, "product", aProduct.getProductName() ).append( ",\"rates\":[" );
+		
+		Iterator<Rate> ite = aProduct.rateIterator();
+		boolean first = true;
+		while( ite.hasNext() )
+		{
+			Rate aRate = ite.next();
+			
+			json.append( ( true == first ) ? "{" : ",{" );
+			first = false;
+			
+			appendField( json, "name", aRate.getRateName() ).append( ',' );
+			appendField( json, "description", aRate.getRateDescr() ).append( ',' );
+			json.append( "\"quantity\":" ).append( aRate.getEffectiveQuantity() ).append( ',' );
+			
+			json.append( "\"price\":" );
+			if( true == aRate.isTiered() )
+			{
+				json.append( "null" );
+			}
+			else
+			{
+				appendMills( json, aRate.getEffectivePrice() );
+			}
+			
+			json.append( ",\"tiers\":[" );
+			for( int t = 0; t < aRate.getNumTiers(); ++t )
+			{
+				json.append( ( 0 == t ) ? "{" : ",{" );
+				json.append( "\"min\":" ).append( aRate.getTierMin( t ) );
+				json.append( ",\"max\":" ).append( aRate.getTierMax( t ) );
+				json.append( ",\"price\":" );
+				appendMills( json, aRate.getTierUnitPrice( t ) );
+				json.append( ",\"scale\":" ).append( (double)aRate.getTierScale( t ) / Money.SCALE_PARTS );
+				json.append( '}' );
+			}
+			json.append( "]}" );
+		}
+		json.append( "]}" );
+		
+		sendJson( exchange, 200, json.toString() );
+	}
+	
+	private void handleReload( HttpExchange exchange ) throws IOException
+	{
+		if( false == "POST".equals( exchange.getRequestMethod() ) )
+		{
+			sendJson( exchange, 405, "{\"error\":\"use POST\"}" );
+			return;
+		}
+		
+		if( false == this.mayChangeCatalogue( exchange ) )
+		{
+			return;
+		}
+		
+		this.reloader.requestReload();
+		
+		sendJson( exchange, 202, "{\"revision\":" + this.catalogueHolder.getVersion() + "}" );
+	}
+	
+	private void handleDelta( HttpExchange exchange ) throws IOException
+	{
+		if( false == "POST".equals( exchange.getRequestMethod() ) )
+		{
+			sendJson( exchange, 405, "{\"error\":\"use POST\"}" );
+			return;
+		}
+		
+		if( false == this.mayChangeCatalogue( exchange ) )
+		{
+			return;
+		}
+		
+		byte[] body = readBodyBytes( exchange );
+		if( null == body )
+		{
+			sendJson( exchange, 413, "{\"error\":\"delta is too large\"}" );
+			return;
+		}
+		
+		CatalogueDelta delta = CatalogueDelta.parse( body, "request" );
+		ArrayList<String> errors = new ArrayList<String>( delta.getParseErrors() );
+		ArrayList<String> applyErrors = new ArrayList<String>();
+		
+		CatalogueHolder.Revision revision = delta.applyTo( this.catalogueHolder, applyErrors );
+		errors.addAll( applyErrors );
+		
+		StringBuilder json = new StringBuilder( 64 );
+		json.append( "{\"revision\":" ).append( revision.getNumber() );
+		json.append( ",\"changes\":" ).append( delta.getNumChanges() - applyErrors.size() );
+		json.append( ",\"errors\":[" );
+		for( int i = 0; i < errors.size(); ++i )
+		{
+			json.append( ( 0 == i ) ? "" : "," );
+			appendString( json, errors.get( i ) );
+		}
+		json.append( "]}" );
+		
+		sendJson( exchange, 200, json.toString() );
+	}
+	
+	/*
+	 * Whether the request may change the catalogue: it carries the token or, with
+	 * no token, comes from this host.  If not, the request is refused here
+	 */
+	private boolean mayChangeCatalogue( HttpExchange exchange ) throws IOException
+	{
+		if( null == this.authorization )
+		{
+			if( true == exchange.getRemoteAddress().getAddress().isLoopbackAddress() )
+			{
+				return true;
+			}
+			
+			sendJson( exchange, 403, "{\"error\":\"the catalogue can only be changed from this host\"}" );
+			return false;
+		}
+		
+		String given = exchange.getRequestHeaders().getFirst( "Authorization" );
+		if( null != given && true == MessageDigest.isEqual( this.authorization, given.getBytes( StandardCharsets.UTF_8 ) ) )
+		{
+			return true;
+		}
+		
+		exchange.getResponseHeaders().set( "WWW-Authenticate", "Bearer" );
+		sendJson( exchange, 401, "{\"error\":\"missing or wrong token\"}" );
+		return false;
+	}
+	
+	private void handleStats( HttpExchange exchange ) throws IOException
+	{
+		StringBuilder json = new StringBuilder( 128 );
+		
+		json.append( "{\"revision\":" ).append( this.catalogueHolder.getVersion() );
+		json.append( ",\"symbols\":{\"count\":" ).append( SymbolTable.size() );
+		json.append( ",\"chars\":" ).append( SymbolTable.charCount() ).append( '}' );
+		if( null != this.priceCache )
+		{
+			json.append( ",\"cache\":{\"hits\":" ).append( this.priceCache.getHitCount() );
+			json.append( ",\"misses\":" ).append( this.priceCache.getMissCount() );
+			json.append( ",\"evictions\":" ).append( this.priceCache.getEvictionCount() );
+			json.append( ",\"size\":" ).append( this.priceCache.getSize() ).append( '}' );
+		}
+		if( true == Metrics.ENABLED )
+		{
+			json.append( ",\"metrics\":" );
+			Metrics.appendJson( json );
+		}
+		json.append( '}' );
+		
+		sendJson( exchange, 200, json.toString() );
+	}
+	
+	/*
+	 * The request body, or null if it is larger than MAX_BODY_SIZE
+	 */
+	private static byte[] readBodyBytes( HttpExchange exchange ) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream( 256 );
+		byte[] buf = new byte[ 4096 ];
+		
+		try( InputStream in = exchange.getRequestBody() )
+		{
+			int n;
+			while( ( n = in.read( buf ) ) > 0 )
+			{
+				body.write( buf, 0, n );
+				if( body.size() > MAX_BODY_SIZE )
+				{
+					return null;
+				}
+			}
+		}
+		
+		return body.toByteArray();
+	}
+	
+	/*
+	 * The decoded value of a query string parameter, or null
+	 */
+	private static String queryParameter( HttpExchange exchange, String name ) throws UnsupportedEncodingException
+	{
+		String query = exchange.getRequestURI().getRawQuery();
+		if( null == query )
+		{
+			return null;
+		}
+		
+		for( String pair : query.split( "&" ) )
+		{
+			int equals = pair.indexOf( '=' );
+			if( equals > 0 && true == pair.substring( 0, equals ).equals( name ) )
+			{
+				return URLDecoder.decode( pair.substring( equals + 1 ), "UTF-8" );
+			}
+		}
+		
+		return null;
+	}
+	
+	private static void sendJson( HttpExchange exchange, int status, String json ) throws IOException
+	{
+		byte[] body = json.getBytes( StandardCharsets.UTF_8 );
+		
+		exchange.getResponseHeaders().set( "Content-Type", "application/json; charset=utf-8" );
+		exchange.sendResponseHeaders( status, body.length );
+		
+		try( OutputStream out = exchange.getResponseBody() )
+		{
+			out.write( body );
+		}
+	}
+	
+	private static StringBuilder appendField( StringBuilder json, String name, String value )
+	{
+		json.append( '"' ).append( name ).append( "\":" );
+		appendString( json, value );
+		return json;
+	}
+	
+	/*
+	 * A JSON string literal
+	 */
+	static void appendString( StringBuilder json, String value )
+	{
+		json.append( '"' );
+		
+		for( int i = 0; i < value.length(); ++i )
+		{
+			char c = value.charAt( i );
+			
+			if( '"' == c || '\\' == c )
+			{
+				json.append( '\\' ).append( c );
+			}
+			else if( c < 0x20 )
+			{
+				json.append( String.format( "\\u%04x", (int)c ) );
+			}
+			else
+			{
+				json.append( c );
+			}
+		}
+		
+		json.append( '"' );
+	}
+	
+	/*
+	 * Mills as a number with 3 decimals, e.g. 0.475
+	 */
+	private static void appendMills( StringBuilder json, long mills )
+	{
+		long magnitude = Math.abs( mills );
+		
+		if( mills < 0 )
+		{
+			json.append( '-' );
+		}
+		json.append( magnitude / Money.MILLS_PER_UNIT ).append( '.' );
+		
+		long fraction = magnitude % Money.MILLS_PER_UNIT;
+		if( fraction < 100 )
+		{
+			json.append( '0' );
+		}
+		if( fraction < 10 )
+		{
+			json.append( '0' );
+		}
+		json.append( fraction );
+	}
+	
+}
@@ -1,5 +1,7 @@
 package grocery;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -10,9 +12,15 @@ import java.util.Iterator;
 public class Product
 {
 
-	private String productName;
+	private int productNameId;		// see SymbolTable
 	private HashSet <Rate> productRate;
 	
+	/*
+	 * Derived from productRate; dropped whenever a rate is added
+	 */
+	private volatile RateIndex rateIndex;
+	private volatile CoverTable coverTable;
+	
 	Product() 
 	{
 		
@@ -23,7 +31,7 @@ public class Product
 	Product( String inProductName ) 
 	{
 		
-		this.productName = inProductName;
+		this.productNameId = SymbolTable.intern( inProductName );
 		this.productRate = new HashSet <Rate>();
 		
 	}
@@ -35,6 +43,50 @@ public class Product
 	{
 		
 		this.productRate.add( inRate );
+		this.rateIndex = null;
+		this.coverTable = null;
+		
+	}
+	
+	/*
+	 * Add all the rates of another product to this product
+	 */
+	public void addAllRates( Product inProduct )
+	{
+		
+		this.productRate.addAll( inProduct.productRate );
+		this.rateIndex = null;
+		this.coverTable = null;
+		
+	}
+	
+	/*
+	 * Remove every rate of this product with the rate name.  Returns the number
+	 * of rates removed
+	 */
+	public int removeRates( String inRateName )
+	{
+		
+		int removed		= 0;
+		int rateNameId	= SymbolTable.lookup( inRateName );
+		
+		Iterator<Rate> ite = this.productRate.iterator();
+		while( ite.hasNext() )
+		{
+			if( ite.next().getRateNameId() == rateNameId )
+			{
+				ite.remove();
+				++removed;
+			}
+		}
+		
+		if( removed > 0 )
+		{
+			this.rateIndex = null;
+			this.coverTable = null;
+		}
+		
+		return removed;
 		
 	}
 	
@@ -44,7 +96,7 @@ public class Product
 	public void printProduct() 
 	{
 		
-		System.out.println( "*** PRODUCT NAME [" + this.productName + "] ***\n" );
+		System.out.println( "*** PRODUCT NAME [" + this.getProductName() + "] ***\n" );
 		
 		if( this.productRate.size() > 0 ) 
 		{
@@ -63,9 +115,27 @@ public class Product
 		
 	}
 	
+	/*
+	 * All the rates of this product, in no particular order
+	 */
+	Iterator<Rate> rateIterator()
+	{
+		return this.productRate.iterator();
+	}
+	
+	public int getNumRates()
+	{
+		return this.productRate.size();
+	}
+	
 	public String getProductName()
 	{
-		return this.productName;
+		return SymbolTable.symbol( this.productNameId );
+	}
+	
+	public int getProductNameId()
+	{
+		return this.productNameId;
 	}
 	
 	/*
@@ -78,52 +148,135 @@ public class Product
 	 *         
 	 * 2. The average cost per unit is the lowest
 	 * 
+	 * The answer is read from the rate index: a binary search for the last rate
+	 * whose effective quantity is within inQuantity, then the cheapest rate up to it.
+	 * Returns null if no rate applies
+	 * 
 	 */
-	public Rate getBestRate( Double inQuantity )
+	public Rate getBestRate( double inQuantity )
+	{
+		if( false == Metrics.ENABLED )
+		{
+			return this.findBestRate( inQuantity );
+		}
+		
+		long started = System.nanoTime();
+		Rate bestRate = this.findBestRate( inQuantity );
+		Metrics.GET_BEST_RATE.record( System.nanoTime() - started );
+		return bestRate;
+	}
+	
+	private Rate findBestRate( double inQuantity )
 	{
+		RateIndex index = this.getRateIndex();
+		
 		/*
-		 * Find list of rates that are applicable based on quantity
-		 * That is, inQuantiy >= rate's effective quantity
+		 * Find the number of rates whose effective quantity is <= inQuantity
 		 */
-		Rate lowestRate = null;
-		HashSet <Rate> applicableRate = new HashSet <Rate>();
-		
-		Iterator ite = this.productRate.iterator();
-		while( ite.hasNext() )
+		int low		= 0;
+		int high	= index.quantities.length;
+		while( low < high )
 		{
-			Rate aRate = (Rate)ite.next();
-			if( inQuantity >= aRate.getEffectiveQuantity() )
+			int mid = ( low + high ) >>> 1;
+			if( index.quantities[ mid ] <= inQuantity )
+			{
+				low = mid + 1;
+			}
+			else
 			{
-				applicableRate.add( aRate );
+				high = mid;
 			}
 		}
 		
-		/*
-		 * Amongst the available rates, pick the rate with
-		 * the lowest cost per unit
-		 */
+		return ( 0 == low ) ? null : index.bestRates[ low - 1 ];
 		
-		ite = applicableRate.iterator();
-		while( ite.hasNext() )
+	}
+	
+	/*
+	 * Build the rate index now rather than on the first call to getBestRate.
+	 * Called once the catalogue is loaded
+	 */
+	public void buildRateIndex()
+	{
+		
+		this.getRateIndex();
+		
+	}
+	
+	/*
+	 * Returns the rate index, building it if the rates changed since it was last built
+	 */
+	RateIndex getRateIndex()
+	{
+		RateIndex index = this.rateIndex;
+		
+		if( null == index )
 		{
-			Rate appRate = (Rate)ite.next();
+			index = new RateIndex( this.productRate );
+			this.rateIndex = index;
+		}
+		
+		return index;
+	}
+	
+	/*
+	 * Returns the table of cheapest rate combinations used by OptimalPricingEngine,
+	 * creating it if the rates changed since it was last created
+	 */
+	CoverTable getCoverTable()
+	{
+		CoverTable table = this.coverTable;
+		
+		if( null == table )
+		{
+			table = new CoverTable( this );
+			this.coverTable = table;
+		}
+		
+		return table;
+	}
+	
+	/*
+	 * An immutable view of the rates of a product, sorted by effective quantity
+	 * (cheapest cost per unit first on a tie), with the cheapest rate so far at
+	 * each position
+	 */
+	static final class RateIndex
+	{
+		final Rate[] rates;
+		final double[] quantities;
+		final Rate[] bestRates;
+		
+		RateIndex( HashSet<Rate> inRates )
+		{
+			this.rates = inRates.toArray( new Rate[ inRates.size() ] );
 			
-			if( null == lowestRate )
+			Arrays.sort( this.rates, new Comparator<Rate>()
 			{
-				/*
-				 * Handle first time entering the loop
-				 */
-				lowestRate = appRate;
-			}
+				public int compare( Rate r1, Rate r2 )
+				{
+					int byQuantity = Double.compare( r1.getEffectiveQuantity(), r2.getEffectiveQuantity() );
+					return ( 0 != byQuantity ) ? byQuantity : Double.compare( r1.getCostPerUnit(), r2.getCostPerUnit() );
+				}
+			} );
+			
+			this.quantities	= new double[ this.rates.length ];
+			this.bestRates	= new Rate[ this.rates.length ];
 			
-			if( lowestRate.getCostPerUnit() > appRate.getCostPerUnit() )
+			for( int i = 0; i < this.rates.length; ++i )
 			{
-				lowestRate = appRate;
+				this.quantities[ i ] = this.rates[ i ].getEffectiveQuantity();
+				
+				if( 0 == i || this.rates[ i ].getCostPerUnit() < this.bestRates[ i - 1 ].getCostPerUnit() )
+				{
+					this.bestRates[ i ] = this.rates[ i ];
+				}
+				else
+				{
+					this.bestRates[ i ] = this.bestRates[ i - 1 ];
+				}
 			}
 		}
-		
-		return lowestRate;
-		
 	}
 	
 }
@@ -0,0 +1,374 @@
+package grocery;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Promotions that span products, read from a pipe delimited promotions file
+ *
+ * Each line is a kind of promotion followed by its fields:
+ *
+ * MIX|fruit3|Any 3 fruits for $2.00|3|2.00|apple,orange,avoCado
+ * 									any 3 units of the listed products for the price
+ * PAIR|avo-orange|Buy an avoCado, get an orange 50% off|avoCado|orange|50
+ * 									with each unit of the first product, one unit of
+ * 									the second at the percentage off its own price
+ *
+ * A Rate can only discount units of one product; these rules cover a group of
+ * products.  Which rules a basket gets, and which of its units go into them, is
+ * left to a BundleOptimizer.
+ *
+ * Rules name products by their SymbolTable id, and are indexed by product: the ids
+ * of the rules that involve a product sit next to each other in one int array, so
+ * a basket is only ever matched against the rules of its own products, however
+ * many rules there are.  Products need not be in the catalogue; a rule for a
+ * product that is not there never applies.
+ *
+ * A line that is malformed is reported with its line number and skipped.
+ *
+ */
+public class PromotionCatalogue
+{
+	
+	enum Kind
+	{
+		MIX, PAIR
+	}
+	
+	static final class Rule
+	{
+		final Kind kind;
+		final int ruleNameId;			// see SymbolTable
+		final int ruleDescrId;
+		final int units;				// MIX: the units that make up the bundle
+		final long priceScale;			// PAIR: the scale of the second product's price, e.g. 5000 (see Money)
+		final int[] productNameIds;		// MIX: the group, PAIR: the first product then the second
+		final Rate rate;				// MIX: the rate the bundle goes on the bill at
+		
+		Rule( Kind inKind, int inRuleNameId, int inRuleDescrId, int inUnits, long inPrice, long inPriceScale,
+				int[] inProductNameIds )
+		{
+			this.kind			= inKind;
+			this.ruleNameId		= inRuleNameId;
+			this.ruleDescrId	= inRuleDescrId;
+			this.units			= inUnits;
+			this.priceScale		= inPriceScale;
+			this.productNameIds	= inProductNameIds;
+			this.rate			= ( Kind.MIX == inKind ) ? bundleRate( inRuleNameId, inRuleDescrId, inUnits, inPrice ) : null;
+		}
+	}
+	
+	private static final double[] NO_TIERS			= new double[ 0 ];
+	private static final long[] NO_TIER_PRICES		= new long[ 0 ];
+	private static final long[] NO_TIER_SCALES		= new long[ 0 ];
+	
+	private String source;
+	private ArrayList<Rule> rules;
+	private ArrayList<String> parseErrors;
+	
+	/*
+	 * The ids of the rules that involve product p are ruleIds[ ruleStart[ p ], ruleStart[ p + 1 ] ).
+	 * Products interned after the index was built have no rules
+	 */
+	private int[] ruleStart;
+	private int[] ruleIds;
+	
+	private PromotionCatalogue( String inSource )
+	{
+		this.source			= inSource;
+		this.rules			= new ArrayList<Rule>();
+		this.parseErrors	= new ArrayList<String>();
+	}
+	
+	/*
+	 * Read a promotions file
+	 */
+	public static PromotionCatalogue parse( String inputFile ) throws IOException
+	{
+		return parse( Files.readAllBytes( Paths.get( inputFile ) ), inputFile );
+	}
+	
+	/*
+	 * Read promotions held in memory
+	 */
+	public static PromotionCatalogue parse( byte[] buf, String inSource )
+	{
+		PromotionCatalogue promotions	= new PromotionCatalogue( inSource );
+		long lineNo						= 0;
+		int lineStart					= 0;
+		
+		while( lineStart < buf.length )
+		{
+			int lineEnd = CatalogueParser.indexOf( buf, lineStart, buf.length, (byte)'\n' );
+			promotions.parseLine( buf, lineStart, lineEnd, ++lineNo );
+			lineStart = lineEnd + 1;
+		}
+		
+		promotions.buildIndex();
+		return promotions;
+	}
+	
+	private void parseLine( byte[] buf, int start, int end, long lineNo )
+	{
+		if( end > start && '\r' == buf[ end - 1 ] )
+		{
+			--end;
+		}
+		
+		if( true == CatalogueParser.isBlank( buf, start, end ) )
+		{
+			return;
+		}
+		
+		String[] fields = splitFields( buf, start, end );
+		Kind kind;
+		
+		try
+		{
+			kind = Kind.valueOf( fields[ 0 ] );
+		}
+		catch( IllegalArgumentException iae )
+		{
+			this.reportMalformed( lineNo, "expected MIX or PAIR" );
+			return;
+		}
+		
+		if( 6 != fields.length )
+		{
+			this.reportMalformed( lineNo, "expected " + kind + " and 5 fields separated by '|'" );
+			return;
+		}
+		
+		int ruleNameId	= SymbolTable.intern( fields[ 1 ] );
+		int ruleDescrId	= SymbolTable.intern( fields[ 2 ] );
+		
+		switch( kind )
+		{
+			case MIX:
+				int units = parseCount( fields[ 3 ] );
+				if( units <= 0 )
+				{
+					this.reportMalformed( lineNo, "units must be a whole number above 0" );
+					return;
+				}
+				
+				long price = Money.parseMills( fields[ 4 ] );
+				if( Money.INVALID == price || price < 0 )
+				{
+					this.reportMalformed( lineNo, "price must be a number no less than 0" );
+					return;
+				}
+				
+				int[] group = internGroup( fields[ 5 ] );
+				if( 0 == group.length )
+				{
+					this.reportMalformed( lineNo, "expected products separated by ','" );
+					return;
+				}
+				
+				this.rules.add( new Rule( kind, ruleNameId, ruleDescrId, units, price, Money.SCALE_PARTS, group ) );
+				break;
+			
+			case PAIR:
+				if( 0 == fields[ 3 ].length() || 0 == fields[ 4 ].length() )
+				{
+					this.reportMalformed( lineNo, "expected PAIR|id|description|product|discounted product|percent off" );
+					return;
+				}
+				
+				long percentOff = parsePercent( fields[ 5 ] );
+				if( Money.INVALID == percentOff )
+				{
+					this.reportMalformed( lineNo, "percent off must be a number from 0 to 100" );
+					return;
+				}
+				
+				int[] pair = new int[] { SymbolTable.intern( fields[ 3 ] ), SymbolTable.intern( fields[ 4 ] ) };
+				this.rules.add( new Rule( kind, ruleNameId, ruleDescrId, 1, 0, Money.SCALE_PARTS - percentOff, pair ) );
+				break;
+		}
+	}
+	
+	/*
+	 * Count the rules of each product, then lay their ids out product by product
+	 */
+	private void buildIndex()
+	{
+		int numProducts = SymbolTable.size();
+		this.ruleStart	= new int[ numProducts + 1 ];
+		
+		for( Rule rule : this.rules )
+		{
+			for( int p = 0; p < rule.productNameIds.length; ++p )
+			{
+				if( 0 == p || rule.productNameIds[ p ] != rule.productNameIds[ 0 ] )
+				{
+					++this.ruleStart[ rule.productNameIds[ p ] + 1 ];
+				}
+			}
+		}
+		
+		for( int p = 0; p < numProducts; ++p )
+		{
+			this.ruleStart[ p + 1 ] += this.ruleStart[ p ];
+		}
+		
+		this.ruleIds	= new int[ this.ruleStart[ numProducts ] ];
+		int[] next		= Arrays.copyOf( this.ruleStart, numProducts );
+		
+		for( int r = 0; r < this.rules.size(); ++r )
+		{
+			Rule rule = this.rules.get( r );
+			for( int p = 0; p < rule.productNameIds.length; ++p )
+			{
+				if( 0 == p || rule.productNameIds[ p ] != rule.productNameIds[ 0 ] )
+				{
+					this.ruleIds[ next[ rule.productNameIds[ p ] ]++ ] = r;
+				}
+			}
+		}
+	}
+	
+	public int getNumRules()
+	{
+		return this.rules.size();
+	}
+	
+	/*
+	 * Reports of the lines that could not be read
+	 */
+	public List<String> getParseErrors()
+	{
+		return this.parseErrors;
+	}
+	
+	Rule getRule( int ruleId )
+	{
+		return this.rules.get( ruleId );
+	}
+	
+	/*
+	 * The rules of a product are ruleIdAt( firstRuleOf( id ) ) up to lastRuleOf( id )
+	 */
+	int firstRuleOf( int productNameId )
+	{
+		return ( productNameId + 1 < this.ruleStart.length ) ? this.ruleStart[ productNameId ] : 0;
+	}
+	
+	int lastRuleOf( int productNameId )
+	{
+		return ( productNameId + 1 < this.ruleStart.length ) ? this.ruleStart[ productNameId + 1 ] : 0;
+	}
+	
+	int ruleIdAt( int i )
+	{
+		return this.ruleIds[ i ];
+	}
+	
+	/*
+	 * The fields of a line, trimmed
+	 */
+	private static String[] splitFields( byte[] buf, int start, int end )
+	{
+		ArrayList<String> fields = new ArrayList<String>( 6 );
+		
+		while( true )
+		{
+			int fieldEnd = CatalogueParser.indexOf( buf, start, end, (byte)'|' );
+			fields.add( new String( buf, start, fieldEnd - start, Charset.defaultCharset() ).trim() );
+			
+			if( fieldEnd == end )
+			{
+				return fields.toArray( new String[ fields.size() ] );
+			}
+			start = fieldEnd + 1;
+		}
+	}
+	
+	/*
+	 * The ids of the products in a ',' separated list, each once
+	 */
+	private static int[] internGroup( String inGroup )
+	{
+		String[] names	= inGroup.split( "," );
+		int[] group		= new int[ names.length ];
+		int size		= 0;
+		
+		for( String name : names )
+		{
+			if( 0 == name.trim().length() )
+			{
+				continue;
+			}
+			
+			int id = SymbolTable.intern( name.trim() );
+			boolean seen = false;
+			for( int i = 0; i < size && false == seen; ++i )
+			{
+				seen = ( group[ i ] == id );
+			}
+			if( false == seen )
+			{
+				group[ size++ ] = id;
+			}
+		}
+		
+		return Arrays.copyOf( group, size );
+	}
+	
+	/*
+	 * A whole number of units, or -1
+	 */
+	private static int parseCount( String inCount )
+	{
+		try
+		{
+			return Integer.parseInt( inCount );
+		}
+		catch( NumberFormatException nfe )
+		{
+			return -1;
+		}
+	}
+	
+	/*
+	 * A percentage from 0 to 100 in hundredths of a percent, i.e. parts per
+	 * Money.SCALE_PARTS, or Money.INVALID
+	 */
+	private static long parsePercent( String inPercent )
+	{
+		byte[] bytes	= inPercent.getBytes( Charset.defaultCharset() );
+		long percent	= Money.parseFixed( bytes, 0, bytes.length, 2 );
+		
+		return ( percent >= 0 && percent <= 100 * 100 ) ? percent : Money.INVALID;
+	}
+	
+	/*
+	 * The rate of a MIX bundle: its units for its price
+	 */
+	private static Rate bundleRate( int ruleNameId, int ruleDescrId, int units, long price )
+	{
+		return new Rate( ruleNameId, ruleDescrId, false, units, price, (double)price / units,
+				NO_TIERS, NO_TIERS, NO_TIER_PRICES, NO_TIER_SCALES, 0 );
+	}
+	
+	/*
+	 * The rate of one unit of a product sold at a price set by a PAIR rule
+	 */
+	static Rate pairedUnitRate( Rule rule, long price )
+	{
+		return new Rate( rule.ruleNameId, rule.ruleDescrId, false, 1, price, price,
+				NO_TIERS, NO_TIERS, NO_TIER_PRICES, NO_TIER_SCALES, 0 );
+	}
+	
+	private void reportMalformed( long lineNo, String reason )
+	{
+		this.parseErrors.add( CatalogueParser.malformedMessage( this.source, lineNo, reason ) );
+	}
+
+}
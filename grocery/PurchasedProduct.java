@@ -1,8 +1,5 @@
 package grocery;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-
 /*
  * A class to represent the actual product and rate selected.  A customer wishing to
  * purchase 5 apples may end up with 3 purchased product objects all of which
@@ -12,23 +9,25 @@ import java.math.RoundingMode;
 public class PurchasedProduct
 {
 	
-	private String 	purchasedProdName;
+	private int		purchasedProdNameId;	// see SymbolTable
 	private double 	purchasedQuantity;
 	private Rate 	purchasedRate;
-	private double	purchasedCost;
+	private long	purchasedCost;		// in cents
 	
-	PurchasedProduct( String inProdName, double inQuantity, Rate inRate )
+	PurchasedProduct( int inProdNameId, double inQuantity, Rate inRate )
 	{
-		//this.purchasedProdName 	= Character.toUpperCase( inProdName.charAt(0) ) + inProdName.substring( 1 );
-		this.purchasedProdName	= inProdName;
-		this.purchasedQuantity	= inQuantity;
-		this.purchasedRate 		= inRate;
-		this.purchasedCost		= this.getCost();
+		this.purchasedProdNameId	= inProdNameId;
+		this.purchasedQuantity		= inQuantity;
+		this.purchasedRate 			= inRate;
+		this.purchasedCost			= this.getCost();
 	}
 	
+	/*
+	 * The names are only looked up in the SymbolTable when the bill is written
+	 */
 	public String getPurchasedProductName()
 	{
-		return this.purchasedProdName;
+		return SymbolTable.symbol( this.purchasedProdNameId );
 	}
 	
 	public String getPurchasedRateDescr()
@@ -36,14 +35,40 @@ public class PurchasedProduct
 		return this.purchasedRate.getRateDescr();
 	}
 	
-	public double getPurhcasedCost()
+	public int getPurchasedProductNameId()
+	{
+		return this.purchasedProdNameId;
+	}
+	
+	public int getPurchasedRateDescrId()
+	{
+		return this.purchasedRate.getRateDescrId();
+	}
+	
+	public double getPurchasedQuantity()
+	{
+		return this.purchasedQuantity;
+	}
+	
+	public Rate getPurchasedRate()
+	{
+		return this.purchasedRate;
+	}
+	
+	/*
+	 * The line total, in cents
+	 */
+	public long getPurchasedCost()
 	{
 		return this.purchasedCost;
 	}
 
-	private double getCost()
+	/*
+	 * Price the line in mills and round it to cents with the money rounding policy
+	 */
+	private long getCost()
 	{
-		double lineCost = 0;
+		long lineCost = 0;
 		
 		if( false == this.purchasedRate.isTiered() )
 		{
@@ -51,22 +76,10 @@ public class PurchasedProduct
 		}
 		else
 		{
-			lineCost = this.purchasedRate.getTierPrice( new Double( this.purchasedQuantity ) );
+			lineCost = this.purchasedRate.getTierPrice( this.purchasedQuantity );
 		}
 		
-		return round( lineCost, 2 );
-	}
-	
-	/*
-	 * Reference: http://stackoverflow.com/questions/2808535/round-a-double-to-2-decimal-places
-	 */
-	private double round( double value, int places ) 
-	{
-	    if (places < 0) throw new IllegalArgumentException();
-
-	    BigDecimal bd = new BigDecimal(value);
-	    bd = bd.setScale(places, RoundingMode.HALF_UP);
-	    return bd.doubleValue();
+		return Money.toCents( lineCost );
 	}
 	
 }
@@ -1,24 +1,56 @@
 package grocery;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.StringTokenizer;
 
 /*
  * Rate class represents the detail on how to rate a specific product
  * A product may have many rates
+ * 
+ * The tiers of a tiered rate are held as parallel primitive arrays, along with the
+ * quantity and cost accumulated up to the end of each tier, so pricing a quantity
+ * is a binary search over the tiers
+ * 
+ * Prices and costs are in mills (see Money)
+ * 
+ * A ladder of up to TierEvaluator.MAX_TIERS tiers is also compiled into a
+ * TierEvaluator when the rate is made, and its tier prices come from that
  */
 public class Rate
 {
 	
-	private String rateName;			
-	private String rateDescr;			// bill invoice display
+	private int rateNameId;				// see SymbolTable
+	private int rateDescrId;			// bill invoice display
 	private double effectiveQuantity;	// the total quantity applicable to take advantage of this rate
-	private double effectivePrice;		// the total price applicable
-	private double costPerUnit;			// average cost per unit
-	private ArrayList<Map> tiers;		// ONLY applicable if this is tierd pricing
+	private long effectivePrice;		// the total price applicable, in mills
+	private double costPerUnit;			// average cost per unit, in mills
+	private boolean tiered;
+	
+	/*
+	 * ONLY applicable if this is tierd pricing
+	 */
+	private int numTiers;
+	private double[] tierMin;
+	private double[] tierMax;
+	private long[] tierPrice;
+	private long[] tierScale;			// parts per Money.SCALE_PARTS
+	
+	/*
+	 * The scaled price of a unit in each tier, and the units and cost from the first
+	 * tier to the end of each tier.  Only the tiers before the first empty one
+	 * (max < min) are priced
+	 */
+	private int numPricedTiers;
+	private long[] tierUnitCost;
+	private double[] tierEndQuantity;
+	private long[] tierEndCost;
+	
+	private TierEvaluator tierEvaluator;		// null for a longer ladder
+	
+	/*
+	 * Shared by every rate with nothing to price
+	 */
+	private static final TierEvaluator NO_TIERS = TierEvaluator.compile( 0, new double[ 0 ], new long[ 0 ], new long[ 0 ] );
 	
 	Rate()
 	{
@@ -28,15 +60,16 @@ public class Rate
 	/*
 	 * Non-tier rate constructor
 	 */
-	Rate( String inRateName, String inRateDesc, double inEffQ, double inEffPr )
+	Rate( String inRateName, String inRateDesc, double inEffQ, long inEffPr )
 	{
-		this.rateName = inRateName;
-		this.rateDescr = inRateDesc;
+		this.rateNameId = SymbolTable.intern( inRateName );
+		this.rateDescrId = SymbolTable.intern( inRateDesc );
 		this.effectiveQuantity = inEffQ;
 		this.effectivePrice = inEffPr;
-		this.tiers = new ArrayList<Map>();
+		this.tiered = false;
+		this.setTiers( new double[ 0 ], new double[ 0 ], new long[ 0 ], new long[ 0 ], 0 );
 		
-		this.costPerUnit = this.getCostPerUnit();			
+		this.costPerUnit = this.getCostPerUnit();
 	}
 	
 	/*
@@ -44,11 +77,10 @@ public class Rate
 	 */
 	Rate( String inRateName, String inRateDesc, String tier_val )
 	{
-		this.rateName = inRateName;
-		this.rateDescr = inRateDesc;
-		this.effectiveQuantity = -1; // this is calculated later in getCostPerUnit
+		this.rateNameId = SymbolTable.intern( inRateName );
+		this.rateDescrId = SymbolTable.intern( inRateDesc );
 		this.effectivePrice = -1;
-		this.tiers = new ArrayList<Map>();
+		this.tiered = true;
 		
 		/*
 		 * Example tier_val "1-1,0.50,1;2-2,0.50,0.50"
@@ -56,40 +88,164 @@ public class Rate
 		 * A token within a tier is operated by ','
 		 */
 		StringTokenizer more_tiers = new StringTokenizer( tier_val, ";" );
+		int count = more_tiers.countTokens();
 		
-		while( more_tiers.hasMoreTokens() )
+		double[] min	= new double[ count ];
+		double[] max	= new double[ count ];
+		long[] price	= new long[ count ];
+		long[] scale	= new long[ count ];
+		
+		for( int i = 0; i < count; ++i )
 		{
 			StringTokenizer tier_detail = new StringTokenizer( (String)more_tiers.nextElement(), "," );
-			Map<String, Double> tier_map = new HashMap<String, Double>();
 			
 			/*
 			 * First token is the min to max quantity e.g. 1-1 or 1-5
 			 */
 			String[] minMaxVal = tier_detail.nextElement().toString().split("-");
 			
-			tier_map.put( "MIN", new Double( minMaxVal[0] ) );
-			tier_map.put( "MAX", new Double( minMaxVal[1] ) );
+			min[ i ] = Double.parseDouble( minMaxVal[0] );
+			max[ i ] = Double.parseDouble( minMaxVal[1] );
 			
 			/*
 			 * Second token is the quantity price per unit so 1.50 mean charge each unit for 1.50
 			 */
-			tier_map.put( "PRICE", new Double( (String)tier_detail.nextElement() ) );
+			price[ i ] = Money.parseMills( (String)tier_detail.nextElement() );
+			if( Money.INVALID == price[ i ] )
+			{
+				throw new NumberFormatException( "Tier price is not an amount in [" + tier_val + "]" );
+			}
 			
 			/*
 			 * Third token is the discount scale, e.g 1 means 100% no discount and 0.5 means 50% discount
 			 */
-			tier_map.put( "SCALE", new Double( (String)tier_detail.nextElement() ) );
-			
-			tiers.add( tier_map );
+			scale[ i ] = Money.parseScale( (String)tier_detail.nextElement() );
+			if( Money.INVALID == scale[ i ] )
+			{
+				throw new NumberFormatException( "Tier scale is not a number in [" + tier_val + "]" );
+			}
 		}
 		
+		this.setTiers( min, max, price, scale, count );
+		this.effectiveQuantity = this.tieredQuantity();
 		this.costPerUnit = this.getCostPerUnit();
 		
 	}
 	
+	/*
+	 * Tier rate constructor from already parsed tiers.  Only the first inNumTiers
+	 * entries of each array are used
+	 */
+	Rate( String inRateName, String inRateDesc, double[] inMin, double[] inMax, long[] inPrice, long[] inScale, int inNumTiers )
+	{
+		this.rateNameId = SymbolTable.intern( inRateName );
+		this.rateDescrId = SymbolTable.intern( inRateDesc );
+		this.effectivePrice = -1;
+		this.tiered = true;
+		this.setTiers( Arrays.copyOf( inMin, inNumTiers ), Arrays.copyOf( inMax, inNumTiers ),
+				Arrays.copyOf( inPrice, inNumTiers ), Arrays.copyOf( inScale, inNumTiers ), inNumTiers );
+		
+		this.effectiveQuantity = this.tieredQuantity();
+		this.costPerUnit = this.getCostPerUnit();
+		
+	}
+	
+	/*
+	 * Constructor for a rate whose quantity and cost per unit were worked out before,
+	 * e.g. when it is read back from a catalogue snapshot.  Only the tier totals are
+	 * recalculated
+	 */
+	Rate( String inRateName, String inRateDesc, boolean inTiered, double inEffQ, long inEffPr, double inCostPerUnit,
+			double[] inMin, double[] inMax, long[] inPrice, long[] inScale, int inNumTiers )
+	{
+		this( SymbolTable.intern( inRateName ), SymbolTable.intern( inRateDesc ), inTiered, inEffQ, inEffPr, inCostPerUnit,
+				inMin, inMax, inPrice, inScale, inNumTiers );
+	}
+	
+	/*
+	 * The same with the name and description already in the SymbolTable
+	 */
+	Rate( int inRateNameId, int inRateDescId, boolean inTiered, double inEffQ, long inEffPr, double inCostPerUnit,
+			double[] inMin, double[] inMax, long[] inPrice, long[] inScale, int inNumTiers )
+	{
+		this.rateNameId = inRateNameId;
+		this.rateDescrId = inRateDescId;
+		this.tiered = inTiered;
+		this.effectiveQuantity = inEffQ;
+		this.effectivePrice = inEffPr;
+		this.costPerUnit = inCostPerUnit;
+		this.setTiers( Arrays.copyOf( inMin, inNumTiers ), Arrays.copyOf( inMax, inNumTiers ),
+				Arrays.copyOf( inPrice, inNumTiers ), Arrays.copyOf( inScale, inNumTiers ), inNumTiers );
+	}
+	
+	/*
+	 * Keep the tiers and accumulate the quantity and cost to the end of each tier
+	 */
+	private void setTiers( double[] inMin, double[] inMax, long[] inPrice, long[] inScale, int inNumTiers )
+	{
+		this.numTiers	= inNumTiers;
+		this.tierMin	= inMin;
+		this.tierMax	= inMax;
+		this.tierPrice	= inPrice;
+		this.tierScale	= inScale;
+		
+		this.tierUnitCost		= new long[ inNumTiers ];
+		this.tierEndQuantity	= new double[ inNumTiers ];
+		this.tierEndCost		= new long[ inNumTiers ];
+		this.numPricedTiers		= 0;
+		
+		double total_quan = 0;
+		long total_cost = 0;
+		
+		for( int i = 0; i < inNumTiers; ++i )
+		{
+			double tierMaxQ = inMax[ i ] - inMin[ i ] + 1;
+			
+			if( 0 >= tierMaxQ )
+			{
+				break;
+			}
+			
+			this.tierUnitCost[ i ] = Money.scale( inPrice[ i ], inScale[ i ] );
+			
+			total_quan = total_quan + tierMaxQ;
+			total_cost = total_cost + Money.multiply( tierMaxQ, this.tierUnitCost[ i ] );
+			
+			this.tierEndQuantity[ i ]	= total_quan;
+			this.tierEndCost[ i ]		= total_cost;
+			++this.numPricedTiers;
+		}
+		
+		this.tierEvaluator = ( 0 == this.numPricedTiers ) ? NO_TIERS
+				: TierEvaluator.compile( this.numPricedTiers, this.tierEndQuantity, this.tierEndCost, this.tierUnitCost );
+	}
+	
+	/*
+	 * The total quantity of all the priced tiers
+	 */
+	private double tieredQuantity()
+	{
+		return ( 0 == this.numPricedTiers ) ? 0 : this.tierEndQuantity[ this.numPricedTiers - 1 ];
+	}
+	
+	public String getRateName()
+	{
+		return SymbolTable.symbol( this.rateNameId );
+	}
+	
 	public String getRateDescr()
 	{
-		return this.rateDescr;
+		return SymbolTable.symbol( this.rateDescrId );
+	}
+	
+	public int getRateNameId()
+	{
+		return this.rateNameId;
+	}
+	
+	public int getRateDescrId()
+	{
+		return this.rateDescrId;
 	}
 	
 	public double getEffectiveQuantity()
@@ -97,86 +253,125 @@ public class Rate
 		return this.effectiveQuantity;
 	}
 	
-	public double getEffectivePrice()
+	/*
+	 * In mills; -1 for a tiered rate
+	 */
+	public long getEffectivePrice()
 	{
 		return this.effectivePrice;
 	}
 	
 	public Boolean isTiered()
 	{
-		return ( this.effectivePrice == -1 );
+		return this.tiered;
 	}
 	
 	/*
-	 * Calculate the total cost with the input quantity
+	 * Tier details, by position
 	 */
-	public double getTierPrice( double inQuantity )
+	public int getNumTiers()
 	{
-		Iterator ite 		= this.tiers.iterator();
-		
-		Double min 			= new Double( 0 );
-		Double max			= new Double( 0 );
-		Double price		= new Double( 0 );
-		Double scale		= new Double( 0 );
+		return this.numTiers;
+	}
+	
+	public double getTierMin( int inTier )
+	{
+		return this.tierMin[ inTier ];
+	}
+	
+	public double getTierMax( int inTier )
+	{
+		return this.tierMax[ inTier ];
+	}
+	
+	/*
+	 * In mills, before the scale is applied
+	 */
+	public long getTierUnitPrice( int inTier )
+	{
+		return this.tierPrice[ inTier ];
+	}
+	
+	/*
+	 * In parts per Money.SCALE_PARTS
+	 */
+	public long getTierScale( int inTier )
+	{
+		return this.tierScale[ inTier ];
+	}
+	
+	/*
+	 * Calculate the total cost with the input quantity, in mills, with the compiled
+	 * tiers if there are not too many
+	 */
+	public long getTierPrice( double inQuantity )
+	{
+		if( false == Metrics.ENABLED )
+		{
+			return this.computeTierPrice( inQuantity );
+		}
 		
-		Double total_cost 	= new Double( 0 );
-		Double total_quan 	= new Double( 0 );
-		Double tierMaxQ		= new Double( 0 );
+		long started = System.nanoTime();
+		long tierPrice = this.computeTierPrice( inQuantity );
+		Metrics.GET_TIER_PRICE.record( System.nanoTime() - started );
+		return tierPrice;
+	}
+	
+	private long computeTierPrice( double inQuantity )
+	{
+		return ( null != this.tierEvaluator ) ? this.tierEvaluator.price( inQuantity ) : this.interpretTierPrice( inQuantity );
+	}
+	
+	/*
+	 * The same from the tiers themselves, as tier prices were worked out before they
+	 * were compiled; also used to measure the TierEvaluator against (see Benchmark)
+	 * 
+	 * Finds the tier the last unit falls in, then adds the cost of the units
+	 * bought in that tier to the cost of all the tiers before it.  Units beyond
+	 * the last tier are not charged
+	 */
+	long interpretTierPrice( double inQuantity )
+	{
+		if( 0 >= inQuantity || 0 == this.numPricedTiers )
+		{
+			return 0;
+		}
 		
-		Double toRateQuan  = new Double( inQuantity );
-
 		/*
-		 * Step through each tier
+		 * Find the first tier that ends at or after inQuantity
 		 */
-		while( ite.hasNext() )
+		int low		= 0;
+		int high	= this.numPricedTiers;
+		while( low < high )
 		{
-			
-			Map tier_map = (Map)ite.next();
-			
-			min 	= (Double)tier_map.get( "MIN" );
-			max 	= (Double)tier_map.get( "MAX" );
-			price 	= (Double)tier_map.get( "PRICE" );
-			scale 	= (Double)tier_map.get( "SCALE" );
-			
-			/*
-			 * Get the tier applicable units
-			 */
-			tierMaxQ = max - min + 1;
-			
-			if( 0 >= toRateQuan )
-			{
-				break;
-			}
-			else if( toRateQuan >= tierMaxQ )
+			int mid = ( low + high ) >>> 1;
+			if( this.tierEndQuantity[ mid ] < inQuantity )
 			{
-				/*
-				 * The incoming to-to-rated quantity is greater than
-				 * the tier total units.  Rate it with the
-				 * maximum units in this tier
-				 */
-				total_cost = total_cost + ( tierMaxQ * price * scale );
-				toRateQuan = toRateQuan - tierMaxQ;
-				continue;
+				low = mid + 1;
 			}
 			else
 			{
-				/*
-				 * The incoming to-be-rated quantity is less than
-				 * the tier total units.  Rate it with the to-be-rated
-				 * quantity
-				 */
-				total_cost = total_cost + ( toRateQuan * price * scale );
-				break;
+				high = mid;
 			}
-			
 		}
 		
-		return total_cost;
+		if( low == this.numPricedTiers )
+		{
+			/*
+			 * More than all the tiers together
+			 */
+			return this.tierEndCost[ low - 1 ];
+		}
+		
+		double quantityBefore	= ( 0 == low ) ? 0 : this.tierEndQuantity[ low - 1 ];
+		long costBefore			= ( 0 == low ) ? 0 : this.tierEndCost[ low - 1 ];
+		
+		return costBefore + Money.multiply( inQuantity - quantityBefore, this.tierUnitCost[ low ] );
 		
 	}
 	
 	/*
-	 * Calculate the 'average' cost per unit
+	 * Calculate the 'average' cost per unit, in mills
 	 * 
 	 * For a non-tiered rate, the average cost is price over quantity
 	 * 
@@ -192,49 +387,19 @@ public class Rate
 			/*
 			 * Simple pricing; individual or bulk
 			 */
-			return ( this.effectivePrice / this.effectiveQuantity );
+			return ( (double)this.effectivePrice / this.effectiveQuantity );
 		}
 		else
 		{
 			/*
-			 * Tier pricing.  Calculate the total cost then divide by the quantity to
-			 * get the average cost
+			 * Tier pricing.  The total cost of all the tiers over their total quantity
 			 */
-			Iterator ite 		= this.tiers.iterator();
-			
-			Double min 			= new Double( 0 );
-			Double max			= new Double( 0 );
-			Double price		= new Double( 0 );
-			Double scale		= new Double( 0 );
-			
-			Double total_cost 	= new Double( 0 );
-			Double total_quan 	= new Double( 0 );
-			Double costPerUnit	= new Double( 0 );
-			
-			while( ite.hasNext() )
+			if( 0 == this.numPricedTiers )
 			{
-				
-				Map tier_map = (Map)ite.next();
-				
-				min 	= (Double)tier_map.get( "MIN" );
-				max 	= (Double)tier_map.get( "MAX" );
-				price 	= (Double)tier_map.get( "PRICE" );
-				scale 	= (Double)tier_map.get( "SCALE" );
-				
-				if( 0 >= ( max - min + 1 ) )
-				{
-					break;
-				}
-				
-				total_quan = total_quan + ( max - min + 1 );
-				total_cost = total_cost + ( ( max - min + 1 ) * price * scale );
-				
+				return Double.NaN;
 			}
 			
-			this.effectiveQuantity = total_quan;
-			costPerUnit = total_cost / total_quan;
-			
-			return costPerUnit;
+			return (double)this.tierEndCost[ this.numPricedTiers - 1 ] / this.tierEndQuantity[ this.numPricedTiers - 1 ];
 		}
 	}
 	
@@ -243,25 +408,24 @@ public class Rate
 	 */
 	public void printRate()
 	{
-		System.out.println( "\tRATE NAME [" + this.rateName + "]" );
-		System.out.println( "\tRATE DESC [" + this.rateDescr + "]" );
+		System.out.println( "\tRATE NAME [" + this.getRateName() + "]" );
+		System.out.println( "\tRATE DESC [" + this.getRateDescr() + "]" );
 		System.out.println( "\tQUANTITY [" + this.effectiveQuantity + "]" );
 		System.out.println( "\tCOST PER UNIT [" + this.costPerUnit + "]" );
 		
 		if( false == this.isTiered() )
 		{
-			System.out.println( "\tPRICE [" + this.effectivePrice + "]" );
+			System.out.println( "\tPRICE (MILLS) [" + this.effectivePrice + "]" );
 		}
 		else
 		{
-			int num_tiers = this.tiers.size();
-			for( int i = 0; i < num_tiers; ++i )
+			for( int i = 0; i < this.numTiers; ++i )
 			{
 				System.out.println( "\t--- TIER [" + ( i + 1 ) + "]" );
-				System.out.println( "\t\t    --- MIN      [" + this.tiers.get( i ).get( "MIN") + "]" );
-				System.out.println( "\t\t    --- MAX      [" + this.tiers.get( i ).get( "MAX") + "]" );
-				System.out.println( "\t\t    --- PRICE    [" + this.tiers.get( i ).get( "PRICE") + "]" );
-				System.out.println( "\t\t    --- SCALE    [" + this.tiers.get( i ).get( "SCALE") + "]" );
+				System.out.println( "\t\t    --- MIN      [" + this.tierMin[ i ] + "]" );
+				System.out.println( "\t\t    --- MAX      [" + this.tierMax[ i ] + "]" );
+				System.out.println( "\t\t    --- PRICE    [" + this.tierPrice[ i ] + " MILLS]" );
+				System.out.println( "\t\t    --- SCALE    [" + this.tierScale[ i ] + "/" + Money.SCALE_PARTS + "]" );
 			}
 		}
 		
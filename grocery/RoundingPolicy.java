@@ -0,0 +1,95 @@
+package grocery;
+
+/*
+ * How an amount of money is rounded when it has more precision than is kept,
+ * e.g. a line total in mills rounded to cents (see Money)
+ * 
+ */
+public enum RoundingPolicy
+{
+	
+	HALF_UP,	// to nearest, ties away from zero (2.345 -> 2.35, -2.345 -> -2.35)
+	HALF_EVEN,	// to nearest, ties to the even neighbour (2.345 -> 2.34, 2.355 -> 2.36)
+	HALF_DOWN,	// to nearest, ties towards zero (2.345 -> 2.34)
+	UP,			// away from zero (2.341 -> 2.35)
+	DOWN;		// towards zero (2.349 -> 2.34)
+	
+	/*
+	 * Divide inValue by a positive inDivisor and round the quotient
+	 */
+	public long divide( long inValue, long inDivisor )
+	{
+		long quotient	= inValue / inDivisor;
+		long remainder	= inValue % inDivisor;
+		
+		if( 0 == remainder )
+		{
+			return quotient;
+		}
+		
+		long sign			= ( inValue < 0 ) ? -1 : 1;
+		long twiceRemainder	= 2 * Math.abs( remainder );
+		boolean awayFromZero;
+		
+		switch( this )
+		{
+			case HALF_UP:
+				awayFromZero = twiceRemainder >= inDivisor;
+				break;
+			case HALF_EVEN:
+				awayFromZero = twiceRemainder > inDivisor
+								|| ( twiceRemainder == inDivisor && 0 != ( quotient & 1 ) );
+				break;
+			case HALF_DOWN:
+				awayFromZero = twiceRemainder > inDivisor;
+				break;
+			case UP:
+				awayFromZero = true;
+				break;
+			default:
+				awayFromZero = false;
+				break;
+		}
+		
+		return ( true == awayFromZero ) ? quotient + sign : quotient;
+	}
+	
+	/*
+	 * Round inValue to a whole number
+	 */
+	public long round( double inValue )
+	{
+		double whole = ( inValue < 0 ) ? Math.ceil( inValue ) : Math.floor( inValue );
+		double fraction = Math.abs( inValue - whole );
+		
+		if( 0 == fraction )
+		{
+			return (long)whole;
+		}
+		
+		double sign = ( inValue < 0 ) ? -1 : 1;
+		boolean awayFromZero;
+		
+		switch( this )
+		{
+			case HALF_UP:
+				awayFromZero = fraction >= 0.5;
+				break;
+			case HALF_EVEN:
+				awayFromZero = fraction > 0.5 || ( fraction == 0.5 && 0 != ( (long)whole & 1 ) );
+				break;
+			case HALF_DOWN:
+				awayFromZero = fraction > 0.5;
+				break;
+			case UP:
+				awayFromZero = true;
+				break;
+			default:
+				awayFromZero = false;
+				break;
+		}
+		
+		return (long)( ( true == awayFromZero ) ? whole + sign : whole );
+	}
+	
+}
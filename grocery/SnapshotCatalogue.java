@@ -0,0 +1,330 @@
+package grocery;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A read-only catalogue served straight from a memory-mapped snapshot written by
+ * CatalogueSnapshot
+ * 
+ * Name lookups probe the hash tables in the snapshot and compare the stored UTF-8
+ * names without decoding them.  A Product (with its rates) is
+ * only built the first time it is asked for, using the quantities and costs per unit
+ * stored in the snapshot, so opening a snapshot takes about the same time whatever
+ * its size and products that are never asked for take no heap.
+ * 
+ */
+public class SnapshotCatalogue extends Catalogue
+{
+	
+	private ByteBuffer snapshot;
+	
+	private int numProducts;
+	private int numTiers;
+	private int numSlots;
+	private int stringOffsetsPos;
+	private int stringDataPos;
+	private int productsPos;
+	private int ratesPos;
+	private int tiersPos;
+	private int exactHashPos;
+	private int foldedHashPos;
+	
+	private AtomicReferenceArray<Product> loadedProducts;
+	
+	SnapshotCatalogue( String inFile ) throws IOException
+	{
+		try( FileChannel channel = FileChannel.open( Paths.get( inFile ), StandardOpenOption.READ ) )
+		{
+			if( channel.size() > Integer.MAX_VALUE )
+			{
+				throw new IOException( "Snapshot [" + inFile + "] is too large to map" );
+			}
+			
+			/*
+			 * The mapping stays valid after the channel is closed
+			 */
+			this.snapshot = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		
+		if( this.snapshot.capacity() < CatalogueSnapshot.HEADER_SIZE )
+		{
+			throw new IOException( "[" + inFile + "] is not a catalogue snapshot" );
+		}
+		
+		for( int i = 0; i < CatalogueSnapshot.MAGIC.length; ++i )
+		{
+			if( CatalogueSnapshot.MAGIC[ i ] != this.snapshot.get( i ) )
+			{
+				throw new IOException( "[" + inFile + "] is not a catalogue snapshot" );
+			}
+		}
+		
+		int version = this.snapshot.getInt( 8 );
+		if( CatalogueSnapshot.VERSION != version )
+		{
+			throw new IOException( "Snapshot [" + inFile + "] has version " + version
+					+ ", expected " + CatalogueSnapshot.VERSION );
+		}
+		
+		this.numProducts		= this.snapshot.getInt( 12 );
+		this.numTiers			= this.snapshot.getInt( 20 );
+		this.numSlots			= this.snapshot.getInt( 28 );
+		this.stringOffsetsPos	= (int)this.snapshot.getLong( 32 );
+		this.stringDataPos		= (int)this.snapshot.getLong( 40 );
+		this.productsPos		= (int)this.snapshot.getLong( 48 );
+		this.ratesPos			= (int)this.snapshot.getLong( 56 );
+		this.tiersPos			= (int)this.snapshot.getLong( 64 );
+		this.exactHashPos		= (int)this.snapshot.getLong( 72 );
+		this.foldedHashPos		= (int)this.snapshot.getLong( 80 );
+		
+		this.loadedProducts		= new AtomicReferenceArray<Product>( this.numProducts );
+	}
+	
+	@Override
+	public boolean productIsInCatalogue( String inProdName, Boolean compareIgnoreCase )
+	{
+		if( true == compareIgnoreCase )
+		{
+			return this.findFoldedProduct( inProdName.toUpperCase() ) >= 0;
+		}
+		else
+		{
+			return this.findProduct( inProdName ) >= 0;
+		}
+	}
+	
+	@Override
+	int countFoldedProducts( String inProdName )
+	{
+		int index = this.findFoldedProduct( inProdName.toUpperCase() );
+		return ( index < 0 ) ? 0 : this.snapshot.getInt( this.productsPos + CatalogueSnapshot.PRODUCT_SIZE * index + 16 );
+	}
+	
+	@Override
+	Product lookupProduct( String inExistingProdName )
+	{
+		int index = this.findProduct( inExistingProdName );
+		return ( index < 0 ) ? null : this.loadProduct( index );
+	}
+	
+	@Override
+	public int getNumProducts()
+	{
+		return this.numProducts;
+	}
+	
+	@Override
+	Iterator<Product> productIterator()
+	{
+		return new Iterator<Product>()
+		{
+			private int next = 0;
+			
+			public boolean hasNext()
+			{
+				return this.next < SnapshotCatalogue.this.numProducts;
+			}
+			
+			public Product next()
+			{
+				if( false == this.hasNext() )
+				{
+					throw new NoSuchElementException();
+				}
+				return SnapshotCatalogue.this.loadProduct( this.next++ );
+			}
+		};
+	}
+	
+	@Override
+	public void addProduct( Product inProduct )
+	{
+		throw new UnsupportedOperationException( "A snapshot catalogue is read-only" );
+	}
+	
+	@Override
+	public void addRateToExistingProduct( String inExistingProdName, Rate inRate )
+	{
+		throw new UnsupportedOperationException( "A snapshot catalogue is read-only" );
+	}
+	
+	/*
+	 * Products build their rate index as they are loaded from the snapshot
+	 */
+	@Override
+	public void buildRateIndexes()
+	{
+	}
+	
+	@Override
+	public void mergeCatalogue( Catalogue inOther )
+	{
+		throw new UnsupportedOperationException( "A snapshot catalogue is read-only" );
+	}
+	
+	/*
+	 * Returns the index of the product with exactly this name, or -1
+	 */
+	private int findProduct( String inProdName )
+	{
+		int hash = inProdName.hashCode();
+		int slot = CatalogueSnapshot.slotOf( hash, this.numSlots );
+		
+		while( true )
+		{
+			int entry = this.snapshot.getInt( this.exactHashPos + 4 * slot );
+			if( 0 == entry )
+			{
+				return -1;
+			}
+			
+			int productPos = this.productsPos + CatalogueSnapshot.PRODUCT_SIZE * ( entry - 1 );
+			if( hash == this.snapshot.getInt( productPos + 4 )
+				&& true == this.stringEquals( this.snapshot.getInt( productPos ), inProdName ) )
+			{
+				return entry - 1;
+			}
+			
+			slot = ( slot + 1 ) & ( this.numSlots - 1 );
+		}
+	}
+	
+	/*
+	 * Returns the index of the first product whose upper-cased name is inFoldedName, or -1
+	 */
+	private int findFoldedProduct( String inFoldedName )
+	{
+		int hash = inFoldedName.hashCode();
+		int slot = CatalogueSnapshot.slotOf( hash, this.numSlots );
+		
+		while( true )
+		{
+			int entry = this.snapshot.getInt( this.foldedHashPos + 4 * slot );
+			if( 0 == entry )
+			{
+				return -1;
+			}
+			
+			int productPos = this.productsPos + CatalogueSnapshot.PRODUCT_SIZE * ( entry - 1 );
+			if( hash == this.snapshot.getInt( productPos + 24 )
+				&& true == this.stringEquals( this.snapshot.getInt( productPos + 20 ), inFoldedName ) )
+			{
+				return entry - 1;
+			}
+			
+			slot = ( slot + 1 ) & ( this.numSlots - 1 );
+		}
+	}
+	
+	/*
+	 * Build the product and its rates from the snapshot records, once
+	 */
+	private Product loadProduct( int index )
+	{
+		Product loaded = this.loadedProducts.get( index );
+		if( null != loaded )
+		{
+			return loaded;
+		}
+		
+		int productPos	= this.productsPos + CatalogueSnapshot.PRODUCT_SIZE * index;
+		int firstRate	= this.snapshot.getInt( productPos + 8 );
+		int numRates	= this.snapshot.getInt( productPos + 12 );
+		
+		Product newProduct = new Product( this.readString( this.snapshot.getInt( productPos ) ) );
+		
+		for( int r = firstRate; r < firstRate + numRates; ++r )
+		{
+			int ratePos			= this.ratesPos + CatalogueSnapshot.RATE_SIZE * r;
+			int firstTier		= this.snapshot.getInt( ratePos + 8 );
+			int rateNumTiers	= Math.max( 0, this.snapshot.getInt( ratePos + 12 ) );
+			
+			double[] tierMin	= new double[ rateNumTiers ];
+			double[] tierMax	= new double[ rateNumTiers ];
+			long[] tierPrice	= new long[ rateNumTiers ];
+			long[] tierScale	= new long[ rateNumTiers ];
+			
+			for( int t = 0; t < rateNumTiers; ++t )
+			{
+				int tierPos = this.tiersPos + 8 * ( firstTier + t );
+				tierMin[ t ]	= this.snapshot.getDouble( tierPos );
+				tierMax[ t ]	= this.snapshot.getDouble( tierPos + 8 * this.numTiers );
+				tierPrice[ t ]	= this.snapshot.getLong( tierPos + 16 * this.numTiers );
+				tierScale[ t ]	= this.snapshot.getLong( tierPos + 24 * this.numTiers );
+			}
+			
+			newProduct.addRate( new Rate(
+					this.readString( this.snapshot.getInt( ratePos ) ),
+					this.readString( this.snapshot.getInt( ratePos + 4 ) ),
+					this.snapshot.getInt( ratePos + 12 ) >= 0,
+					this.snapshot.getDouble( ratePos + 16 ),
+					this.snapshot.getLong( ratePos + 24 ),
+					this.snapshot.getDouble( ratePos + 32 ),
+					tierMin, tierMax, tierPrice, tierScale, rateNumTiers ) );
+		}
+		
+		newProduct.buildRateIndex();
+		
+		/*
+		 * Another thread may have loaded the same product meanwhile; keep one of them
+		 */
+		if( false == this.loadedProducts.compareAndSet( index, null, newProduct ) )
+		{
+			return this.loadedProducts.get( index );
+		}
+		return newProduct;
+	}
+	
+	private String readString( int id )
+	{
+		int start	= this.snapshot.getInt( this.stringOffsetsPos + 4 * id );
+		int end		= this.snapshot.getInt( this.stringOffsetsPos + 4 * ( id + 1 ) );
+		byte[] bytes = new byte[ end - start ];
+		
+		for( int i = 0; i < bytes.length; ++i )
+		{
+			bytes[ i ] = this.snapshot.get( this.stringDataPos + start + i );
+		}
+		
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+	
+	/*
+	 * Whether string id is inStr.  ASCII names are compared byte by byte; a name
+	 * with other characters is decoded
+	 */
+	private boolean stringEquals( int id, String inStr )
+	{
+		int start	= this.snapshot.getInt( this.stringOffsetsPos + 4 * id );
+		int end		= this.snapshot.getInt( this.stringOffsetsPos + 4 * ( id + 1 ) );
+		
+		if( end - start < inStr.length() )
+		{
+			return false;
+		}
+		
+		for( int i = 0; i < end - start; ++i )
+		{
+			byte b = this.snapshot.get( this.stringDataPos + start + i );
+			if( b < 0 )
+			{
+				return this.readString( id ).equals( inStr );
+			}
+			if( i >= inStr.length() || b != inStr.charAt( i ) )
+			{
+				return false;
+			}
+		}
+		
+		return end - start == inStr.length();
+	}
+	
+}
@@ -0,0 +1,210 @@
+package grocery;
+
+/*
+ * The dictionary of product names, rate names and rate descriptions
+ *
+ * Each distinct string is kept once and given an int id.  Products, rates and
+ * purchased products hold ids rather than strings, so the few descriptions that
+ * repeat across a large catalogue ('Retail', 'Buy 2 get 1 free') are held once,
+ * names are compared as ints, and text is only looked up when a bill is written.
+ *
+ * The dictionary is shared by every catalogue in the process, so that ids stay
+ * the same across reloads, deltas and the products they share.  Strings are never
+ * removed; reloading the same catalogue adds nothing.
+ *
+ * So the table only grows: a reload or delta adds the names and descriptions that
+ * no catalogue before it had, and keeps them after the last product that used
+ * them is gone.  A process whose catalogues keep renaming products holds every
+ * name it ever saw until it is restarted.  The table can not be scoped to a
+ * revision, as revisions share the products (and so the ids) that did not change.
+ * Instead its size, and the chars it holds, are reported (see Metrics and the
+ * server's /stats), and a warning is written once when it passes WARN_SIZE strings,
+ * 8M unless -Dgrocery.symbols.warn sets it.
+ *
+ * The strings are held in an array indexed by id and found by an open addressing
+ * hash table of ids.  Lookups do not lock: a lookup that misses, or races with a
+ * new string being added, is retried under the lock before a new id is given out.
+ *
+ */
+public class SymbolTable
+{
+	
+	private static final int INITIAL_CAPACITY	= 1024;
+	private static final int WARN_SIZE			= Integer.getInteger( "grocery.symbols.warn", 8 * 1024 * 1024 );
+	
+	/*
+	 * The strings by id, and a hash table of id + 1 (0 is an empty slot), replaced
+	 * together when the table grows
+	 */
+	private static final class Table
+	{
+		final String[] symbols;
+		final int[] slots;
+		
+		Table( int inCapacity )
+		{
+			this.symbols	= new String[ inCapacity ];
+			this.slots		= new int[ 2 * inCapacity ];
+		}
+	}
+	
+	private static volatile Table table = new Table( INITIAL_CAPACITY );
+	private static int size = 0;
+	private static long charCount = 0;
+	
+	private SymbolTable()
+	{
+	}
+	
+	/*
+	 * The id of a string, adding it if it is new
+	 */
+	public static int intern( String inSymbol )
+	{
+		int id = lookup( table, inSymbol );
+		if( id >= 0 )
+		{
+			return id;
+		}
+		
+		synchronized( SymbolTable.class )
+		{
+			Table current = table;
+			
+			id = lookup( current, inSymbol );
+			if( id >= 0 )
+			{
+				return id;
+			}
+			
+			if( size == current.symbols.length )
+			{
+				current = grow( current );
+			}
+			
+			/*
+			 * The string goes in before the slot that points to it, so a lookup
+			 * that finds the slot without the lock almost always finds the string
+			 */
+			id = size++;
+			current.symbols[ id ] = inSymbol;
+			current.slots[ freeSlot( current.slots, inSymbol.hashCode() ) ] = id + 1;
+			table = current;
+			charCount += inSymbol.length();
+			
+			if( WARN_SIZE == size )
+			{
+				System.err.println( "The symbol table holds " + size + " names and descriptions (" + charCount
+						+ " chars); they are only freed by a restart" );
+			}
+			
+			return id;
+		}
+	}
+	
+	/*
+	 * The id of a string, or -1 if it has never been interned
+	 */
+	public static int lookup( String inSymbol )
+	{
+		int id = lookup( table, inSymbol );
+		if( id >= 0 )
+		{
+			return id;
+		}
+		
+		synchronized( SymbolTable.class )
+		{
+			return lookup( table, inSymbol );
+		}
+	}
+	
+	/*
+	 * The string of an id given out by intern
+	 */
+	public static String symbol( int id )
+	{
+		return table.symbols[ id ];
+	}
+	
+	/*
+	 * The number of distinct strings
+	 */
+	public static synchronized int size()
+	{
+		return size;
+	}
+	
+	/*
+	 * The number of chars in all the strings
+	 */
+	public static synchronized long charCount()
+	{
+		return charCount;
+	}
+	
+	private static int lookup( Table inTable, String inSymbol )
+	{
+		int mask = inTable.slots.length - 1;
+		int slot = spread( inSymbol.hashCode() ) & mask;
+		
+		while( true )
+		{
+			int entry = inTable.slots[ slot ];
+			if( 0 == entry )
+			{
+				return -1;
+			}
+			
+			String candidate = inTable.symbols[ entry - 1 ];
+			if( null == candidate )
+			{
+				/*
+				 * Seen half added without the lock; the caller retries under it
+				 */
+				return -1;
+			}
+			if( true == candidate.equals( inSymbol ) )
+			{
+				return entry - 1;
+			}
+			
+			slot = ( slot + 1 ) & mask;
+		}
+	}
+	
+	private static int freeSlot( int[] slots, int hash )
+	{
+		int mask = slots.length - 1;
+		int slot = spread( hash ) & mask;
+		
+		while( 0 != slots[ slot ] )
+		{
+			slot = ( slot + 1 ) & mask;
+		}
+		
+		return slot;
+	}
+	
+	/*
+	 * Double the table; the table is at most half full
+	 */
+	private static Table grow( Table inTable )
+	{
+		Table grown = new Table( 2 * inTable.symbols.length );
+		System.arraycopy( inTable.symbols, 0, grown.symbols, 0, inTable.symbols.length );
+		
+		for( int id = 0; id < inTable.symbols.length; ++id )
+		{
+			grown.slots[ freeSlot( grown.slots, grown.symbols[ id ].hashCode() ) ] = id + 1;
+		}
+		
+		return grown;
+	}
+	
+	private static int spread( int hash )
+	{
+		return hash ^ ( hash >>> 16 );
+	}
+
+}
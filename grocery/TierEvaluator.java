@@ -0,0 +1,158 @@
+package grocery;
+
+/*
+ * The cost of a quantity bought at a tiered rate, compiled when the rate is made
+ *
+ * The cost is linear within each tier, so a tier is kept as the quantity and cost
+ * to its end and the price of a unit in it, in fields of the evaluator.  Pricing a
+ * quantity is then an unrolled walk to the tier its last unit falls in and one
+ * multiply, reading nothing but the evaluator: no tier arrays, no search, and no
+ * test of where a tier starts.  The fields of a tier sit together, so the walk
+ * reads the cache lines of the tiers it passes and no others.
+ *
+ * Only rates with up to MAX_TIERS tiers, which is most of them, are compiled.  A
+ * longer ladder is priced from its tiers by Rate as before; held in fields it
+ * would make each evaluator span more cache lines than the walk saves.  Retail
+ * and bulk rates need no evaluator: their cost is the one price already on the
+ * rate.
+ *
+ * The class is final and there is no other, so the call from Rate.getTierPrice is
+ * inlined by the JIT into the rating loop and PurchasedProduct.
+ *
+ * Costs are in mills and are worked out the same way as from the tiers themselves
+ * (see Rate.interpretTierPrice), so they match to the mill.
+ *
+ */
+public final class TierEvaluator
+{
+	
+	static final int MAX_TIERS = 8;
+	
+	/*
+	 * Tiers past the last one end at the total quantity with the total cost, so the
+	 * walk never prices a quantity in them
+	 */
+	private final double end0;
+	private final long cost0;
+	private final long unit0;
+	private final double end1;
+	private final long cost1;
+	private final long unit1;
+	private final double end2;
+	private final long cost2;
+	private final long unit2;
+	private final double end3;
+	private final long cost3;
+	private final long unit3;
+	private final double end4;
+	private final long cost4;
+	private final long unit4;
+	private final double end5;
+	private final long cost5;
+	private final long unit5;
+	private final double end6;
+	private final long cost6;
+	private final long unit6;
+	private final double end7;
+	private final long cost7;
+	private final long unit7;
+	
+	/*
+	 * From the units and cost to the end of each of the first inNumTiers tiers, and
+	 * the cost of a unit in each.  Returns null for more than MAX_TIERS tiers
+	 */
+	static TierEvaluator compile( int inNumTiers, double[] inEndQuantity, long[] inEndCost, long[] inUnitCost )
+	{
+		return ( inNumTiers <= MAX_TIERS ) ? new TierEvaluator( inNumTiers, inEndQuantity, inEndCost, inUnitCost ) : null;
+	}
+	
+	private TierEvaluator( int inNumTiers, double[] inEndQuantity, long[] inEndCost, long[] inUnitCost )
+	{
+		double[] end	= new double[ MAX_TIERS ];
+		long[] cost		= new long[ MAX_TIERS ];
+		long[] unit		= new long[ MAX_TIERS ];
+		
+		for( int i = 0; i < inNumTiers; ++i )
+		{
+			end[ i ]	= inEndQuantity[ i ];
+			cost[ i ]	= inEndCost[ i ];
+			unit[ i ]	= inUnitCost[ i ];
+		}
+		for( int i = Math.max( 1, inNumTiers ); i < MAX_TIERS; ++i )
+		{
+			end[ i ]	= end[ i - 1 ];
+			cost[ i ]	= cost[ i - 1 ];
+		}
+		
+		this.end0	= end[ 0 ];
+		this.cost0	= cost[ 0 ];
+		this.unit0	= unit[ 0 ];
+		this.end1	= end[ 1 ];
+		this.cost1	= cost[ 1 ];
+		this.unit1	= unit[ 1 ];
+		this.end2	= end[ 2 ];
+		this.cost2	= cost[ 2 ];
+		this.unit2	= unit[ 2 ];
+		this.end3	= end[ 3 ];
+		this.cost3	= cost[ 3 ];
+		this.unit3	= unit[ 3 ];
+		this.end4	= end[ 4 ];
+		this.cost4	= cost[ 4 ];
+		this.unit4	= unit[ 4 ];
+		this.end5	= end[ 5 ];
+		this.cost5	= cost[ 5 ];
+		this.unit5	= unit[ 5 ];
+		this.end6	= end[ 6 ];
+		this.cost6	= cost[ 6 ];
+		this.unit6	= unit[ 6 ];
+		this.end7	= end[ 7 ];
+		this.cost7	= cost[ 7 ];
+		this.unit7	= unit[ 7 ];
+	}
+	
+	/*
+	 * The cost of inQuantity units, in mills.  Units beyond the last tier are not
+	 * charged
+	 */
+	public long price( double inQuantity )
+	{
+		if( false == ( inQuantity > 0 ) )
+		{
+			return 0;
+		}
+		if( inQuantity <= this.end0 )
+		{
+			return Money.multiply( inQuantity, this.unit0 );
+		}
+		if( inQuantity <= this.end1 )
+		{
+			return this.cost0 + Money.multiply( inQuantity - this.end0, this.unit1 );
+		}
+		if( inQuantity <= this.end2 )
+		{
+			return this.cost1 + Money.multiply( inQuantity - this.end1, this.unit2 );
+		}
+		if( inQuantity <= this.end3 )
+		{
+			return this.cost2 + Money.multiply( inQuantity - this.end2, this.unit3 );
+		}
+		if( inQuantity <= this.end4 )
+		{
+			return this.cost3 + Money.multiply( inQuantity - this.end3, this.unit4 );
+		}
+		if( inQuantity <= this.end5 )
+		{
+			return this.cost4 + Money.multiply( inQuantity - this.end4, this.unit5 );
+		}
+		if( inQuantity <= this.end6 )
+		{
+			return this.cost5 + Money.multiply( inQuantity - this.end5, this.unit6 );
+		}
+		if( inQuantity <= this.end7 )
+		{
+			return this.cost6 + Money.multiply( inQuantity - this.end6, this.unit7 );
+		}
+		return this.cost7;
+	}
+
+}
@@ -0,0 +1,644 @@
+package grocery;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Writes synthetic catalogues and matching basket streams for benchmarks and soak tests
+ *
+ * >> java grocery/WorkloadGenerator catalogue -products 100000 [-seed 1] [-bulk 2]
+ *                                   [-tiered 0.5] [-tiers 3] [-variants 0.05] [-out FILE]
+ * >> java grocery/WorkloadGenerator baskets -products 100000 -baskets 1000000 [-seed 1]
+ *                                   [-variants 0.05] [-items 8] [-zipf 1.0]
+ *                                   [-quantity uniform:1-6] [-out FILE]
+ * >> java grocery/WorkloadGenerator promotions -products 100000 -rules 100000 [-seed 1]
+ *                                   [-variants 0.05] [-group 4] [-pairs 0.3] [-out FILE]
+ *
+ * The catalogue is in the format read by Grocery (see Grocery.generateCatalogue):
+ * every product has a retail rate, -bulk bulk rates, and a tiered rate of -tiers
+ * tiers with probability -tiered.  A fraction -variants of the products are
+ * case variants of the product before them, e.g. 'bakomi' and 'Bakomi'.
+ *
+ * Baskets are in the format read by BatchPricer, e.g. 'B17|2 bakomi 1 Tedu'.  Each
+ * basket has 1 to -items items.  Products are drawn with Zipfian popularity of
+ * exponent -zipf, the most popular products being spread over the catalogue.
+ * Quantities are drawn from one of
+ *
+ * uniform:MIN-MAX		a whole number from MIN to MAX
+ * geometric:P			1 + the number of failures before a success of probability P
+ * fixed:N				always N
+ *
+ * Promotions are in the format read by PromotionCatalogue.  A fraction -pairs of the
+ * rules are PAIRs of two products, the rest MIX bundles of 2 to 4 units from 1 to
+ * -group products.  Products are picked uniformly, so popular products have as
+ * many rules as the others.
+ *
+ * Everything is a function of the seed and the options, so the same command writes
+ * the same bytes, and a basket stream matches the catalogue written with the same
+ * -products, -seed and -variants.  Output is streamed: memory does not depend on the
+ * number of baskets, and only the Zipfian table depends on the number of products.
+ * Without -out the output goes to stdout.
+ *
+ */
+public class WorkloadGenerator
+{
+	
+	private static final String[] SYLLABLES = {
+		"ba", "ko", "mi", "te", "du", "ra", "li", "so", "ne", "pa",
+		"fu", "gi", "ve", "ho", "zu", "ca", "lo", "ri", "ma", "to"
+	};
+	
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	
+	private long seed;
+	private int numProducts;
+	private int numBulkRates;
+	private double tieredFraction;
+	private int numTiers;
+	private double variantFraction;
+	private int maxItems;
+	private double zipfExponent;
+	private String quantityDistribution;
+	private int maxGroupSize;
+	private double pairFraction;
+	
+	/*
+	 * State of the random number generator (SplitMix64, so that the output does not
+	 * depend on the JVM)
+	 */
+	private long randomState;
+	
+	WorkloadGenerator( long inSeed, int inNumProducts )
+	{
+		this.seed					= inSeed;
+		this.numProducts			= inNumProducts;
+		this.numBulkRates			= 2;
+		this.tieredFraction			= 0.5;
+		this.numTiers				= 3;
+		this.variantFraction		= 0.05;
+		this.maxItems				= 8;
+		this.zipfExponent			= 1.0;
+		this.quantityDistribution	= "uniform:1-6";
+		this.maxGroupSize			= 4;
+		this.pairFraction			= 0.3;
+	}
+	
+	public void setNumBulkRates( int inNumBulkRates )
+	{
+		this.numBulkRates = inNumBulkRates;
+	}
+	
+	public void setTieredFraction( double inTieredFraction )
+	{
+		this.tieredFraction = inTieredFraction;
+	}
+	
+	public void setNumTiers( int inNumTiers )
+	{
+		this.numTiers = inNumTiers;
+	}
+	
+	public void setVariantFraction( double inVariantFraction )
+	{
+		this.variantFraction = inVariantFraction;
+	}
+	
+	public void setMaxItems( int inMaxItems )
+	{
+		this.maxItems = inMaxItems;
+	}
+	
+	public void setZipfExponent( double inZipfExponent )
+	{
+		this.zipfExponent = inZipfExponent;
+	}
+	
+	/*
+	 * See the class comment for the distributions
+	 */
+	public void setQuantityDistribution( String inQuantityDistribution )
+	{
+		parseQuantityDistribution( inQuantityDistribution );
+		this.quantityDistribution = inQuantityDistribution;
+	}
+	
+	public void setMaxGroupSize( int inMaxGroupSize )
+	{
+		this.maxGroupSize = inMaxGroupSize;
+	}
+	
+	public void setPairFraction( double inPairFraction )
+	{
+		this.pairFraction = inPairFraction;
+	}
+	
+	public static void main( String[] args ) throws IOException
+	{
+		if( 0 == args.length || ( false == args[0].equals( "catalogue" ) && false == args[0].equals( "baskets" )
+				&& false == args[0].equals( "promotions" ) ) )
+		{
+			printUsage();
+			System.exit( 1 );
+		}
+		
+		long seed			= 1;
+		int numProducts		= 1000;
+		long numBaskets		= 1000;
+		int numRules		= 1000;
+		String outFile		= null;
+		WorkloadGenerator generator = null;
+		
+		try
+		{
+			/*
+			 * The generator needs the seed and the number of products first
+			 */
+			for( int i = 1; i + 1 < args.length; i += 2 )
+			{
+				if( true == args[i].equals( "-seed" ) )
+				{
+					seed = Long.parseLong( args[i + 1] );
+				}
+				else if( true == args[i].equals( "-products" ) )
+				{
+					numProducts = Integer.parseInt( args[i + 1] );
+				}
+			}
+			generator = new WorkloadGenerator( seed, numProducts );
+			
+			for( int i = 1; i < args.length; i += 2 )
+			{
+				if( i + 1 >= args.length )
+				{
+					throw new IllegalArgumentException( args[i] );
+				}
+				
+				String value = args[i + 1];
+				
+				if( true == args[i].equals( "-seed" ) || true == args[i].equals( "-products" ) )
+				{
+					continue;
+				}
+				else if( true == args[i].equals( "-baskets" ) )
+				{
+					numBaskets = Long.parseLong( value );
+				}
+				else if( true == args[i].equals( "-rules" ) )
+				{
+					numRules = Integer.parseInt( value );
+				}
+				else if( true == args[i].equals( "-group" ) )
+				{
+					generator.setMaxGroupSize( Integer.parseInt( value ) );
+				}
+				else if( true == args[i].equals( "-pairs" ) )
+				{
+					generator.setPairFraction( Double.parseDouble( value ) );
+				}
+				else if( true == args[i].equals( "-bulk" ) )
+				{
+					generator.setNumBulkRates( Integer.parseInt( value ) );
+				}
+				else if( true == args[i].equals( "-tiered" ) )
+				{
+					generator.setTieredFraction( Double.parseDouble( value ) );
+				}
+				else if( true == args[i].equals( "-tiers" ) )
+				{
+					generator.setNumTiers( Integer.parseInt( value ) );
+				}
+				else if( true == args[i].equals( "-variants" ) )
+				{
+					generator.setVariantFraction( Double.parseDouble( value ) );
+				}
+				else if( true == args[i].equals( "-items" ) )
+				{
+					generator.setMaxItems( Integer.parseInt( value ) );
+				}
+				else if( true == args[i].equals( "-zipf" ) )
+				{
+					generator.setZipfExponent( Double.parseDouble( value ) );
+				}
+				else if( true == args[i].equals( "-quantity" ) )
+				{
+					generator.setQuantityDistribution( value );
+				}
+				else if( true == args[i].equals( "-out" ) )
+				{
+					outFile = value;
+				}
+				else
+				{
+					throw new IllegalArgumentException( args[i] );
+				}
+			}
+		}
+		catch( IllegalArgumentException iae )
+		{
+			System.err.println( "Bad option: " + iae.getMessage() );
+			printUsage();
+			System.exit( 1 );
+		}
+		
+		OutputStream out = ( null == outFile ) ? System.out : new FileOutputStream( outFile );
+		
+		try( Writer writer = new BufferedWriter( new OutputStreamWriter( out, StandardCharsets.UTF_8 ), WRITE_BUFFER_SIZE ) )
+		{
+			if( true == args[0].equals( "catalogue" ) )
+			{
+				generator.writeCatalogue( writer );
+			}
+			else if( true == args[0].equals( "baskets" ) )
+			{
+				generator.writeBaskets( writer, numBaskets );
+			}
+			else
+			{
+				generator.writePromotions( writer, numRules );
+			}
+		}
+	}
+	
+	private static void printUsage()
+	{
+		System.err.println( "Usage: java grocery/WorkloadGenerator catalogue|baskets|promotions [options]" );
+		System.err.println( "  -products N               number of products (1000)" );
+		System.err.println( "  -seed N                   random seed (1)" );
+		System.err.println( "  -variants F               fraction of case variant product names (0.05)" );
+		System.err.println( "  -out FILE                 write to FILE instead of stdout" );
+		System.err.println( "catalogue options:" );
+		System.err.println( "  -bulk N                   bulk rates per product (2)" );
+		System.err.println( "  -tiered F                 fraction of products with a tiered rate (0.5)" );
+		System.err.println( "  -tiers N                  tiers per tiered rate (3)" );
+		System.err.println( "baskets options:" );
+		System.err.println( "  -baskets N                number of baskets (1000)" );
+		System.err.println( "  -items N                  at most N items per basket (8)" );
+		System.err.println( "  -zipf S                   exponent of the product popularity (1.0)" );
+		System.err.println( "  -quantity DIST            uniform:MIN-MAX, geometric:P or fixed:N (uniform:1-6)" );
+		System.err.println( "promotions options:" );
+		System.err.println( "  -rules N                  number of rules (1000)" );
+		System.err.println( "  -group N                  at most N products in a MIX bundle (4)" );
+		System.err.println( "  -pairs F                  fraction of the rules that are PAIRs (0.3)" );
+	}
+	
+	/*
+	 * The name of a product.  Lower-case syllables spell out the index, so names are
+	 * distinct; a case variant is the previous product's name with a capital letter
+	 */
+	public String productName( int index )
+	{
+		if( true == this.isVariant( index ) )
+		{
+			String stem = stem( index - 1 );
+			return Character.toUpperCase( stem.charAt( 0 ) ) + stem.substring( 1 );
+		}
+		return stem( index );
+	}
+	
+	private boolean isVariant( int index )
+	{
+		if( 0 == index || this.variantFraction <= 0 )
+		{
+			return false;
+		}
+		
+		/*
+		 * Decided by a hash of the index so that it can be asked for any product.
+		 * A product is not a variant if the product before it was picked, so a
+		 * variant never follows another variant
+		 */
+		return true == this.isPicked( index ) && false == this.isPicked( index - 1 );
+	}
+	
+	private boolean isPicked( int index )
+	{
+		return toUnit( mix( this.seed ^ ( 0x9E3779B97F4A7C15L * index ) ) ) < this.variantFraction;
+	}
+	
+	private static String stem( int index )
+	{
+		StringBuilder name = new StringBuilder( 12 );
+		int rest = index;
+		
+		do
+		{
+			name.append( SYLLABLES[ rest % SYLLABLES.length ] );
+			rest /= SYLLABLES.length;
+		}
+		while( rest > 0 );
+		
+		return name.toString();
+	}
+	
+	/*
+	 * Write the catalogue, one rate per line
+	 */
+	public void writeCatalogue( Writer out ) throws IOException
+	{
+		StringBuilder line = new StringBuilder( 128 );
+		this.randomState = this.seed;
+		
+		for( int p = 0; p < this.numProducts; ++p )
+		{
+			String name	= this.productName( p );
+			long cents	= 20 + this.nextInt( 480 );
+			
+			line.setLength( 0 );
+			line.append( name ).append( "|retail|Retail|1|" );
+			Money.appendCents( line, cents );
+			line.append( '\n' );
+			
+			for( int r = 0; r < this.numBulkRates; ++r )
+			{
+				int quantity	= 2 + this.nextInt( 11 );
+				long price		= cents * quantity * ( 70 + this.nextInt( 30 ) ) / 100;
+				
+				line.append( name ).append( "|bulk" ).append( r ).append( "|Buy " ).append( quantity ).append( " for $" );
+				Money.appendCents( line, price );
+				line.append( '|' ).append( quantity ).append( '|' );
+				Money.appendCents( line, price );
+				line.append( '\n' );
+			}
+			
+			if( this.numTiers > 0 && this.nextDouble() < this.tieredFraction )
+			{
+				line.append( name ).append( "|tier|Buy more pay less|-1|" );
+				
+				int min = 1;
+				for( int t = 0; t < this.numTiers; ++t )
+				{
+					int max = min + this.nextInt( 3 );
+					
+					line.append( ( 0 == t ) ? "" : ";" ).append( min ).append( '-' ).append( max ).append( ',' );
+					Money.appendCents( line, cents );
+					line.append( ',' ).append( ( 0 == t ) ? "1" : "0." + ( 10 - Math.min( t, 9 ) ) );
+					min = max + 1;
+				}
+				line.append( '\n' );
+			}
+			
+			out.append( line );
+		}
+	}
+	
+	/*
+	 * Write baskets B0 to B(numBaskets - 1), one per line
+	 */
+	public void writeBaskets( Writer out, long numBaskets ) throws IOException
+	{
+		long[] quantityParams	= parseQuantityDistribution( this.quantityDistribution );
+		double[] zipfCdf		= this.zipfCdf();
+		String[] names			= new String[ this.numProducts ];
+		long stride				= this.permutationStride();
+		StringBuilder line		= new StringBuilder( 256 );
+		
+		this.randomState = this.seed ^ 0x5DEECE66DL;
+		
+		for( long b = 0; b < numBaskets; ++b )
+		{
+			int numItems = 1 + this.nextInt( this.maxItems );
+			
+			line.setLength( 0 );
+			line.append( 'B' ).append( b ).append( '|' );
+			
+			for( int i = 0; i < numItems; ++i )
+			{
+				/*
+				 * Draw a popularity rank and spread the ranks over the catalogue
+				 */
+				int rank	= searchCdf( zipfCdf, this.nextDouble() );
+				int product	= (int)( ( rank * stride ) % this.numProducts );
+				
+				if( null == names[ product ] )
+				{
+					names[ product ] = this.productName( product );
+				}
+				
+				line.append( ( 0 == i ) ? "" : " " ).append( this.nextQuantity( quantityParams ) ).append( ' ' ).append( names[ product ] );
+			}
+			
+			line.append( '\n' );
+			out.append( line );
+		}
+	}
+	
+	/*
+	 * Write promotions P0 to P(numRules - 1), one per line
+	 */
+	public void writePromotions( Writer out, int numRules ) throws IOException
+	{
+		StringBuilder line = new StringBuilder( 128 );
+		this.randomState = this.seed ^ 0x2545F4914F6CDD1DL;
+		
+		for( int r = 0; r < numRules; ++r )
+		{
+			line.setLength( 0 );
+			
+			if( this.nextDouble() < this.pairFraction )
+			{
+				int percent = 10 * ( 1 + this.nextInt( 5 ) );
+				
+				line.append( "PAIR|P" ).append( r ).append( "|Buy one get one " ).append( percent ).append( "% off|" );
+				line.append( this.productName( this.nextInt( this.numProducts ) ) ).append( '|' );
+				line.append( this.productName( this.nextInt( this.numProducts ) ) ).append( '|' ).append( percent );
+			}
+			else
+			{
+				int units		= 2 + this.nextInt( 3 );
+				int groupSize	= 1 + this.nextInt( Math.max( 1, this.maxGroupSize ) );
+				long price		= units * ( 20 + this.nextInt( 400 ) );
+				
+				line.append( "MIX|P" ).append( r ).append( "|Any " ).append( units ).append( " for $" );
+				Money.appendCents( line, price );
+				line.append( '|' ).append( units ).append( '|' );
+				Money.appendCents( line, price );
+				line.append( '|' );
+				
+				for( int g = 0; g < groupSize; ++g )
+				{
+					line.append( ( 0 == g ) ? "" : "," ).append( this.productName( this.nextInt( this.numProducts ) ) );
+				}
+			}
+			
+			line.append( '\n' );
+			out.append( line );
+		}
+	}
+	
+	/*
+	 * Cumulative probability of the popularity ranks 0 to numProducts - 1
+	 */
+	private double[] zipfCdf()
+	{
+		double[] cdf = new double[ this.numProducts ];
+		double total = 0;
+		
+		for( int r = 0; r < this.numProducts; ++r )
+		{
+			total += 1 / Math.pow( r + 1, this.zipfExponent );
+			cdf[ r ] = total;
+		}
+		for( int r = 0; r < this.numProducts; ++r )
+		{
+			cdf[ r ] /= total;
+		}
+		
+		return cdf;
+	}
+	
+	/*
+	 * The first rank whose cumulative probability is above u
+	 */
+	private static int searchCdf( double[] cdf, double u )
+	{
+		int low		= 0;
+		int high	= cdf.length - 1;
+		
+		while( low < high )
+		{
+			int mid = ( low + high ) >>> 1;
+			if( cdf[ mid ] <= u )
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		
+		return low;
+	}
+	
+	/*
+	 * A stride that is coprime to the number of products, so that rank * stride
+	 * modulo the number of products visits every product once
+	 */
+	private long permutationStride()
+	{
+		long stride = ( this.numProducts * 618034L / 1000000L ) | 1;
+		
+		while( stride > 1 && gcd( stride, this.numProducts ) != 1 )
+		{
+			stride += 2;
+		}
+		
+		return Math.max( 1, stride );
+	}
+	
+	private static long gcd( long a, long b )
+	{
+		while( 0 != b )
+		{
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+	
+	/*
+	 * { kind, a, b }: 0 uniform a to b, 1 geometric with probability a / 1000000,
+	 * 2 fixed a
+	 */
+	private static long[] parseQuantityDistribution( String inDistribution )
+	{
+		int colon = inDistribution.indexOf( ':' );
+		String kind = ( colon < 0 ) ? inDistribution : inDistribution.substring( 0, colon );
+		String value = ( colon < 0 ) ? "" : inDistribution.substring( colon + 1 );
+		
+		try
+		{
+			if( true == kind.equals( "uniform" ) )
+			{
+				int dash = value.indexOf( '-' );
+				long min = Long.parseLong( value.substring( 0, dash ) );
+				long max = Long.parseLong( value.substring( dash + 1 ) );
+				
+				if( min >= 1 && max >= min )
+				{
+					return new long[] { 0, min, max };
+				}
+			}
+			else if( true == kind.equals( "geometric" ) )
+			{
+				double p = Double.parseDouble( value );
+				
+				if( p > 0 && p <= 1 )
+				{
+					return new long[] { 1, Math.max( 1, (long)( p * 1000000 ) ), 0 };
+				}
+			}
+			else if( true == kind.equals( "fixed" ) )
+			{
+				long n = Long.parseLong( value );
+				
+				if( n >= 1 )
+				{
+					return new long[] { 2, n, 0 };
+				}
+			}
+		}
+		catch( NumberFormatException | StringIndexOutOfBoundsException e )
+		{
+			// reported below
+		}
+		
+		throw new IllegalArgumentException( "quantity distribution [" + inDistribution + "]" );
+	}
+	
+	private long nextQuantity( long[] params )
+	{
+		if( 0 == params[ 0 ] )
+		{
+			return params[ 1 ] + this.nextInt( (int)( params[ 2 ] - params[ 1 ] + 1 ) );
+		}
+		else if( 1 == params[ 0 ] )
+		{
+			long quantity = 1;
+			double p = params[ 1 ] / 1000000.0;
+			
+			while( this.nextDouble() >= p && quantity < 1000 )
+			{
+				++quantity;
+			}
+			return quantity;
+		}
+		
+		return params[ 1 ];
+	}
+	
+	private long nextLong()
+	{
+		this.randomState += 0x9E3779B97F4A7C15L;
+		return mix( this.randomState );
+	}
+	
+	private int nextInt( int bound )
+	{
+		return (int)( ( this.nextLong() >>> 33 ) % bound );
+	}
+	
+	private double nextDouble()
+	{
+		return toUnit( this.nextLong() );
+	}
+	
+	private static double toUnit( long bits )
+	{
+		return ( bits >>> 11 ) * 0x1.0p-53;
+	}
+	
+	private static long mix( long z )
+	{
+		z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+		return z ^ ( z >>> 31 );
+	}
+
+}